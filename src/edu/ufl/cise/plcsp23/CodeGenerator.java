@@ -5,7 +5,10 @@ import edu.ufl.cise.plcsp23.IToken.Kind;
 import edu.ufl.cise.plcsp23.runtime.ImageOps;
 import edu.ufl.cise.plcsp23.runtime.PLCRuntimeException;
 
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.lang.Math.*;
 
 public class CodeGenerator implements ASTVisitor {
@@ -14,6 +17,7 @@ public class CodeGenerator implements ASTVisitor {
     Type returnType;
     StringBuilder sb;
     String packageName = "";
+    Set<String> loadedImages = new HashSet<>(); // images read in the background, see startImageLoads
 
     public CodeGenerator(String packageName) {
         imports = "";
@@ -76,6 +80,213 @@ public class CodeGenerator implements ASTVisitor {
         return false;
     }
 
+    /**
+     * Returns true if expr is an image computed by an image operation, which nothing
+     * else in the generated code can refer to. ImageOps may reuse such an image for
+     * its result or give it back to the ImagePool once it has been used.
+     */
+    protected boolean isTemporaryImage(Expr expr) {
+        if (expr.getType() != Type.IMAGE) {
+            return false;
+        }
+        if (expr instanceof BinaryExpr) {
+            return true;
+        }
+        if (expr instanceof UnaryExprPostfix postfix) {
+            return postfix.getPixel() == null && postfix.getColor() != null;
+        }
+        return false;
+    }
+
+    /**
+     * Appends the temporaries argument for an ImageOps call on left and right (which may
+     * be null), or nothing if neither of them is a temporary image.
+     */
+    protected void appendTemporaries(Expr left, Expr right) {
+        String flags = "";
+        if (isTemporaryImage(left)) {
+            flags = "ImageOps.TEMP_LEFT";
+        }
+        if (right != null && isTemporaryImage(right)) {
+            flags += (flags.isEmpty() ? "" : " | ") + "ImageOps.TEMP_RIGHT";
+        }
+        if (!flags.isEmpty()) {
+            sb.append(", ").append(flags);
+        }
+    }
+
+    /**
+     * Starts reading every image declared in the outermost block with a string whose
+     * value, like the size of the image if it has one, is known when apply starts: a
+     * literal or a parameter that is never assigned. The declaration then only
+     * declares the variable, and the load is joined where the image is first read.
+     * Images that are never read are read at their declaration as before, and every
+     * return joins the loads first (see appendJoinLoads), so a source that cannot be
+     * read always throws its error.
+     */
+    protected void startImageLoads(Program program) throws PLCException {
+        Set<String> fixed = new HashSet<>();
+        for (NameDef param : program.getParamList()) {
+            fixed.add(param.getIdent().getName());
+        }
+        removeAssigned(program.getBlock(), fixed);
+
+        List<Declaration> loads = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        for (Declaration dec : program.getBlock().getDecList()) {
+            NameDef nameDef = dec.getNameDef();
+            Expr expr = dec.getInitializer();
+            Dimension dim = nameDef.getDimension();
+            if (nameDef.getType() != Type.IMAGE || expr == null || expr.getType() != Type.STRING
+                    || !isFixed(expr, fixed)
+                    || dim != null && !(isFixed(dim.getWidth(), fixed) && isFixed(dim.getHeight(), fixed))) {
+                continue;
+            }
+            loads.add(dec);
+            names.add(nameDef.getIdent().getName());
+        }
+        Set<String> read = new HashSet<>();
+        addReads(program.getBlock(), names, read);
+
+        for (Declaration dec : loads) {
+            NameDef nameDef = dec.getNameDef();
+            Dimension dim = nameDef.getDimension();
+            String name = nameDef.getIdent().getName();
+            if (!read.contains(name)) {
+                continue;
+            }
+            sb.append("ImageLoad ").append(name).append("$load = ImageLoad.start(");
+            dec.getInitializer().visit(this, null);
+            if (dim != null) {
+                sb.append(", ");
+                dim.visit(this, null);
+            }
+            sb.append(");\n");
+            loadedImages.add(name);
+
+            if (imports.indexOf("import edu.ufl.cise.plcsp23.runtime.ImageLoad;") == -1) {
+                imports += "import edu.ufl.cise.plcsp23.runtime.ImageLoad;\n";
+            }
+        }
+    }
+
+    /**
+     * Adds the variables among names that block reads to read. The target of an
+     * assignment counts as read, since an assignment to an image changes it in place.
+     */
+    protected void addReads(Block block, Set<String> names, Set<String> read) {
+        for (Declaration dec : block.getDecList()) {
+            Dimension dim = dec.getNameDef().getDimension();
+            if (dim != null) {
+                addReads(dim.getWidth(), names, read);
+                addReads(dim.getHeight(), names, read);
+            }
+            addReads(dec.getInitializer(), names, read);
+        }
+        for (Statement statement : block.getStatementList()) {
+            if (statement instanceof AssignmentStatement assignment) {
+                LValue lvalue = assignment.getLv();
+                if (names.contains(lvalue.getIdent().getName())) {
+                    read.add(lvalue.getIdent().getName());
+                }
+                addReads(lvalue.getPixelSelector(), names, read);
+                addReads(assignment.getE(), names, read);
+            }
+            else if (statement instanceof WriteStatement write) {
+                addReads(write.getE(), names, read);
+            }
+            else if (statement instanceof ReturnStatement ret) {
+                addReads(ret.getE(), names, read);
+            }
+            else if (statement instanceof WhileStatement whileStatement) {
+                addReads(whileStatement.getGuard(), names, read);
+                addReads(whileStatement.getBlock(), names, read);
+            }
+        }
+    }
+
+    /** Adds the variables among names that expr, which may be null, reads to read */
+    protected void addReads(Expr expr, Set<String> names, Set<String> read) {
+        if (expr instanceof IdentExpr ident && names.contains(ident.getName())) {
+            read.add(ident.getName());
+        }
+        else if (expr instanceof BinaryExpr binary) {
+            addReads(binary.getLeft(), names, read);
+            addReads(binary.getRight(), names, read);
+        }
+        else if (expr instanceof UnaryExpr unary) {
+            addReads(unary.getE(), names, read);
+        }
+        else if (expr instanceof ConditionalExpr conditional) {
+            addReads(conditional.getGuard(), names, read);
+            addReads(conditional.getTrueCase(), names, read);
+            addReads(conditional.getFalseCase(), names, read);
+        }
+        else if (expr instanceof UnaryExprPostfix postfix) {
+            addReads(postfix.getPrimary(), names, read);
+            addReads(postfix.getPixel(), names, read);
+        }
+        else if (expr instanceof ExpandedPixelExpr pixel) {
+            addReads(pixel.getRedExpr(), names, read);
+            addReads(pixel.getGrnExpr(), names, read);
+            addReads(pixel.getBluExpr(), names, read);
+        }
+        else if (expr instanceof PixelFuncExpr function) {
+            addReads(function.getSelector(), names, read);
+        }
+    }
+
+    protected void addReads(PixelSelector selector, Set<String> names, Set<String> read) {
+        if (selector != null) {
+            addReads(selector.getX(), names, read);
+            addReads(selector.getY(), names, read);
+        }
+    }
+
+    /** Removes the names of all variables assigned in block from names */
+    protected void removeAssigned(Block block, Set<String> names) {
+        for (Statement statement : block.getStatementList()) {
+            if (statement instanceof AssignmentStatement assignment) {
+                names.remove(assignment.getLv().getIdent().getName());
+            }
+            else if (statement instanceof WhileStatement whileStatement) {
+                removeAssigned(whileStatement.getBlock(), names);
+            }
+        }
+    }
+
+    protected boolean isFixed(Expr expr, Set<String> fixed) {
+        return expr instanceof StringLitExpr || expr instanceof NumLitExpr || expr instanceof ZExpr
+                || expr instanceof IdentExpr ident && fixed.contains(ident.getName());
+    }
+
+    /**
+     * Appends a read of the variable name, joining its load first if it is read in
+     * the background
+     */
+    protected void appendVariable(String name) {
+        if (loadedImages.contains(name)) {
+            sb.append("(").append(name).append(" != null ? ").append(name).append(" : (");
+            sb.append(name).append(" = ").append(name).append("$load.join()))");
+        }
+        else {
+            sb.append(name);
+        }
+    }
+
+    /**
+     * Appends a statement that waits for all loads, so that the error of a load whose
+     * image was not read yet is thrown before apply returns
+     */
+    protected void appendJoinLoads() {
+        if (loadedImages.isEmpty()) {
+            return;
+        }
+        sb.append("ImageLoad.joinAll(");
+        sb.append(String.join(", ", loadedImages.stream().sorted().map(name -> name + "$load").toList()));
+        sb.append(");\n");
+    }
+
     public void generateApplyMethod(Program program, Object arg) throws PLCException {
 
 
@@ -95,7 +306,11 @@ public class CodeGenerator implements ASTVisitor {
             sb.setLength(sb.length() - 2); // removes unwanted ', ' from parameter list
 
         sb.append(") {\n");
+        startImageLoads(program);
         block.visit(this, arg);
+        if (returnType == Type.VOID) {
+            appendJoinLoads();
+        }
         sb.append("}\n");
 
         // Add imports
@@ -142,6 +357,10 @@ public class CodeGenerator implements ASTVisitor {
         Dimension dim = nameDef.getDimension();
 
         nameDef.visit(this, arg);
+        if (loadedImages.contains(nameDef.getIdent().getName())) { // read in the background
+            sb.append(" = null");
+            return null;
+        }
         if (expr != null) {
             sb.append(" = ");
             if (nameDef.getType() == Type.IMAGE) {
@@ -155,7 +374,12 @@ public class CodeGenerator implements ASTVisitor {
                             imports += "import edu.ufl.cise.plcsp23.runtime.FileURLIO;\n";
                         }
                     }
-                    if (expr.getType() == Type.IMAGE) {
+                    if (expr.getType() == Type.IMAGE && isTemporaryImage(expr)) { // no need to copy
+                        sb.append("ImageOps.materialize(");
+                        expr.visit(this, arg);
+                        sb.append(")");
+                    }
+                    else if (expr.getType() == Type.IMAGE) {
                         sb.append("ImageOps.cloneImage(");
                         expr.visit(this, arg);
                         sb.append(")");
@@ -183,6 +407,7 @@ public class CodeGenerator implements ASTVisitor {
                         expr.visit(this, arg);
                         sb.append(", ");
                         dim.visit(this,arg);
+                        appendTemporaries(expr, null);
                         sb.append(")");
 
                         if (imports.indexOf("import edu.ufl.cise.plcsp23.runtime.ImageOps;") == -1) {
@@ -287,6 +512,7 @@ public class CodeGenerator implements ASTVisitor {
                 sb.append(chnl.name().substring(1)); // rest of color
                 sb.append("(");
                 primaryExpr.visit(this, arg);
+                appendTemporaries(primaryExpr, null);
                 sb.append(")");
 
                 if (imports.indexOf("import edu.ufl.cise.plcsp23.runtime.ImageOps;") == -1) {
@@ -382,6 +608,7 @@ public class CodeGenerator implements ASTVisitor {
                 expr0.visit(this, arg);
                 sb.append(", ");
                 expr1.visit(this, arg);
+                appendTemporaries(expr0, expr1);
                 sb.append(")) ? 1 : 0)");
             }
             else {
@@ -431,6 +658,7 @@ public class CodeGenerator implements ASTVisitor {
                 expr0.visit(this, arg);
                 sb.append(", ");
                 expr1.visit(this, arg);
+                appendTemporaries(expr0, expr1);
                 sb.append(")");
             }
             else if (expr0.getType() == Type.IMAGE && expr1.getType() == Type.INT) {
@@ -444,6 +672,7 @@ public class CodeGenerator implements ASTVisitor {
                 expr0.visit(this, arg);
                 sb.append(", ");
                 expr1.visit(this, arg);
+                appendTemporaries(expr0, expr1);
                 sb.append(")");
             }
             else if (expr0.getType() == Type.PIXEL && expr1.getType() == Type.PIXEL) {
@@ -492,6 +721,7 @@ public class CodeGenerator implements ASTVisitor {
                 expr0.visit(this, arg);
                 sb.append(", ");
                 expr1.visit(this, arg);
+                appendTemporaries(expr0, expr1);
                 sb.append(")");
             }
             else {
@@ -543,7 +773,7 @@ public class CodeGenerator implements ASTVisitor {
     @Override
     public Object visitIdentExpr(IdentExpr identExpr, Object arg) throws PLCException {
         String name = identExpr.getName();
-        sb.append(name);
+        appendVariable(name);
         return null;
     }
 
@@ -612,7 +842,15 @@ public class CodeGenerator implements ASTVisitor {
     public Object visitLValue(LValue lValue, Object arg) throws PLCException {
         String name = lValue.getIdent().getName();
 
-        sb.append(name);
+        // an assignment to an image changes the image in place, with copyInto,
+        // setAllPixels or setRGB, so an image target is read; other variables are
+        // only stored to
+        if (loadedImages.contains(name)) {
+            appendVariable(name);
+        }
+        else {
+            sb.append(name);
+        }
 
         // ONLY HANDLES CASE WHERE PIXEL AND CHANNEL ARE NULL
 
@@ -654,12 +892,16 @@ public class CodeGenerator implements ASTVisitor {
                 if (imports.indexOf("import edu.ufl.cise.plcsp23.runtime.FileURLIO") == -1) {
                     imports += "import edu.ufl.cise.plcsp23.runtime.FileURLIO;\n";
                 }
+                if (imports.indexOf("import edu.ufl.cise.plcsp23.runtime.ImageOps") == -1) {
+                    imports += "import edu.ufl.cise.plcsp23.runtime.ImageOps;\n";
+                }
             }
             else if (expr.getType() == Type.IMAGE) {
                 sb.append("ImageOps.copyInto(");
                 expr.visit(this, arg);
                 sb.append(", ");
                 lvalue.visit(this, arg);
+                appendTemporaries(expr, null);
                 sb.append(")");
 
                 if (imports.indexOf("import edu.ufl.cise.plcsp23.runtime.ImageOps") == -1) {
@@ -789,6 +1031,7 @@ public class CodeGenerator implements ASTVisitor {
 
 //        System.out.println(returnType + " " + expr.getType());
 
+        appendJoinLoads();
         sb.append("return ");
         if (returnType == Type.STRING && expr.getType() == Type.INT) {
             sb.append("Integer.toString(");
@@ -803,6 +1046,11 @@ public class CodeGenerator implements ASTVisitor {
             expr.visit(this, arg);
             sb.append(")");
         }
+        else if (isTemporaryImage(expr)) {
+            sb.append("ImageOps.materialize(");
+            expr.visit(this, arg);
+            sb.append(")");
+        }
         else {
             expr.visit(this, arg);
         }
@@ -0,0 +1,205 @@
+package edu.ufl.cise.plcsp23;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.file.Path;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import edu.ufl.cise.plcsp23.ast.AST;
+import edu.ufl.cise.plcsp23.ast.Program;
+import edu.ufl.cise.plcsp23.javaCompilerClassLoader.DynamicClassLoader;
+import edu.ufl.cise.plcsp23.javaCompilerClassLoader.DynamicCompiler;
+import edu.ufl.cise.plcsp23.runtime.FileURLIO;
+import edu.ufl.cise.plcsp23.runtime.ImageLoad;
+import edu.ufl.cise.plcsp23.runtime.ImageOps;
+import edu.ufl.cise.plcsp23.runtime.PLCRuntimeException;
+import edu.ufl.cise.plcsp23.runtime.PixelOps;
+
+class ImageLoadTest {
+
+	@TempDir
+	Path dir;
+
+	String first;
+	String second;
+	String missing;
+
+	@BeforeEach
+	void images() throws Exception {
+		first = write("first.png", 40, 30, 0);
+		second = write("second.png", 20, 10, 99);
+		missing = dir.resolve("missing.png").toString();
+	}
+
+	@AfterEach
+	void reset() {
+		ImageLoad.setEnabled(true);
+	}
+
+	String write(String name, int w, int h, int seed) throws Exception {
+		BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < h; y++) {
+			for (int x = 0; x < w; x++) {
+				image.setRGB(x, y, (x * 5 + seed) << 16 | (y * 7) << 8 | x ^ y);
+			}
+		}
+		File file = dir.resolve(name).toFile();
+		ImageIO.write(image, "png", file);
+		return file.getPath();
+	}
+
+	String generate(String input) throws Exception {
+		AST ast = CompilerComponentFactory.makeParser(input).parse();
+		ast.visit(CompilerComponentFactory.makeTypeChecker(), null);
+		return (String) ast.visit(CompilerComponentFactory.makeCodeGenerator(""), null);
+	}
+
+	Object genCodeAndRun(String input, Object... params) throws Exception {
+		AST ast = CompilerComponentFactory.makeParser(input).parse();
+		ast.visit(CompilerComponentFactory.makeTypeChecker(), null);
+		String name = ((Program) ast).getIdent().getName();
+		String code = (String) ast.visit(CompilerComponentFactory.makeCodeGenerator(""), null);
+		byte[] byteCode = DynamicCompiler.compile(name, code);
+		return DynamicClassLoader.loadClassAndRunMethod(byteCode, name, "apply", params);
+	}
+
+	void assertRuntimeError(String input, Object... params) {
+		InvocationTargetException e = assertThrows(InvocationTargetException.class,
+				() -> genCodeAndRun(input, params));
+		assertInstanceOf(PLCRuntimeException.class, e.getCause());
+	}
+
+	@Test
+	void loadedImagesAreReadWhereTheyAreUsed() throws Exception {
+		String input = """
+				image f(string s) {
+				image k = s.
+				image[40,30] j = s.
+				:k + j / 2.
+				}
+				""";
+		assertTrue(generate(input).contains("ImageLoad.start("));
+		BufferedImage result = (BufferedImage) genCodeAndRun(input, first);
+		BufferedImage expected = ImageOps.binaryImageImageOp(ImageOps.OP.PLUS, FileURLIO.readImage(first),
+				ImageOps.binaryImageScalarOp(ImageOps.OP.DIV, FileURLIO.readImage(first, 40, 30), 2));
+		assertArrayEquals(ImageOps.getRGBPixels(expected), ImageOps.getRGBPixels(result));
+	}
+
+	@Test
+	void imagesReadInsideOtherExpressionsAreLoaded() throws Exception {
+		String guard = """
+				int f(string s) {
+				image k = s.
+				int i = 0.
+				while (i < k[1,2]:red) {
+				i = i + 1.
+				}.
+				:i.
+				}
+				""";
+		assertTrue(generate(guard).contains("ImageLoad.start("));
+		assertEquals(5, genCodeAndRun(guard, first));
+		String conditional = """
+				pixel f(string s) {
+				image k = s.
+				:if 1 > 0 ? [0, k[3,1]:grn, 0] ? [0, 0, 0].
+				}
+				""";
+		assertTrue(generate(conditional).contains("ImageLoad.start("));
+		assertEquals(PixelOps.pack(0, 7, 0), genCodeAndRun(conditional, first));
+	}
+
+	@Test
+	void unreadableImageThatIsNeverUsedThrows() throws Exception {
+		String input = """
+				int f(string s) {
+				image k = s.
+				:3.
+				}
+				""";
+		assertFalse(generate(input).contains("ImageLoad.start("));
+		assertRuntimeError(input, missing);
+	}
+
+	@Test
+	void unreadableImageUsedOnlyInALoopThatDoesNotRunThrows() throws Exception {
+		String input = """
+				int f(string s) {
+				image k = s.
+				int i = 0.
+				while (i > 0) {
+				write k.
+				}.
+				:3.
+				}
+				""";
+		assertTrue(generate(input).contains("ImageLoad.joinAll("));
+		assertRuntimeError(input, missing);
+		ImageLoad.setEnabled(false);
+		assertRuntimeError(input, missing);
+	}
+
+	@Test
+	void unreadableImageThatIsUsedThrows() {
+		String input = """
+				image f(string s) {
+				image k = s.
+				:k.
+				}
+				""";
+		assertRuntimeError(input, missing);
+	}
+
+	@Test
+	void reassignedImageKeepsItsSize() throws Exception {
+		String input = """
+				image f(string s, string t) {
+				image k = s.
+				k = t.
+				:k.
+				}
+				""";
+		String code = generate(input);
+		assertTrue(code.contains("ImageLoad.start("));
+		BufferedImage result = (BufferedImage) genCodeAndRun(input, first, second);
+		BufferedImage expected = FileURLIO.readImage(first);
+		ImageOps.copyInto(FileURLIO.readImage(second), expected);
+		assertArrayEquals(ImageOps.getRGBPixels(expected), ImageOps.getRGBPixels(result));
+	}
+
+	@Test
+	void imageAssignedInALoop() throws Exception {
+		String input = """
+				image f(string s) {
+				image k = s.
+				int i = 0.
+				while (i < 3) {
+				k = k / 2.
+				i = i + 1.
+				}.
+				:k.
+				}
+				""";
+		BufferedImage result = (BufferedImage) genCodeAndRun(input, first);
+		BufferedImage expected = FileURLIO.readImage(first);
+		for (int i = 0; i < 3; i++) {
+			expected = ImageOps.binaryImageScalarOp(ImageOps.OP.DIV, expected, 2);
+		}
+		assertArrayEquals(ImageOps.getRGBPixels(expected), ImageOps.getRGBPixels(result));
+	}
+
+}
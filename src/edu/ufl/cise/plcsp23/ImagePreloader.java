@@ -0,0 +1,54 @@
+package edu.ufl.cise.plcsp23;
+
+import edu.ufl.cise.plcsp23.ast.*;
+import edu.ufl.cise.plcsp23.runtime.FileURLIO;
+
+/**
+ * Starts reading the images a program reads from string literals into the FileURLIO
+ * cache (see FileURLIO.preload). A compile driver calls preload with the type checked
+ * program before it calls DynamicCompiler.compile, so that the images are decoded
+ * while javac runs and the first run of apply finds them in the cache.
+ */
+public class ImagePreloader {
+
+    /** Preloads every image of program that is read from a string literal */
+    public static void preload(Program program) {
+        preload(program.getBlock());
+    }
+
+    /**
+     * Preloads every image in block, and the blocks in it, that is read from a string
+     * literal, with a size given by number literals if it has one.
+     */
+    static void preload(Block block) {
+        for (Declaration dec : block.getDecList()) {
+            NameDef nameDef = dec.getNameDef();
+            Dimension dim = nameDef.getDimension();
+            if (nameDef.getType() == Type.IMAGE && dec.getInitializer() instanceof StringLitExpr source) {
+                if (dim == null) {
+                    FileURLIO.preload(source.getValue());
+                }
+                else if (literalValue(dim.getWidth()) != null && literalValue(dim.getHeight()) != null) {
+                    FileURLIO.preload(source.getValue(), literalValue(dim.getWidth()), literalValue(dim.getHeight()));
+                }
+            }
+        }
+        for (Statement statement : block.getStatementList()) {
+            if (statement instanceof AssignmentStatement assignment && assignment.getE() instanceof StringLitExpr source
+                    && assignment.getLv().getlValueType() == Type.IMAGE && assignment.getLv().getPixelSelector() == null) {
+                FileURLIO.preload(source.getValue());
+            }
+            else if (statement instanceof WhileStatement whileStatement) {
+                preload(whileStatement.getBlock());
+            }
+        }
+    }
+
+    /** The value of a number literal, or null if expr is not one */
+    static Integer literalValue(Expr expr) {
+        if (expr instanceof NumLitExpr num) {
+            return num.getValue();
+        }
+        return expr instanceof ZExpr ? 255 : null;
+    }
+}
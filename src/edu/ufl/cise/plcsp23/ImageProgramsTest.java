@@ -0,0 +1,221 @@
+package edu.ufl.cise.plcsp23;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.file.Path;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import edu.ufl.cise.plcsp23.ast.AST;
+import edu.ufl.cise.plcsp23.ast.Program;
+import edu.ufl.cise.plcsp23.javaCompilerClassLoader.DynamicClassLoader;
+import edu.ufl.cise.plcsp23.javaCompilerClassLoader.DynamicCompiler;
+import edu.ufl.cise.plcsp23.runtime.FileURLIO;
+import edu.ufl.cise.plcsp23.runtime.ImageCache;
+import edu.ufl.cise.plcsp23.runtime.ImageOps;
+import edu.ufl.cise.plcsp23.runtime.ImageOps.OP;
+import edu.ufl.cise.plcsp23.runtime.ImagePool;
+import edu.ufl.cise.plcsp23.runtime.PLCRuntimeException;
+
+/** Runs programs on images and compares their results with the ImageOps calls they stand for */
+class ImageProgramsTest {
+
+	@TempDir
+	Path dir;
+
+	String first;
+	String second;
+
+	@BeforeEach
+	void images() throws Exception {
+		first = write("first.png", 40, 30, 0);
+		second = write("second.png", 40, 30, 99);
+	}
+
+	@AfterEach
+	void reset() {
+		ImageOps.setLazy(false);
+		ImagePool.clear();
+		ImageCache.clear();
+		ImageCache.resetStatistics();
+	}
+
+	String write(String name, int w, int h, int seed) throws Exception {
+		BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < h; y++) {
+			for (int x = 0; x < w; x++) {
+				image.setRGB(x, y, (x * 5 + seed) << 16 | (y * 7 + seed) << 8 | (x ^ y) * 3);
+			}
+		}
+		File file = dir.resolve(name).toFile();
+		ImageIO.write(image, "png", file);
+		return file.getPath();
+	}
+
+	Object genCodeAndRun(String input, Object... params) throws Exception {
+		return compileAndRun(input, false, params);
+	}
+
+	/** Like genCodeAndRun, preloading the program's literal images while it is compiled */
+	Object preloadAndRun(String input, Object... params) throws Exception {
+		return compileAndRun(input, true, params);
+	}
+
+	Object compileAndRun(String input, boolean preload, Object... params) throws Exception {
+		AST ast = CompilerComponentFactory.makeParser(input).parse();
+		ast.visit(CompilerComponentFactory.makeTypeChecker(), null);
+		String name = ((Program) ast).getIdent().getName();
+		String code = (String) ast.visit(CompilerComponentFactory.makeCodeGenerator(""), null);
+		if (preload) {
+			ImagePreloader.preload((Program) ast);
+		}
+		byte[] byteCode = DynamicCompiler.compile(name, code);
+		return DynamicClassLoader.loadClassAndRunMethod(byteCode, name, "apply", params);
+	}
+
+	static void assertSameImage(BufferedImage expected, BufferedImage actual) {
+		assertArrayEquals(ImageOps.getRGBPixels(expected), ImageOps.getRGBPixels(actual));
+	}
+
+	@Test
+	void temporariesDoNotChangeVariables() throws Exception {
+		String input = """
+				image f(string s, string t) {
+				image[40,30] one = s.
+				image[40,30] two = t.
+				image sum = (one + two) * 2 - one:red.
+				image dif = one - (two / 3 + one:grn).
+				int eq = (one + two) == (two + one).
+				:sum + dif * eq + one + two.
+				}
+				""";
+		BufferedImage a = FileURLIO.readImage(first, 40, 30);
+		BufferedImage b = FileURLIO.readImage(second, 40, 30);
+		BufferedImage c = ImageOps.binaryImageImageOp(OP.MINUS,
+				ImageOps.binaryImageScalarOp(OP.TIMES, ImageOps.binaryImageImageOp(OP.PLUS, a, b), 2),
+				ImageOps.extractRed(a));
+		BufferedImage d = ImageOps.binaryImageImageOp(OP.MINUS, a,
+				ImageOps.binaryImageImageOp(OP.PLUS, ImageOps.binaryImageScalarOp(OP.DIV, b, 3), ImageOps.extractGrn(a)));
+		BufferedImage expected = ImageOps.binaryImageImageOp(OP.PLUS,
+				ImageOps.binaryImageImageOp(OP.PLUS,
+						ImageOps.binaryImageImageOp(OP.PLUS, c, ImageOps.binaryImageScalarOp(OP.TIMES, d, 1)), a),
+				b);
+		for (int i = 0; i < 3; i++) { // later runs take their images from the pool
+			assertSameImage(expected, (BufferedImage) genCodeAndRun(input, first, second));
+		}
+	}
+
+	@Test
+	void declaredTemporariesAreNotShared() throws Exception {
+		String input = """
+				image f(string s) {
+				image[40,30] one = s.
+				image two = one / 2.
+				image half = one / 2.
+				image dif = two + half - half.
+				two = two + half.
+				:two - half + dif.
+				}
+				""";
+		BufferedImage half = ImageOps.binaryImageScalarOp(OP.DIV, FileURLIO.readImage(first, 40, 30), 2);
+		BufferedImage two = ImageOps.binaryImageImageOp(OP.PLUS, half, half);
+		BufferedImage expected = ImageOps.binaryImageImageOp(OP.PLUS, ImageOps.binaryImageImageOp(OP.MINUS, two, half),
+				half);
+		assertSameImage(expected, (BufferedImage) genCodeAndRun(input, first));
+
+		String resized = """
+				image f(string s, int size) {
+				image[40,30] one = s.
+				image[size,size] dif = one / 2 + one.
+				:dif.
+				}
+				""";
+		BufferedImage sum = ImageOps.binaryImageImageOp(OP.PLUS, half, FileURLIO.readImage(first, 40, 30));
+		assertSameImage(ImageOps.copyAndResize(sum, 20, 20), (BufferedImage) genCodeAndRun(resized, first, 20));
+	}
+
+	@Test
+	void lazyProgramsGiveTheEagerResults() throws Exception {
+		String input = """
+				image f(string s, string t) {
+				image[40,30] one = s.
+				image[40,30] two = t.
+				image sum = (one + two) * 2 - one:red.
+				int eq = (one + two) == (two + one).
+				one = one / 2 + two:blu.
+				two[x,y] = sum[x,y] + one[y,x].
+				:(sum - two) * eq + one.
+				}
+				""";
+		BufferedImage expected = (BufferedImage) genCodeAndRun(input, first, second);
+		ImageOps.setLazy(true);
+		for (int i = 0; i < 3; i++) {
+			assertSameImage(expected, ImageOps.materialize((BufferedImage) genCodeAndRun(input, first, second)));
+		}
+	}
+
+	@Test
+	void preloadedLiteralsAreReadFromTheCache() throws Exception {
+		String input = """
+				image f(int size) {
+				image one = "%1$s".
+				image[40,30] two = "%2$s".
+				image[size,30] three = "%1$s".
+				int i = 0.
+				while (i < 2) {
+				one = "%2$s".
+				i = i + 1.
+				}.
+				:one + two + three.
+				}
+				""".formatted(first, second);
+		BufferedImage expected = (BufferedImage) genCodeAndRun(input, 40);
+		ImageCache.clear();
+		ImageCache.resetStatistics();
+		assertSameImage(expected, (BufferedImage) preloadAndRun(input, 40));
+		// only the three preloads and the read of three, which has no literal size, missed
+		assertEquals(4, ImageCache.misses());
+		assertEquals(4, ImageCache.hits());
+	}
+
+	@Test
+	void generatingCodeReadsNoImages() throws Exception {
+		String input = """
+				image f() {
+				image one = "%s".
+				:one.
+				}
+				""".formatted(first);
+		AST ast = CompilerComponentFactory.makeParser(input).parse();
+		ast.visit(CompilerComponentFactory.makeTypeChecker(), null);
+		ast.visit(CompilerComponentFactory.makeCodeGenerator(""), null);
+		assertEquals(0, ImageCache.size());
+		ImagePreloader.preload((Program) ast);
+		FileURLIO.readImage(first);
+		assertEquals(1, ImageCache.hits());
+	}
+
+	@Test
+	void unreadablePreloadsFailWhenTheProgramRuns() throws Exception {
+		String input = """
+				image f() {
+				image one = "%s".
+				:one.
+				}
+				""".formatted(dir.resolve("missing.png"));
+		InvocationTargetException e = assertThrows(InvocationTargetException.class, () -> preloadAndRun(input));
+		assertInstanceOf(PLCRuntimeException.class, e.getCause());
+	}
+
+}
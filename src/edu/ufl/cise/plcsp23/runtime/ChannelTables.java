@@ -0,0 +1,87 @@
+package edu.ufl.cise.plcsp23.runtime;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import edu.ufl.cise.plcsp23.runtime.ImageOps.OP;
+
+/**
+ * Lookup tables for applying an op with a fixed scalar to color components. Since a
+ * component has only 256 possible values, the table for (op, scalar) holds every
+ * possible result, and applying it to a pixel takes three lookups instead of
+ * three divisions or multiplications and clamps.
+ *
+ * A table is an int[768]: entries [0,256) hold the red result shifted into place,
+ * [256,512) the green one and [512,768) the blue one, so the looked up values only
+ * have to be or-ed together.
+ *
+ * Tables for scalars in [-CACHED_SCALARS, CACHED_SCALARS) are built on first use and
+ * kept, so programs that apply the same constants to many images only build them
+ * once. Tables for other scalars are built on every call.
+ */
+class ChannelTables {
+
+	static final int CACHED_SCALARS = 1024;
+
+	/** The tables of op and scalar are at op.ordinal() * 2 * CACHED_SCALARS + scalar + CACHED_SCALARS */
+	private static final AtomicReferenceArray<int[]> cache = new AtomicReferenceArray<>(
+			OP.values().length * 2 * CACHED_SCALARS);
+
+	private static final LongAdder builds = new LongAdder();
+
+	static boolean isCached(int scalar) {
+		return -CACHED_SCALARS <= scalar && scalar < CACHED_SCALARS;
+	}
+
+	/**
+	 * Returns the table for op and scalar. Throws an ArithmeticException for DIV and
+	 * MOD by zero.
+	 */
+	static int[] get(OP op, int scalar) {
+		if (!isCached(scalar)) {
+			return build(op, scalar);
+		}
+		int index = op.ordinal() * 2 * CACHED_SCALARS + scalar + CACHED_SCALARS;
+		int[] table = cache.get(index);
+		if (table == null) {
+			// two threads may both build the table, which is harmless
+			table = build(op, scalar);
+			cache.set(index, table);
+		}
+		return table;
+	}
+
+	/**
+	 * Returns the pixel obtained by looking up each component of pixel in table. The
+	 * result does not have the alpha value set.
+	 */
+	static int apply(int[] table, int pixel) {
+		return table[(pixel >>> PixelOps.SHIFT_RED) & 0xff] | table[256 + ((pixel >>> PixelOps.SHIFT_GRN) & 0xff)]
+				| table[512 + (pixel & 0xff)];
+	}
+
+	/** Number of tables built so far */
+	static long builds() {
+		return builds.sum();
+	}
+
+	private static int[] build(OP op, int scalar) {
+		builds.increment();
+		int[] table = new int[768];
+		for (int c = 0; c < 256; c++) {
+			int value = switch (op) {
+			case PLUS -> c + scalar;
+			case MINUS -> c - scalar;
+			case TIMES -> c * scalar;
+			case DIV -> c / scalar;
+			case MOD -> c % scalar;
+			};
+			int truncated = PixelOps.blu(PixelOps.pack(0, 0, value));
+			table[c] = truncated << PixelOps.SHIFT_RED;
+			table[256 + c] = truncated << PixelOps.SHIFT_GRN;
+			table[512 + c] = truncated << PixelOps.SHIFT_BLU;
+		}
+		return table;
+	}
+
+}
@@ -0,0 +1,111 @@
+package edu.ufl.cise.plcsp23.runtime;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import edu.ufl.cise.plcsp23.runtime.ImageOps.OP;
+
+class ChannelTablesTest {
+
+	static final int[] SCALARS = { -5000, -1025, -1024, -256, -255, -7, -1, 1, 2, 3, 7, 100, 255, 256, 1023, 1024,
+			5000 };
+
+	@AfterEach
+	void reset() {
+		ImageKernels.setParallelThreshold(1 << 18);
+		ImageKernels.setPool(ForkJoinPool.commonPool());
+	}
+
+	/** The component computation of the reference implementation */
+	static int expected(OP op, int pixel, int scalar) {
+		int red = PixelOps.red(pixel);
+		int grn = PixelOps.grn(pixel);
+		int blu = PixelOps.blu(pixel);
+		return switch (op) {
+		case PLUS -> PixelOps.pack(red + scalar, grn + scalar, blu + scalar);
+		case MINUS -> PixelOps.pack(red - scalar, grn - scalar, blu - scalar);
+		case TIMES -> PixelOps.pack(red * scalar, grn * scalar, blu * scalar);
+		case DIV -> PixelOps.pack(red / scalar, grn / scalar, blu / scalar);
+		case MOD -> PixelOps.pack(red % scalar, grn % scalar, blu % scalar);
+		};
+	}
+
+	@Test
+	void tablesGiveEveryComponentResult() {
+		for (OP op : OP.values()) {
+			for (int scalar : SCALARS) {
+				int[] table = ChannelTables.get(op, scalar);
+				for (int c = 0; c < 256; c++) {
+					int pixel = PixelOps.pack(c, 255 - c, c ^ 0x5a);
+					assertEquals(expected(op, pixel, scalar), ChannelTables.apply(table, pixel) | PixelOps.SELECT_ALPHA,
+							op + " " + scalar + " " + c);
+				}
+			}
+		}
+	}
+
+	@Test
+	void cachedTablesAreBuiltOnce() {
+		assertSame(ChannelTables.get(OP.DIV, 3), ChannelTables.get(OP.DIV, 3));
+		assertSame(ChannelTables.get(OP.PLUS, -ChannelTables.CACHED_SCALARS),
+				ChannelTables.get(OP.PLUS, -ChannelTables.CACHED_SCALARS));
+		assertEquals(false, ChannelTables.isCached(ChannelTables.CACHED_SCALARS));
+	}
+
+	@Test
+	void parallelOpsBuildTheirTableOnce() {
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			ImageKernels.setPool(pool);
+			ImageKernels.setParallelThreshold(1);
+			BufferedImage image = ImageKernelsTest.random(640, 120, BufferedImage.TYPE_INT_RGB, new Random(6));
+			for (OP op : new OP[] { OP.DIV, OP.MOD }) {
+				long builds = ChannelTables.builds();
+				BufferedImage result = ImageOps.binaryImageScalarOp(op, image, 5000);
+				assertEquals(builds + 1, ChannelTables.builds(), op.toString());
+				assertEquals(expected(op, image.getRGB(639, 119), 5000), result.getRGB(639, 119), op.toString());
+			}
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	void divisionByZeroThrows() {
+		assertThrows(ArithmeticException.class, () -> ChannelTables.get(OP.DIV, 0));
+		assertThrows(ArithmeticException.class, () -> ChannelTables.get(OP.MOD, 0));
+	}
+
+	@Test
+	void imageScalarOpsMatchTheReference() {
+		Random random = new Random(5);
+		BufferedImage image = new BufferedImage(61, 17, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < image.getHeight(); y++) {
+			for (int x = 0; x < image.getWidth(); x++) {
+				image.setRGB(x, y, random.nextInt());
+			}
+		}
+		for (OP op : OP.values()) {
+			for (int scalar : SCALARS) {
+				BufferedImage result = ImageOps.binaryImageScalarOp(op, image, scalar);
+				for (int y = 0; y < image.getHeight(); y++) {
+					for (int x = 0; x < image.getWidth(); x++) {
+						assertEquals(expected(op, image.getRGB(x, y), scalar), result.getRGB(x, y), op + " " + scalar);
+					}
+				}
+				assertEquals(expected(op, image.getRGB(3, 4), scalar),
+						ImageOps.binaryPackedPixelScalarOp(op, image.getRGB(3, 4), scalar), op + " " + scalar);
+			}
+		}
+	}
+
+}
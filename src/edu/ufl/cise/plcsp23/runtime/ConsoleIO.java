@@ -49,8 +49,17 @@ public class ConsoleIO {
 		console.println(Integer.toHexString(val));
 	}
 	
+	/**
+	 * Shows image on the screen, or writes it to a file if the ImageSink has a
+	 * template
+	 */
 	public 	static void write(BufferedImage image) {
-		displayImageOnScreen(image);
+		if (ImageSink.isEnabled()) {
+			ImageSink.write(image);
+		}
+		else {
+			displayImageOnScreen(image);
+		}
 	}
 
 	
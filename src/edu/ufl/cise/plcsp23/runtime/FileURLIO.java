@@ -1,5 +1,6 @@
 package edu.ufl.cise.plcsp23.runtime;
 
+import java.awt.Rectangle;
 import java.awt.geom.AffineTransform;
 import java.awt.image.AffineTransformOp;
 import java.awt.image.BufferedImage;
@@ -10,33 +11,140 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.io.UncheckedIOException;
 import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.UnaryOperator;
 
+import javax.imageio.IIOException;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
 
 public class FileURLIO {
 
+	/**
+	 * How readImage(source, w, h) may decode an image at a lower resolution than it
+	 * has. EXACT, the default, only does so when the result is the same as resizing the
+	 * fully decoded image: in NEAREST resize mode, the source pixels that resizing reads
+	 * are often every n-th pixel of a part of the image, which the reader can decode
+	 * alone. APPROXIMATE additionally decodes every k-th pixel of an image that is at
+	 * least twice as large as needed (four times in the smooth resize modes) and
+	 * resizes that instead, which is much faster for thumbnails of large images but
+	 * picks slightly different pixels.
+	 */
+	public enum Subsampling {
+		OFF, EXACT, APPROXIMATE
+	}
+
+	private static volatile Subsampling subsampling = Subsampling
+			.valueOf(System.getProperty("plc.subsample", Subsampling.EXACT.name()));
+
+	private static volatile boolean normalized = Boolean.parseBoolean(System.getProperty("plc.normalize", "true"));
+
+	private static final LongAdder directDecodes = new LongAdder();
+	private static final LongAdder conversions = new LongAdder();
+	private static final LongAdder conversionNanos = new LongAdder();
+	private static final LongAdder subsampledDecodes = new LongAdder();
+
+	/** Preloads that have not finished yet, by variant and source */
+	private static final ConcurrentHashMap<String, CompletableFuture<Void>> preloads = new ConcurrentHashMap<>();
+
+	/** Resolvers by scheme, see setResolver */
+	private static final ConcurrentHashMap<String, ImageResolver> resolvers = new ConcurrentHashMap<>();
+	static {
+		resolvers.put("file", FileURLIO::readFile);
+		resolvers.put("http", HttpImages.RESOLVER);
+		resolvers.put("https", HttpImages.RESOLVER);
+		resolvers.put("classpath", FileURLIO::readClasspath);
+		resolvers.put("mem", FileURLIO::readMemory);
+	}
+
+	/** Images published for "mem" sources */
+	private static final ConcurrentHashMap<String, BufferedImage> published = new ConcurrentHashMap<>();
+
+	public static void setSubsampling(Subsampling newSubsampling) {
+		subsampling = newSubsampling;
+	}
+
+	public static Subsampling getSubsampling() {
+		return subsampling;
+	}
+
+	/**
+	 * Turns normalization of decoded images on or off. When it is on, which is the
+	 * default, every image read is a TYPE_INT_RGB image: it is decoded straight into
+	 * one if the reader supports it, and converted once after decoding otherwise, so
+	 * the ImageOps kernels can work on its pixels directly. The alpha values of the
+	 * image are dropped, as they are by every ImageOps operation.
+	 */
+	public static void setNormalized(boolean on) {
+		normalized = on;
+	}
+
+	public static boolean isNormalized() {
+		return normalized;
+	}
+
+	/** Number of images decoded straight into a TYPE_INT_RGB image */
+	public static long directDecodes() {
+		return directDecodes.sum();
+	}
+
+	/** Number of decoded images converted to TYPE_INT_RGB */
+	public static long conversions() {
+		return conversions.sum();
+	}
+
+	/** Total time spent converting decoded images to TYPE_INT_RGB, in nanoseconds */
+	public static long conversionNanos() {
+		return conversionNanos.sum();
+	}
+
+	/** Number of images decoded at a lower resolution by readImage(source, w, h) */
+	public static long subsampledDecodes() {
+		return subsampledDecodes.sum();
+	}
+
+	public static void resetStatistics() {
+		directDecodes.reset();
+		conversions.reset();
+		conversionNanos.reset();
+		subsampledDecodes.reset();
+	}
+
 	/**
 	 * Reads the image from the indicated URL or filename. If the given source
 	 * is not a valid URL, it is assumed to be a filename.
 	 * 
+	 * The source is read by the ImageResolver for its scheme, see setResolver.
+	 * Images read before are taken from the ImageCache if their source has not
+	 * changed since.
+	 * 
 	 * @param source
 	 * @return BufferedImage 
 	 */
 	public static BufferedImage readImage(String source) {
-		BufferedImage image;
-		try {
-			URL url = new URL(source);
-			image = readFromURL(url);
-		} catch (MalformedURLException e) {// wasn't a URL, maybe it is a file
-			image = readFromFile(source);
-		}
-		return image;
+		return read(source, whole());
 	}
 	
 	/**
@@ -44,6 +152,8 @@ public class FileURLIO {
 	 * is not a valid URL, it assumes it is a file.
 	 * 
 	 * The image is resized to the size indicated by w and h, or kept in original size if w or h is null.
+	 * Only the pixels needed for the resized image are decoded when possible, see
+	 * Subsampling.
 	 * 
 	 * @param source
 	 *            String with source or filename on local filesystem.
@@ -54,18 +164,285 @@ public class FileURLIO {
 	 * @return BufferedImage representing the indicated image.
 	 */
 	public static BufferedImage readImage(String source, Integer w, Integer h) {
-		BufferedImage image;
+		return read(source, w == null || h == null ? whole() : resized(w, h));
+	}
+
+	/**
+	 * Reads the part of the image from the indicated URL or filename that lies in
+	 * the rectangle with its upper left corner at (x, y) and the given width and
+	 * height. Only the pixels in the rectangle are decoded, and readers of tiled
+	 * formats like TIFF only decode the tiles that overlap it, so small parts of very
+	 * large images can be read quickly. The parts of the rectangle outside the image
+	 * are left out of the result.
+	 * 
+	 * Throws a PLCRuntimeException if the rectangle does not overlap the image.
+	 */
+	public static BufferedImage readImageRegion(String source, int x, int y, int width, int height) {
+		Rectangle region = new Rectangle(x, y, width, height);
+		return read(source, new Request(variant("region " + x + "," + y + " " + width + "x" + height),
+				reader -> decodeRegion(reader, region), image -> copyRegion(image, region)));
+	}
+
+	/**
+	 * Starts reading the image from the indicated URL or filename, resized to w by h
+	 * unless w or h is null, like readImage(source, w, h). The future fails with the
+	 * PLCRuntimeException readImage would have thrown. The image is read with the
+	 * resolver's readAsync, so "http" and "https" sources hold no thread while they
+	 * wait for the server.
+	 */
+	public static CompletableFuture<BufferedImage> readImageAsync(String source, Integer w, Integer h) {
+		Request request = w == null || h == null ? whole() : resized(w, h);
+		Executor executor = ImageLoad.executor(source);
+		CompletableFuture<Void> preload = preloads.get(request.variant() + " " + source);
+		CompletableFuture<BufferedImage> image = preload == null ? loadAsync(source, request, executor)
+				: preload.thenCompose(v -> loadAsync(source, request, executor));
+		return image.handle((i, e) -> {
+			if (e == null) {
+				return i;
+			}
+			Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+			if (cause instanceof UncheckedIOException unchecked) {
+				cause = unchecked.getCause();
+			}
+			if (cause instanceof IOException) {
+				throw new PLCRuntimeException(message(cause, source), cause);
+			}
+			throw cause instanceof RuntimeException runtime ? runtime : new CompletionException(cause);
+		});
+	}
+
+	/**
+	 * Starts reading the image from the indicated URL or filename into the
+	 * ImageCache in the background, so that a later readImage(source) finds it
+	 * there. A readImage that comes while the image is still being read waits for
+	 * it. Errors are ignored; readImage will report them. Does nothing if the cache
+	 * is off.
+	 */
+	public static void preload(String source) {
+		preload(source, whole());
+	}
+
+	/** Like preload(source), for a later readImage(source, w, h) */
+	public static void preload(String source, int w, int h) {
+		preload(source, resized(w, h));
+	}
+
+	private static void preload(String source, Request request) {
+		if (!ImageCache.isEnabled()) {
+			return;
+		}
+		String key = request.variant() + " " + source;
+		CompletableFuture<Void> preload = new CompletableFuture<>();
+		if (preloads.putIfAbsent(key, preload) != null) {
+			return;
+		}
+		ImageLoad.executor(source).execute(() -> {
+			try {
+				load(source, request);
+			} catch (RuntimeException e) {// reported when the image is read
+			} finally {
+				preloads.remove(key, preload);
+				preload.complete(null);
+			}
+		});
+	}
+
+	/**
+	 * Sets the resolver for the sources with the given scheme, like "http" for the
+	 * sources that start with "http:", replacing the one it had. A null resolver
+	 * removes it. The resolver for "file" also reads the sources without a scheme.
+	 */
+	public static void setResolver(String scheme, ImageResolver resolver) {
+		if (resolver == null) {
+			resolvers.remove(scheme.toLowerCase(Locale.ROOT));
+		}
+		else {
+			resolvers.put(scheme.toLowerCase(Locale.ROOT), resolver);
+		}
+	}
+
+	/**
+	 * Makes image available as the source "mem:" + name. Reading the whole image
+	 * returns the image itself rather than a copy, so a program that changes the
+	 * image it read changes the published image.
+	 */
+	public static void publish(String name, BufferedImage image) {
+		published.put(name, image);
+	}
+
+	/** Removes the image published under name, and returns it, or null if there was none */
+	public static BufferedImage unpublish(String name) {
+		return published.remove(name);
+	}
+
+	/**
+	 * Maps the raw image (see below) in the given file, or "file" URL, as an
+	 * OffHeapImage without copying its pixels. Changes to the image are written to the
+	 * file.
+	 * 
+	 * Raw images are files with the extension .plcimg, which hold the pixels the way
+	 * the runtime does. readImage reads them without decoding, and writeImage writes
+	 * them when given a filename with that extension.
+	 */
+	public static OffHeapImage mapImage(String filename) {
 		try {
-			URL url = new URL(source);
-			image = readFromURL(url);
+			return RawImage.map(fileFor(filename).toPath());
+		} catch (IOException e) {
+			throw new PLCRuntimeException(message(e, filename), e);
+		}
+	}
 
-		} catch (MalformedURLException e) {// wasn't a URL, maybe it is a file
-			image = readFromFile(source);
+	/**
+	 * Writes image to the given file, or "file" URL, in the format given by its
+	 * extension: a raw image for .plcimg (see mapImage), a binary PPM image for .ppm
+	 * and .pnm, a binary PGM image of the luma of the pixels for .pgm, and otherwise
+	 * any format ImageIO can write, like png or jpg. Replaces the file if it exists.
+	 * 
+	 * Throws a PLCRuntimeException if this fails
+	 */
+	public static void writeImage(BufferedImage image, String filename) {
+		File f = fileFor(filename);
+		try {
+			if (RawImage.isRaw(f.getName())) {
+				RawImage.write(image, f.toPath());
+				return;
+			}
+			if (PnmImage.isPnm(f.getName())) {
+				PnmImage.write(image, f.toPath(), f.getName().toLowerCase(Locale.ROOT).endsWith(".pgm"));
+				return;
+			}
+			String format = f.getName().substring(f.getName().lastIndexOf('.') + 1);
+			if (!ImageIO.write(image, format, f)) {
+				throw new IIOException("No writer for format " + format + "!");
+			}
+		} catch (IOException e) {
+			throw new PLCRuntimeException(message(e, filename), e);
 		}
-		if (w==null || h == null) {
-			return image;
+	}
+
+	/**
+	 * Writes an off-heap image to the given file, or "file" URL. A raw image is written
+	 * from the image's pixels in a single transfer; other formats are written from a
+	 * copy of the image on the heap.
+	 */
+	public static void writeImage(OffHeapImage image, String filename) {
+		File f = fileFor(filename);
+		if (!RawImage.isRaw(f.getName())) {
+			writeImage(image.toBufferedImage(), filename);
+			return;
+		}
+		try {
+			RawImage.write(image, f.toPath());
+		} catch (IOException e) {
+			throw new PLCRuntimeException(message(e, filename), e);
+		}
+	}
+
+	/** Decodes the first image of a reader whose input has been set */
+	private interface Decoder {
+		BufferedImage decode(ImageReader reader) throws IOException;
+	}
+
+	private record Request(String variant, Decoder decoder, UnaryOperator<BufferedImage> decoded)
+			implements ImageResolver.Request {
+
+		@Override
+		public BufferedImage decode(ImageInputStream stream) throws IOException {
+			return read(stream, this);
+		}
+
+		@Override
+		public BufferedImage apply(BufferedImage image) {
+			return decoded.apply(image);
 		}
-		return ImageOps.copyAndResize(image, w, h);
+	}
+
+	private static Request whole() {
+		return new Request(variant(null), reader -> decode(reader, null, null), image -> image);
+	}
+
+	private static Request resized(int w, int h) {
+		return new Request(variant("resize " + w + "x" + h + " " + Resize.getMode() + " " + subsampling),
+				reader -> decode(reader, w, h), image -> ImageOps.copyAndResize(image, w, h));
+	}
+
+	/**
+	 * Describes how an image is read, for the ImageCache: the operation applied to the
+	 * image, or null if it is read whole, and the settings that change its pixels.
+	 */
+	private static String variant(String operation) {
+		return (operation == null ? "whole" : operation) + (normalized ? "" : " as decoded");
+	}
+
+	private static BufferedImage read(String source, Request request) {
+		CompletableFuture<Void> preload = preloads.get(request.variant() + " " + source);
+		if (preload != null) { // wait for it, and take the image from the cache
+			preload.join();
+		}
+		return load(source, request);
+	}
+
+	/** Reads source with the resolver for its scheme */
+	private static BufferedImage load(String source, Request request) {
+		String scheme = scheme(source);
+		ImageResolver resolver = resolvers.get(scheme == null ? "file" : scheme);
+		try {
+			if (resolver == null) {
+				try {
+					return readURL(new URL(source), request);
+				} catch (MalformedURLException e) {// wasn't a URL, maybe it is a file
+					resolver = resolvers.getOrDefault("file", FileURLIO::readFile);
+				}
+			}
+			return resolver.read(source, request);
+		} catch (IOException e) {
+			throw new PLCRuntimeException(message(e, source), e);
+		} catch (UncheckedIOException e) {
+			throw new PLCRuntimeException(message(e.getCause(), source), e.getCause());
+		}
+	}
+
+	/**
+	 * The message of a PLCRuntimeException for e, which happened reading or writing
+	 * source. Exceptions without a message are described by their class.
+	 */
+	static String message(Throwable e, String source) {
+		return Objects.toString(e.getMessage(), e.getClass().getSimpleName()) + " " + source;
+	}
+
+	/** Starts reading source with the resolver for its scheme */
+	private static CompletableFuture<BufferedImage> loadAsync(String source, Request request, Executor executor) {
+		String scheme = scheme(source);
+		ImageResolver resolver = resolvers.get(scheme == null ? "file" : scheme);
+		if (resolver == null) {
+			return CompletableFuture.supplyAsync(() -> load(source, request), executor);
+		}
+		return resolver.readAsync(source, request, executor);
+	}
+
+	/**
+	 * Returns the scheme of source in lower case, or null if it does not start with
+	 * one. A single letter before the colon is taken to be a drive letter.
+	 */
+	private static String scheme(String source) {
+		int colon = source.indexOf(':');
+		if (colon < 2) {
+			return null;
+		}
+		for (int i = 0; i < colon; i++) {
+			char c = source.charAt(i);
+			boolean letter = c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z';
+			if (!letter && (i == 0 || !(c >= '0' && c <= '9' || c == '+' || c == '-' || c == '.'))) {
+				return null;
+			}
+		}
+		return source.substring(0, colon).toLowerCase(Locale.ROOT);
+	}
+
+	/** True if source is read over the network, or by a resolver that may be */
+	static boolean isRemote(String source) {
+		String scheme = scheme(source);
+		return scheme != null && !scheme.equals("file") && !scheme.equals("classpath") && !scheme.equals("mem");
 	}
 	
 	/**
@@ -77,12 +454,49 @@ public class FileURLIO {
 	 * @return BufferedImage representing the indicated image
 	 */
 	static BufferedImage readFromURL(URL url) {
-		try {
-//			System.err.println("reading image from url:  " + url);
-			return ImageIO.read(url);
-		} catch (IOException e) {
-			throw new PLCRuntimeException(e);
+		return load(url.toString(), whole());
+	}
+
+	/** Reads the image at a URL that none of the resolvers reads */
+	private static BufferedImage readURL(URL url, Request request) throws IOException {
+		return read(ImageIO.createImageInputStream(url.openStream()), request);
+	}
+
+	/**
+	 * Reads a "classpath" source, the resource with the name after the colon. Images
+	 * are cached, and are valid as long as the modification time and size the
+	 * resource reports stay the same.
+	 */
+	private static BufferedImage readClasspath(String source, ImageResolver.Request request) throws IOException {
+		String name = source.substring(source.indexOf(':') + 1);
+		name = name.startsWith("/") ? name.substring(1) : name;
+		ClassLoader loader = Thread.currentThread().getContextClassLoader();
+		URL resource = (loader != null ? loader : FileURLIO.class.getClassLoader()).getResource(name);
+		if (resource == null) {
+			throw new IIOException("Can't find resource on the classpath!");
+		}
+		URLConnection connection = resource.openConnection();
+		ImageCache.Key key = new ImageCache.Key(resource.toString(), request.variant());
+		String validator = connection.getLastModified() + " " + connection.getContentLengthLong();
+		BufferedImage image = ImageCache.get(key, validator);
+		if (image != null) {
+			return image;
 		}
+		image = request.decode(ImageIO.createImageInputStream(connection.getInputStream()));
+		if (image != null) {
+			ImageCache.put(key, validator, image);
+		}
+		return image;
+	}
+
+	/** Reads a "mem" source, an image published under the name after the colon */
+	private static BufferedImage readMemory(String source, ImageResolver.Request request) throws IOException {
+		String name = source.substring(source.indexOf(':') + 1);
+		BufferedImage image = published.get(name);
+		if (image == null) {
+			throw new IIOException("No image is published as " + name + "!");
+		}
+		return request.apply(image);
 	}
 	
 	/**
@@ -94,14 +508,249 @@ public class FileURLIO {
 	 * @return
 	 */
 	static BufferedImage readFromFile(String filename) {
-		File f = new File(filename);
-		BufferedImage bi;
 		try {
-			bi = ImageIO.read(f);
+			return readFile(filename, whole());
 		} catch (IOException e) {
-			throw new PLCRuntimeException(e.getMessage() + " " + filename, e);
+			throw new PLCRuntimeException(message(e, filename), e);
+		}
+	}
+
+	/**
+	 * Reads a file, given by its name or a "file" URL. Images are cached under the
+	 * canonical path of the file, and are valid as long as the modification time and
+	 * size of the file stay the same. Raw images are read without decoding them and
+	 * are not cached. PPM and PGM files are read through a FileChannel.
+	 */
+	private static BufferedImage readFile(String source, ImageResolver.Request request) throws IOException {
+		File f = fileFor(source);
+		if (!f.canRead()) {
+			throw new IIOException("Can't read input file!");
+		}
+		Path path = f.toPath().toRealPath();
+		if (RawImage.isRaw(f.getName())) { // nothing to decode, and as fast to read as a cached copy
+			return request.apply(RawImage.read(path));
+		}
+		BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+		ImageCache.Key key = new ImageCache.Key(path.toString(), request.variant());
+		String validator = attributes.lastModifiedTime() + " " + attributes.size();
+		BufferedImage bi = ImageCache.get(key, validator);
+		if (bi != null) {
+			return bi;
+		}
+		bi = PnmImage.isPnm(f.getName()) ? request.apply(PnmImage.read(path))
+				: request.decode(ImageIO.createImageInputStream(f));
+		if (bi != null) {
+			ImageCache.put(key, validator, bi);
 		}
 		return bi;
 	}
 
+	/** The file named by filename, or by a "file" URL */
+	private static File fileFor(String filename) {
+		return filename.startsWith("file:") ? fileOf(filename) : new File(filename);
+	}
+
+	/** The file of a "file" URL, or of the path after "file:" if it is not a valid URL */
+	private static File fileOf(String source) {
+		try {
+			return new File(new URI(source));
+		} catch (URISyntaxException | IllegalArgumentException e) {
+			return new File(source.substring("file:".length()));
+		}
+	}
+
+	/**
+	 * Decodes the first image in the given stream as requested and closes it, like
+	 * ImageIO.read. Binary PPM and PGM images, which ImageIO has no readers for, are
+	 * read with PnmImage. Returns null if no reader can decode the stream.
+	 */
+	private static BufferedImage read(ImageInputStream stream, Request request) throws IOException {
+		if (stream == null) {
+			throw new IIOException("Can't create an ImageInputStream!");
+		}
+		try (stream) {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+			if (!readers.hasNext()) {
+				return PnmImage.isPnm(stream) ? request.apply(PnmImage.read(stream)) : null;
+			}
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(stream, false, true);
+				return request.decoder.decode(reader);
+			} finally {
+				reader.dispose();
+			}
+		}
+	}
+
+	/**
+	 * Decodes the first image of reader and resizes it to w by h unless they are null.
+	 * Images too large to be held in the heap (see TiledImage.isLarge) are decoded
+	 * into a TiledImage a band at a time. Other images are normalized to TYPE_INT_RGB
+	 * if normalization is on.
+	 */
+	private static BufferedImage decode(ImageReader reader, Integer w, Integer h) throws IOException {
+		int width = reader.getWidth(0);
+		int height = reader.getHeight(0);
+		if (w != null && h != null) {
+			BufferedImage image = readSubsampled(reader, width, height, w, h);
+			if (image != null) {
+				return image;
+			}
+		}
+		BufferedImage image = TiledImage.isLarge(width, height) ? TiledImage.read(reader)
+				: decode(reader, reader.getDefaultReadParam());
+		return w == null || h == null ? image : ImageOps.copyAndResize(image, w, h);
+	}
+
+	/**
+	 * Returns a copy of the part of image that lies in region. Like decodeRegion, fails
+	 * with an IIOException, wrapped in an UncheckedIOException, if there is none.
+	 */
+	private static BufferedImage copyRegion(BufferedImage image, Rectangle region) {
+		Rectangle clipped = region.intersection(new Rectangle(image.getWidth(), image.getHeight()));
+		if (clipped.isEmpty()) {
+			throw new UncheckedIOException(new IIOException(outside(region)));
+		}
+		int w = clipped.width;
+		int h = clipped.height;
+		BufferedImage copy = ImageOps.makeImage(w, h);
+		copy.setRGB(0, 0, w, h, image.getRGB(clipped.x, clipped.y, w, h, null, 0, w), 0, w);
+		return copy;
+	}
+
+	private static String outside(Rectangle region) {
+		return "Region " + region.x + "," + region.y + " " + region.width + "x" + region.height + " is outside the image!";
+	}
+
+	/** Decodes the part of the first image of reader that lies in region */
+	private static BufferedImage decodeRegion(ImageReader reader, Rectangle region) throws IOException {
+		Rectangle clipped = region.intersection(new Rectangle(reader.getWidth(0), reader.getHeight(0)));
+		if (clipped.isEmpty()) {
+			throw new IIOException(outside(region));
+		}
+		if (TiledImage.isLarge(clipped.width, clipped.height)) {
+			return TiledImage.read(reader, clipped);
+		}
+		ImageReadParam param = reader.getDefaultReadParam();
+		param.setSourceRegion(clipped);
+		return decode(reader, param);
+	}
+
+	/** Decodes the first image with param, normalizing it if normalization is on */
+	private static BufferedImage decode(ImageReader reader, ImageReadParam param) throws IOException {
+		if (!normalized) {
+			return reader.read(0, param);
+		}
+		boolean direct = setIntRgbDestination(reader, param);
+		BufferedImage image = reader.read(0, param);
+		if (direct && image.getType() == BufferedImage.TYPE_INT_RGB) {
+			directDecodes.increment();
+			return image;
+		}
+		return normalize(image);
+	}
+
+	/**
+	 * Decodes only some of the pixels of the width by height image of reader and
+	 * resizes them to maxX by maxY, as allowed by the subsampling setting. Returns
+	 * null if the whole image has to be decoded.
+	 */
+	private static BufferedImage readSubsampled(ImageReader reader, int width, int height, int maxX, int maxY)
+			throws IOException {
+		Subsampling s = subsampling;
+		if (s == Subsampling.OFF || !normalized) {
+			return null;
+		}
+		ImageReadParam param = reader.getDefaultReadParam();
+		int[][] positions = Resize.nearestPositions(width, height, maxX, maxY);
+		if (positions != null) {
+			// decode every n-th pixel of the part of the image that contains all the
+			// positions, and pick the pixels at the positions from that
+			int[] columns = positions[0];
+			int[] rows = positions[1];
+			int periodX = period(columns);
+			int periodY = period(rows);
+			Rectangle region = new Rectangle(columns[0], rows[0], columns[columns.length - 1] - columns[0] + 1,
+					rows[rows.length - 1] - rows[0] + 1);
+			boolean smaller = periodX > 1 || periodY > 1 || region.width < width || region.height < height;
+			if (smaller && !TiledImage.isLarge((region.width - 1) / periodX + 1, (region.height - 1) / periodY + 1)) {
+				param.setSourceRegion(region);
+				param.setSourceSubsampling(periodX, periodY, 0, 0);
+				BufferedImage decoded = decode(reader, param);
+				subsampledDecodes.increment();
+				return Resize.pick(decoded, decodedPositions(columns, periodX), decodedPositions(rows, periodY));
+			}
+		}
+		if (s == Subsampling.APPROXIMATE) {
+			int period = Math.min(width / maxX, height / maxY);
+			if (Resize.getMode() != Resize.Mode.NEAREST) {
+				period /= 2; // keep enough pixels to interpolate or average between
+			}
+			if (period > 1 && !TiledImage.isLarge(width / period, height / period)) {
+				param.setSourceSubsampling(period, period, period / 2, period / 2);
+				BufferedImage decoded = decode(reader, param);
+				subsampledDecodes.increment();
+				return ImageOps.copyAndResize(decoded, maxX, maxY);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * The largest n such that all the given ascending positions are a multiple of n
+	 * apart
+	 */
+	private static int period(int[] positions) {
+		int period = 0;
+		for (int position : positions) {
+			period = gcd(period, position - positions[0]);
+		}
+		return Math.max(period, 1);
+	}
+
+	private static int gcd(int a, int b) {
+		return b == 0 ? a : gcd(b, a % b);
+	}
+
+	/**
+	 * The positions in an image decoded from every period-th pixel, starting at the
+	 * first position
+	 */
+	private static int[] decodedPositions(int[] positions, int period) {
+		int[] decoded = new int[positions.length];
+		for (int i = 0; i < positions.length; i++) {
+			decoded[i] = (positions[i] - positions[0]) / period;
+		}
+		return decoded;
+	}
+
+	/**
+	 * Makes param decode into a TYPE_INT_RGB image, if that is one of the types the
+	 * reader can decode the first image to. Returns false if it is not.
+	 */
+	private static boolean setIntRgbDestination(ImageReader reader, ImageReadParam param) throws IOException {
+		Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+		while (types.hasNext()) {
+			ImageTypeSpecifier type = types.next();
+			if (type.getBufferedImageType() == BufferedImage.TYPE_INT_RGB) {
+				param.setDestinationType(type);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** Converts a decoded image to TYPE_INT_RGB, counting the conversion */
+	private static BufferedImage normalize(BufferedImage image) {
+		if (image.getType() == BufferedImage.TYPE_INT_RGB) {
+			return image;
+		}
+		long start = System.nanoTime();
+		BufferedImage result = RgbConverter.toIntRgb(image);
+		conversionNanos.add(System.nanoTime() - start);
+		conversions.increment();
+		return result;
+	}
+
 }
@@ -0,0 +1,208 @@
+package edu.ufl.cise.plcsp23.runtime;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.net.ConnectException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.CompletionException;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class FileURLIOTest {
+
+	@TempDir
+	Path dir;
+
+	@AfterEach
+	void reset() {
+		FileURLIO.setSubsampling(FileURLIO.Subsampling.EXACT);
+		FileURLIO.setNormalized(true);
+		FileURLIO.setResolver("test", null);
+		FileURLIO.unpublish("test");
+		ImageCache.setEnabled(true);
+		ImageCache.clear();
+		ImageCache.resetStatistics();
+	}
+
+	/** An image with smooth areas and noise, so that misplaced pixels show */
+	static BufferedImage pattern(int w, int h, Random random) {
+		BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < h; y++) {
+			for (int x = 0; x < w; x++) {
+				image.setRGB(x, y, random.nextInt(4) == 0 ? random.nextInt() : (x * 7) << 16 | (y * 3) << 8 | (x ^ y));
+			}
+		}
+		return image;
+	}
+
+	File write(BufferedImage image, String name, String format) throws Exception {
+		File file = dir.resolve(name + "." + format).toFile();
+		assertTrue(ImageIO.write(image, format, file));
+		return file;
+	}
+
+	@Test
+	void exactSubsamplingMatchesFullDecodeAndResize() throws Exception {
+		FileURLIO.setSubsampling(FileURLIO.Subsampling.EXACT);
+		Random random = new Random(16);
+		int[][] sizes = { { 400, 300 }, { 513, 257 }, { 114, 126 }, { 192, 126 }, { 7, 5 } };
+		int[][] targets = { { 100, 100 }, { 40, 30 }, { 200, 150 }, { 3, 2 }, { 1, 1 }, { 195, 63 }, { 70, 63 },
+				{ 133, 77 }, { 800, 600 } };
+		FileURLIO.resetStatistics();
+		for (int[] size : sizes) {
+			BufferedImage image = pattern(size[0], size[1], random);
+			for (String format : new String[] { "png", "bmp", "jpg" }) {
+				File file = write(image, "exact" + size[0] + "x" + size[1], format);
+				BufferedImage decoded = ImageIO.read(file);
+				for (int[] target : targets) {
+					ResizeTest.assertSameImage(ResizeTest.reference(decoded, target[0], target[1]),
+							FileURLIO.readImage(file.getPath(), target[0], target[1]),
+							format + " " + size[0] + "x" + size[1] + " to " + target[0] + "x" + target[1]);
+				}
+			}
+		}
+		assertTrue(FileURLIO.subsampledDecodes() > 0);
+	}
+
+	@Test
+	void resolversReadTheirScheme() {
+		BufferedImage image = pattern(20, 10, new Random(21));
+		FileURLIO.setResolver("TEST", (source, request) -> request.apply(image));
+		assertSame(image, FileURLIO.readImage("test:anything"));
+		ResizeTest.assertSameImage(ResizeTest.reference(image, 5, 4), FileURLIO.readImage("Test:x", 5, 4), "resized");
+		FileURLIO.setResolver("test", null);
+		assertThrows(PLCRuntimeException.class, () -> FileURLIO.readImage("test:anything"));
+	}
+
+	@Test
+	void publishedImagesAreReadAsMemSources() {
+		BufferedImage image = pattern(30, 20, new Random(22));
+		FileURLIO.publish("test", image);
+		assertSame(image, FileURLIO.readImage("mem:test"));
+		assertArrayEquals(ImageOps.getRGBPixels(image.getSubimage(3, 4, 10, 5)),
+				ImageOps.getRGBPixels(FileURLIO.readImageRegion("mem:test", 3, 4, 10, 5)));
+		assertSame(image, FileURLIO.unpublish("test"));
+		assertNull(FileURLIO.unpublish("test"));
+		PLCRuntimeException e = assertThrows(PLCRuntimeException.class, () -> FileURLIO.readImage("mem:test"));
+		assertTrue(e.getMessage().endsWith(" mem:test"), e.getMessage());
+	}
+
+	@Test
+	void errorsWithoutMessagesAreNamedByTheirClass() {
+		FileURLIO.setResolver("test", (source, request) -> {
+			throw new ConnectException();
+		});
+		PLCRuntimeException e = assertThrows(PLCRuntimeException.class, () -> FileURLIO.readImage("test://host/a.png"));
+		assertEquals("ConnectException test://host/a.png", e.getMessage());
+		assertInstanceOf(ConnectException.class, e.getCause());
+
+		CompletionException async = assertThrows(CompletionException.class,
+				() -> FileURLIO.readImageAsync("test://host/b.png", null, null).join());
+		assertInstanceOf(PLCRuntimeException.class, async.getCause());
+		assertEquals("ConnectException test://host/b.png", async.getCause().getMessage());
+	}
+
+	@Test
+	void unreadableFilesThrow() throws Exception {
+		String missing = dir.resolve("missing.png").toString();
+		PLCRuntimeException e = assertThrows(PLCRuntimeException.class, () -> FileURLIO.readImage(missing));
+		assertTrue(e.getMessage().endsWith(" " + missing), e.getMessage());
+		File text = dir.resolve("text.png").toFile();
+		Files.writeString(text.toPath(), "not an image");
+		assertNull(FileURLIO.readImage(text.getPath()), "like ImageIO.read");
+	}
+
+	@Test
+	void regionsMatchTheDecodedImage() throws Exception {
+		BufferedImage image = pattern(90, 70, new Random(38));
+		String[] files = { write(image, "region", "png").getPath(), write(image, "region", "bmp").getPath(),
+				write(image, "region", "jpg").getPath(), dir.resolve("region.ppm").toString(),
+				dir.resolve("region" + RawImage.EXTENSION).toString() };
+		FileURLIO.writeImage(image, files[3]);
+		FileURLIO.writeImage(image, files[4]);
+		// inside, touching the edges, and partly outside, which is left out
+		int[][] regions = { { 10, 20, 30, 15 }, { 0, 0, 90, 70 }, { 89, 69, 1, 1 }, { 60, 50, 100, 100 },
+				{ -5, -10, 20, 30 } };
+		for (String file : files) {
+			BufferedImage decoded = ImageIO.read(new File(file));
+			for (int[] r : regions) {
+				BufferedImage region = FileURLIO.readImageRegion(file, r[0], r[1], r[2], r[3]);
+				int x = Math.max(0, r[0]);
+				int y = Math.max(0, r[1]);
+				BufferedImage expected = (decoded == null ? FileURLIO.readImage(file) : decoded).getSubimage(x, y,
+						Math.min(90, r[0] + r[2]) - x, Math.min(70, r[1] + r[3]) - y);
+				String message = file + " " + r[0] + "," + r[1];
+				assertEquals(BufferedImage.TYPE_INT_RGB, region.getType(), message);
+				assertEquals(expected.getWidth(), region.getWidth(), message);
+				assertEquals(expected.getHeight(), region.getHeight(), message);
+				assertArrayEquals(RawImageTest.rgb(expected), RawImageTest.rgb(region), message);
+			}
+		}
+	}
+
+	@Test
+	void regionsOutsideTheImageThrow() throws Exception {
+		String png = write(pattern(20, 10, new Random(39)), "small", "png").getPath();
+		String ppm = dir.resolve("small.ppm").toString();
+		FileURLIO.writeImage(pattern(20, 10, new Random(39)), ppm);
+		for (String file : new String[] { png, ppm }) {
+			for (int[] r : new int[][] { { 20, 0, 5, 5 }, { 0, 10, 5, 5 }, { -5, 0, 5, 5 }, { 3, 3, 0, 4 } }) {
+				PLCRuntimeException e = assertThrows(PLCRuntimeException.class,
+						() -> FileURLIO.readImageRegion(file, r[0], r[1], r[2], r[3]));
+				assertTrue(e.getMessage().startsWith("Region " + r[0] + "," + r[1] + " " + r[2] + "x" + r[3]
+						+ " is outside the image!"), e.getMessage());
+				assertTrue(e.getMessage().endsWith(" " + file), e.getMessage());
+			}
+		}
+	}
+
+	@Test
+	void preloadedImagesAreReadFromTheCache() throws Exception {
+		BufferedImage image = pattern(40, 30, new Random(50));
+		String file = write(image, "image", "png").getPath();
+		ImageCache.clear();
+		ImageCache.resetStatistics();
+		FileURLIO.preload(file);
+		FileURLIO.preload(file, 20, 10);
+		// a read waits for its preload if it has not finished
+		assertArrayEquals(ImageOps.getRGBPixels(image), ImageOps.getRGBPixels(FileURLIO.readImage(file)));
+		assertArrayEquals(ImageOps.getRGBPixels(ImageOps.copyAndResize(image, 20, 10)),
+				ImageOps.getRGBPixels(FileURLIO.readImage(file, 20, 10)));
+		assertEquals(2, ImageCache.misses());
+		assertEquals(2, ImageCache.hits());
+	}
+
+	@Test
+	void failedPreloadsAreReportedByTheRead() {
+		String missing = dir.resolve("missing.png").toString();
+		FileURLIO.preload(missing);
+		PLCRuntimeException e = assertThrows(PLCRuntimeException.class, () -> FileURLIO.readImage(missing));
+		assertTrue(e.getMessage().endsWith(missing), e.getMessage());
+	}
+
+	@Test
+	void preloadsNeedTheCache() throws Exception {
+		String file = write(pattern(40, 30, new Random(51)), "image", "png").getPath();
+		ImageCache.setEnabled(false);
+		FileURLIO.preload(file);
+		ImageCache.setEnabled(true);
+		FileURLIO.readImage(file);
+		assertEquals(0, ImageCache.hits());
+		assertEquals(1, ImageCache.misses());
+	}
+
+}
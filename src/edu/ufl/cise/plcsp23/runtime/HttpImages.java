@@ -0,0 +1,226 @@
+package edu.ufl.cise.plcsp23.runtime;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+import javax.imageio.IIOException;
+import javax.imageio.ImageIO;
+
+/**
+ * Reads "http" and "https" sources for FileURLIO with a shared HttpClient, which keeps
+ * connections to a server open and reuses them for later requests.
+ *
+ * Images are kept in the ImageCache with the ETag the server sent, or else its
+ * Last-Modified time. When an image is read again, the request carries If-None-Match
+ * or If-Modified-Since, and a 304 response is answered from the cache without
+ * transferring or decoding the image again.
+ *
+ * Requests are sent asynchronously, and at most a given number of them are in flight
+ * at a time; the others wait for their turn without holding a thread. Connecting and
+ * each request time out after a configurable duration.
+ */
+public class HttpImages implements ImageResolver {
+
+	static final HttpImages RESOLVER = new HttpImages();
+
+	/** Stands for a cached image that was dropped before the server confirmed it */
+	private static final BufferedImage DROPPED = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
+
+	private static volatile Duration timeout = Duration.ofSeconds(30);
+	private static volatile HttpClient client = newClient();
+
+	private static volatile int maxRequests = 16;
+	/** Requests in flight, and the requests waiting for their turn. Guarded by waiting. */
+	private static int requests;
+	private static final ArrayDeque<CompletableFuture<Void>> waiting = new ArrayDeque<>();
+
+	private HttpImages() {
+	}
+
+	private static HttpClient newClient() {
+		return HttpClient.newBuilder().connectTimeout(timeout).followRedirects(HttpClient.Redirect.NORMAL).build();
+	}
+
+	/** Sets how long connecting, and waiting for a response, may take */
+	public static void setTimeout(Duration newTimeout) {
+		timeout = newTimeout;
+		client = newClient();
+	}
+
+	public static Duration getTimeout() {
+		return timeout;
+	}
+
+	/** Sets the maximum number of requests in flight at a time */
+	public static void setMaxRequests(int max) {
+		maxRequests = max;
+		startWaiting();
+	}
+
+	public static int getMaxRequests() {
+		return maxRequests;
+	}
+
+	@Override
+	public BufferedImage read(String source, Request request) throws IOException {
+		try {
+			return readAsync(source, request, Runnable::run).join();
+		}
+		catch (CompletionException e) {
+			if (e.getCause() instanceof UncheckedIOException cause) {
+				throw cause.getCause();
+			}
+			if (e.getCause() instanceof IOException cause) {
+				throw cause;
+			}
+			if (e.getCause() instanceof RuntimeException cause) {
+				throw cause;
+			}
+			throw e;
+		}
+	}
+
+	/** Reads source without blocking, decoding the image with executor */
+	@Override
+	public CompletableFuture<BufferedImage> readAsync(String source, Request request, Executor executor) {
+		return read(source, request, executor, true);
+	}
+
+	private CompletableFuture<BufferedImage> read(String source, Request request, Executor executor,
+			boolean revalidate) {
+		ImageCache.Key key = new ImageCache.Key(source, request.variant());
+		String cached = revalidate ? ImageCache.validator(key) : null;
+		HttpRequest.Builder builder;
+		try {
+			builder = HttpRequest.newBuilder(URI.create(source)).timeout(timeout).GET();
+		}
+		catch (IllegalArgumentException e) {
+			String reason = e.getCause() instanceof URISyntaxException cause ? cause.getReason() : e.getMessage();
+			return CompletableFuture.failedFuture(new IIOException(reason, e));
+		}
+		if (cached != null) { // a validator is the name of the header it came from, a space, and its value
+			int space = cached.indexOf(' ');
+			builder.header(cached.startsWith("ETag ") ? "If-None-Match" : "If-Modified-Since",
+					cached.substring(space + 1));
+		}
+		HttpRequest httpRequest = builder.build();
+		CompletableFuture<BufferedImage> image = acquire()
+				.thenCompose(v -> client.sendAsync(httpRequest, HttpResponse.BodyHandlers.ofInputStream())
+						.exceptionallyCompose(e -> CompletableFuture.failedFuture(sendFailure(e))))
+				.thenApplyAsync(response -> receive(request, key, cached, response), executor)
+				.whenComplete((i, e) -> release());
+		// the cached image may have been dropped since the request was sent, then read it again
+		return image.thenCompose(i -> i != DROPPED ? CompletableFuture.completedFuture(i)
+				: read(source, request, executor, false));
+	}
+
+	/**
+	 * Returns the image in a response, taking it from the cache if it has not changed,
+	 * or DROPPED if the server says it has not changed but it is no longer cached
+	 */
+	private static BufferedImage receive(Request request, ImageCache.Key key, String cached,
+			HttpResponse<InputStream> response) {
+		InputStream body = response.body();
+		try {
+			if (response.statusCode() == 304) {
+				close(body);
+				BufferedImage image = cached == null ? null : ImageCache.get(key, cached);
+				return image != null ? image : DROPPED;
+			}
+			if (response.statusCode() != 200) {
+				close(body);
+				throw new IIOException("Server returned HTTP response code: " + response.statusCode());
+			}
+			String validator = validator(response);
+			BufferedImage image = validator == null ? null : ImageCache.get(key, validator);
+			if (image != null) {
+				close(body);
+				return image;
+			}
+			image = request.decode(ImageIO.createImageInputStream(body));
+			if (image != null && validator != null) {
+				ImageCache.put(key, validator, image);
+			}
+			return image;
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * What a failed send throws. The HttpClient's IOExceptions often have no message,
+	 * like the ConnectException of a refused connection, so they are wrapped in one
+	 * that names them.
+	 */
+	private static Throwable sendFailure(Throwable e) {
+		Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+		return cause instanceof IOException ? new IIOException(cause.toString(), cause) : cause;
+	}
+
+	/** The ETag of a response, or else its Last-Modified time, with the header name in front */
+	private static String validator(HttpResponse<?> response) {
+		for (String header : new String[] { "ETag", "Last-Modified" }) {
+			String value = response.headers().firstValue(header).orElse(null);
+			if (value != null) {
+				return header + " " + value;
+			}
+		}
+		return null;
+	}
+
+	private static void close(InputStream body) {
+		try {
+			body.close();
+		}
+		catch (IOException e) { // nothing is read from it anymore
+		}
+	}
+
+	/** Completes when a request may be sent */
+	private static CompletableFuture<Void> acquire() {
+		synchronized (waiting) {
+			if (requests < maxRequests) {
+				requests++;
+				return CompletableFuture.completedFuture(null);
+			}
+			CompletableFuture<Void> turn = new CompletableFuture<>();
+			waiting.add(turn);
+			return turn;
+		}
+	}
+
+	private static void release() {
+		synchronized (waiting) {
+			requests--;
+		}
+		startWaiting();
+	}
+
+	private static void startWaiting() {
+		while (true) {
+			CompletableFuture<Void> turn;
+			synchronized (waiting) {
+				if (requests >= maxRequests || waiting.isEmpty()) {
+					return;
+				}
+				requests++;
+				turn = waiting.poll();
+			}
+			turn.complete(null);
+		}
+	}
+
+}
@@ -0,0 +1,128 @@
+package edu.ufl.cise.plcsp23.runtime;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+import javax.imageio.stream.ImageInputStream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+class HttpImagesTest {
+
+	static final ImageResolver.Request WHOLE = new ImageResolver.Request() {
+
+		@Override
+		public String variant() {
+			return "whole";
+		}
+
+		@Override
+		public BufferedImage decode(ImageInputStream stream) throws IOException {
+			return ImageIO.read(stream);
+		}
+
+		@Override
+		public BufferedImage apply(BufferedImage image) {
+			return image;
+		}
+	};
+
+	HttpServer server;
+	String base;
+	BufferedImage image;
+	final AtomicInteger transfers = new AtomicInteger();
+	final AtomicInteger notModified = new AtomicInteger();
+
+	@BeforeEach
+	void start() throws IOException {
+		image = FileURLIOTest.pattern(40, 30, new Random(22));
+		ByteArrayOutputStream png = new ByteArrayOutputStream();
+		ImageIO.write(image, "png", png);
+		byte[] bytes = png.toByteArray();
+
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		server.createContext("/image.png", exchange -> {
+			exchange.getResponseHeaders().set("ETag", "\"v1\"");
+			if ("\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+				notModified.incrementAndGet();
+				exchange.sendResponseHeaders(304, -1);
+			}
+			else {
+				transfers.incrementAndGet();
+				exchange.sendResponseHeaders(200, bytes.length);
+				try (OutputStream body = exchange.getResponseBody()) {
+					body.write(bytes);
+				}
+			}
+			exchange.close();
+		});
+		server.createContext("/missing.png", exchange -> {
+			exchange.sendResponseHeaders(404, -1);
+			exchange.close();
+		});
+		server.start();
+		base = "http://localhost:" + server.getAddress().getPort();
+		ImageCache.clear();
+	}
+
+	@AfterEach
+	void stop() {
+		server.stop(0);
+		ImageCache.clear();
+	}
+
+	@Test
+	void readsAndRevalidatesImages() {
+		BufferedImage first = FileURLIO.readImage(base + "/image.png");
+		ResizeTest.assertSameImage(image, first, "200");
+		first.setRGB(0, 0, ~first.getRGB(0, 0)); // the cache keeps its own copy
+		ResizeTest.assertSameImage(image, FileURLIO.readImage(base + "/image.png"), "304");
+		assertEquals(1, transfers.get());
+		assertEquals(1, notModified.get());
+		ResizeTest.assertSameImage(ResizeTest.reference(image, 20, 10), FileURLIO.readImage(base + "/image.png", 20, 10),
+				"resized");
+	}
+
+	@Test
+	void errorStatusThrows() {
+		String source = base + "/missing.png";
+		PLCRuntimeException e = assertThrows(PLCRuntimeException.class, () -> FileURLIO.readImage(source));
+		assertTrue(e.getMessage().contains("404"), e.getMessage());
+		assertTrue(e.getMessage().endsWith(" " + source), e.getMessage());
+	}
+
+	@Test
+	void refusedConnectionNamesItsCause() throws IOException {
+		int port;
+		try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+			port = socket.getLocalPort();
+		}
+		String source = "http://localhost:" + port + "/image.png";
+		IOException e = assertThrows(IOException.class, () -> HttpImages.RESOLVER.read(source, WHOLE));
+		assertInstanceOf(ConnectException.class, e.getCause());
+		assertTrue(e.getMessage().contains("ConnectException"), e.getMessage());
+
+		PLCRuntimeException wrapped = assertThrows(PLCRuntimeException.class, () -> FileURLIO.readImage(source));
+		assertTrue(wrapped.getMessage().contains("ConnectException"), wrapped.getMessage());
+		assertTrue(wrapped.getMessage().endsWith(" " + source), wrapped.getMessage());
+	}
+
+}
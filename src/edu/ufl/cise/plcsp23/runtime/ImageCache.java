@@ -0,0 +1,180 @@
+package edu.ufl.cise.plcsp23.runtime;
+
+import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A cache of decoded images, used by FileURLIO so that reading the same file or URL
+ * again does not open and decode it again.
+ *
+ * An image is cached under its source and the way it was read (whole, resized or a
+ * region of it), together with a validator that tells whether the source has changed
+ * since: the modification time and size of a file, or the ETag or Last-Modified time
+ * an HTTP server sent for a URL. An entry whose validator no longer matches is dropped.
+ *
+ * Callers own the images they are given and may change them, so the cache keeps its
+ * own copy and hands out copies of it. The cache holds at most a given number of
+ * bytes of pixel data, and drops the least recently used images first. It is on by
+ * default, and can be turned off with setEnabled or the system property
+ * plc.imageCache.
+ */
+public class ImageCache {
+
+	/** A source, and how the image was read from it */
+	record Key(String source, String variant) {
+	}
+
+	private record Entry(String validator, BufferedImage image, long bytes) {
+	}
+
+	/** Cached images, least recently used first. Also guards bytes. */
+	private static final LinkedHashMap<Key, Entry> images = new LinkedHashMap<>(64, 0.75f, true);
+	private static long bytes;
+
+	private static volatile boolean enabled = Boolean.parseBoolean(System.getProperty("plc.imageCache", "true"));
+	private static volatile long maxBytes = Runtime.getRuntime().maxMemory() / 16;
+
+	private static final LongAdder hits = new LongAdder();
+	private static final LongAdder misses = new LongAdder();
+	private static final LongAdder evictions = new LongAdder();
+
+	/** Returns the validator of the image cached under key, or null if there is none */
+	static String validator(Key key) {
+		if (!enabled) {
+			return null;
+		}
+		synchronized (images) {
+			Entry entry = images.get(key);
+			return entry == null ? null : entry.validator;
+		}
+	}
+
+	/**
+	 * Returns a copy of the image cached under key if its validator is the given one,
+	 * and otherwise null.
+	 */
+	static BufferedImage get(Key key, String validator) {
+		if (!enabled) {
+			return null;
+		}
+		BufferedImage cached = null;
+		synchronized (images) {
+			Entry entry = images.get(key);
+			if (entry != null && entry.validator.equals(validator)) {
+				cached = entry.image;
+			}
+			else if (entry != null) { // the source has changed
+				images.remove(key);
+				bytes -= entry.bytes;
+			}
+		}
+		if (cached == null) {
+			misses.increment();
+			return null;
+		}
+		hits.increment();
+		return ImageOps.cloneImage(cached);
+	}
+
+	/**
+	 * Caches a copy of image under key with the given validator. Images that are too
+	 * large for the budget, or that are not stored in memory, are not cached.
+	 */
+	static void put(Key key, String validator, BufferedImage image) {
+		long size = 4L * image.getWidth() * image.getHeight();
+		if (!enabled || validator == null || size > maxBytes || image instanceof TiledImage
+				|| image.getType() == BufferedImage.TYPE_CUSTOM) {
+			return;
+		}
+		BufferedImage copy = ImageOps.cloneImage(image);
+		synchronized (images) {
+			Entry old = images.put(key, new Entry(validator, copy, size));
+			bytes += size - (old == null ? 0 : old.bytes);
+			evict(maxBytes);
+		}
+	}
+
+	/** Drops the least recently used images until the cache fits the budget. Must hold the lock. */
+	private static void evict(long budget) {
+		Iterator<Map.Entry<Key, Entry>> i = images.entrySet().iterator();
+		while (bytes > budget && i.hasNext()) {
+			bytes -= i.next().getValue().bytes;
+			i.remove();
+			evictions.increment();
+		}
+	}
+
+	/** Turns the cache on or off. Turning it off drops all cached images. */
+	public static void setEnabled(boolean on) {
+		enabled = on;
+		if (!on) {
+			clear();
+		}
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/** Sets the maximum number of bytes of pixel data kept in the cache */
+	public static void setMaxBytes(long max) {
+		maxBytes = max;
+		synchronized (images) {
+			evict(max);
+		}
+	}
+
+	/** Drops all cached images */
+	public static void clear() {
+		synchronized (images) {
+			images.clear();
+			bytes = 0;
+		}
+	}
+
+	/** Number of images currently in the cache */
+	public static int size() {
+		synchronized (images) {
+			return images.size();
+		}
+	}
+
+	/** Number of bytes of pixel data currently in the cache */
+	public static long cachedBytes() {
+		synchronized (images) {
+			return bytes;
+		}
+	}
+
+	/** Number of reads answered from the cache */
+	public static long hits() {
+		return hits.sum();
+	}
+
+	/** Number of reads that had to decode the image */
+	public static long misses() {
+		return misses.sum();
+	}
+
+	/** Number of images dropped to stay within the budget */
+	public static long evictions() {
+		return evictions.sum();
+	}
+
+	/** Fraction of reads answered from the cache, or 0 if there were none */
+	public static double hitRate() {
+		long h = hits.sum();
+		long total = h + misses.sum();
+		return total == 0 ? 0 : (double) h / total;
+	}
+
+	public static void resetStatistics() {
+		hits.reset();
+		misses.reset();
+		evictions.reset();
+	}
+
+}
@@ -0,0 +1,141 @@
+package edu.ufl.cise.plcsp23.runtime;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ImageCacheTest {
+
+	@TempDir
+	Path dir;
+
+	@BeforeEach
+	void clear() {
+		ImageCache.clear();
+		ImageCache.resetStatistics();
+	}
+
+	@AfterEach
+	void reset() {
+		ImageCache.setEnabled(true);
+		ImageCache.setMaxBytes(Runtime.getRuntime().maxMemory() / 16);
+		ImageCache.clear();
+		ImageCache.resetStatistics();
+		FileURLIO.setNormalized(true);
+	}
+
+	String write(String name, BufferedImage image) throws Exception {
+		File file = dir.resolve(name).toFile();
+		assertTrue(ImageIO.write(image, "png", file));
+		return file.getPath();
+	}
+
+	@Test
+	void repeatedReadsAreAnsweredFromTheCache() throws Exception {
+		BufferedImage image = FileURLIOTest.pattern(40, 30, new Random(40));
+		String file = write("image.png", image);
+		BufferedImage first = FileURLIO.readImage(file);
+		BufferedImage second = FileURLIO.readImage(file);
+		assertEquals(1, ImageCache.misses());
+		assertEquals(1, ImageCache.hits());
+		assertNotSame(first, second);
+		assertArrayEquals(ImageOps.getRGBPixels(image), ImageOps.getRGBPixels(second));
+
+		// callers own their copies
+		ImageOps.setAllPixels(second, 0);
+		assertArrayEquals(ImageOps.getRGBPixels(image), ImageOps.getRGBPixels(FileURLIO.readImage(file)));
+		// the same file named by a URL, or by another path, is the same source
+		FileURLIO.readImage(new File(file).toURI().toString());
+		FileURLIO.readImage(dir.resolve(".").resolve("image.png").toString());
+		assertEquals(1, ImageCache.misses());
+		assertEquals(1, ImageCache.size());
+	}
+
+	@Test
+	void eachWayOfReadingIsCachedSeparately() throws Exception {
+		BufferedImage image = FileURLIOTest.pattern(40, 30, new Random(41));
+		String file = write("image.png", image);
+		BufferedImage whole = FileURLIO.readImage(file);
+		BufferedImage resized = FileURLIO.readImage(file, 20, 10);
+		BufferedImage region = FileURLIO.readImageRegion(file, 5, 5, 10, 10);
+		FileURLIO.setNormalized(false);
+		FileURLIO.readImage(file);
+		assertEquals(4, ImageCache.misses());
+		assertEquals(4, ImageCache.size());
+
+		FileURLIO.setNormalized(true);
+		assertArrayEquals(ImageOps.getRGBPixels(whole), ImageOps.getRGBPixels(FileURLIO.readImage(file)));
+		assertArrayEquals(ImageOps.getRGBPixels(resized), ImageOps.getRGBPixels(FileURLIO.readImage(file, 20, 10)));
+		assertArrayEquals(ImageOps.getRGBPixels(region),
+				ImageOps.getRGBPixels(FileURLIO.readImageRegion(file, 5, 5, 10, 10)));
+		assertEquals(3, ImageCache.hits());
+	}
+
+	@Test
+	void changedFilesAreReadAgain() throws Exception {
+		String file = write("image.png", FileURLIOTest.pattern(40, 30, new Random(42)));
+		FileTime time = Files.getLastModifiedTime(Path.of(file));
+		FileURLIO.readImage(file);
+
+		// the file system may keep the old time if its clock is coarse, so set a new one
+		BufferedImage changed = FileURLIOTest.pattern(40, 30, new Random(43));
+		write("image.png", changed);
+		Files.setLastModifiedTime(Path.of(file), FileTime.fromMillis(time.toMillis() + 2000));
+		assertArrayEquals(ImageOps.getRGBPixels(changed), ImageOps.getRGBPixels(FileURLIO.readImage(file)));
+		assertEquals(2, ImageCache.misses());
+		assertEquals(1, ImageCache.size());
+		FileURLIO.readImage(file);
+		assertEquals(1, ImageCache.hits());
+	}
+
+	@Test
+	void cacheStaysWithinItsBudget() throws Exception {
+		String[] files = new String[4];
+		for (int i = 0; i < files.length; i++) {
+			files[i] = write(i + ".png", FileURLIOTest.pattern(40, 30, new Random(44 + i)));
+		}
+		ImageCache.setMaxBytes(3 * 4 * 40 * 30);
+		for (String file : files) {
+			FileURLIO.readImage(file);
+		}
+		assertEquals(3, ImageCache.size());
+		assertEquals(3 * 4 * 40 * 30, ImageCache.cachedBytes());
+		assertEquals(1, ImageCache.evictions());
+		FileURLIO.readImage(files[0]); // the least recently used one was dropped
+		assertEquals(0, ImageCache.hits());
+		FileURLIO.readImage(files[3]);
+		assertEquals(1, ImageCache.hits());
+
+		write("large.png", FileURLIOTest.pattern(100, 100, new Random(48)));
+		FileURLIO.readImage(dir.resolve("large.png").toString());
+		assertEquals(3, ImageCache.size());
+	}
+
+	@Test
+	void disabledCacheDecodesEveryRead() throws Exception {
+		String file = write("image.png", FileURLIOTest.pattern(40, 30, new Random(49)));
+		FileURLIO.readImage(file);
+		ImageCache.setEnabled(false);
+		assertEquals(0, ImageCache.size());
+		FileURLIO.readImage(file);
+		FileURLIO.readImage(file);
+		assertEquals(0, ImageCache.size());
+		assertEquals(0, ImageCache.hits());
+	}
+
+}
@@ -0,0 +1,75 @@
+package edu.ufl.cise.plcsp23.runtime;
+
+import java.awt.image.BufferedImage;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Cached content hashes of images, used by ImageOps.equals when hashed equality is
+ * turned on (see ImageOps.setHashedEquals). Two images with different hashes are
+ * different, so once both hashes are known the comparison takes constant time; equal
+ * hashes still require comparing the pixels.
+ *
+ * A hash is kept together with the version of the image it was computed from (see
+ * ImageVersions), and is computed again once the image has changed.
+ */
+class ImageHash {
+
+	private record Entry(long hash, long version) {
+	}
+
+	private static final Map<BufferedImage, Entry> hashes = new WeakHashMap<>();
+
+	/**
+	 * Returns the hash of image, computing it if there is none for the current
+	 * version of image.
+	 */
+	static long get(BufferedImage image) {
+		long version = ImageVersions.version(image);
+		synchronized (hashes) {
+			Entry entry = hashes.get(image);
+			if (entry != null && entry.version == version) {
+				return entry.hash;
+			}
+		}
+		long hash = compute(image);
+		synchronized (hashes) {
+			hashes.put(image, new Entry(hash, version));
+		}
+		return hash;
+	}
+
+	static void clear() {
+		synchronized (hashes) {
+			hashes.clear();
+		}
+	}
+
+	/**
+	 * A polynomial hash of the values getRGB returns for the pixels of image, in
+	 * row-major order, so that images that ImageOps.equals considers equal have the
+	 * same hash.
+	 */
+	private static long compute(BufferedImage image) {
+		int width = image.getWidth();
+		int height = image.getHeight();
+		int[] data = ImageKernels.data(image);
+		int fill = ImageKernels.alphaFill(image);
+		int[] row = data == null ? new int[width] : null;
+		long hash = 1;
+		for (int y = 0; y < height; y++) {
+			int[] pixels = data;
+			int offset = y * width;
+			if (data == null) {
+				image.getRGB(0, y, width, 1, row, 0, width);
+				pixels = row;
+				offset = 0;
+			}
+			for (int x = 0; x < width; x++) {
+				hash = 0x100000001b3L * hash + (pixels[offset + x] | fill);
+			}
+		}
+		return hash;
+	}
+
+}
@@ -0,0 +1,110 @@
+package edu.ufl.cise.plcsp23.runtime;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import edu.ufl.cise.plcsp23.runtime.ImageOps.OP;
+
+class ImageHashTest {
+
+	@BeforeEach
+	void hashed() {
+		ImageOps.setHashedEquals(true);
+	}
+
+	@AfterEach
+	void plain() {
+		ImageOps.setHashedEquals(false);
+	}
+
+	/** An image of the given type with the pixels of image */
+	static BufferedImage convert(BufferedImage image, int type) {
+		BufferedImage result = new BufferedImage(image.getWidth(), image.getHeight(), type);
+		result.setRGB(0, 0, image.getWidth(), image.getHeight(), ImageOps.getRGBPixels(image), 0, image.getWidth());
+		return result;
+	}
+
+	@Test
+	void equalColorsHaveEqualHashes() {
+		BufferedImage image = ImageKernelsTest.random(33, 21, BufferedImage.TYPE_INT_RGB, new Random(24));
+		long hash = ImageHash.get(image);
+		for (int type : ImageKernelsTest.TYPES) {
+			assertEquals(hash, ImageHash.get(convert(image, type)), "type " + type);
+		}
+		assertEquals(hash, ImageHash.get(PlanarImage.split(image)));
+		assertEquals(hash, ImageHash.get(image.getSubimage(0, 0, 33, 21)));
+		BufferedImage transparent = convert(image, BufferedImage.TYPE_INT_ARGB);
+		transparent.setRGB(0, 0, transparent.getRGB(0, 0) & 0xffffff);
+		assertNotEquals(hash, ImageHash.get(transparent));
+	}
+
+	@Test
+	void hashedEqualsGivesThePlainResults() {
+		Random random = new Random(25);
+		BufferedImage image = ImageKernelsTest.random(40, 30, BufferedImage.TYPE_INT_RGB, random);
+		for (int type : ImageKernelsTest.TYPES) {
+			for (int i = 0; i < 20; i++) {
+				BufferedImage other = convert(image, type);
+				if (i > 0) {
+					int x = random.nextInt(40);
+					int y = random.nextInt(30);
+					other.setRGB(x, y, other.getRGB(x, y) ^ 1 << random.nextInt(24));
+				}
+				ImageOps.setHashedEquals(false);
+				boolean expected = ImageOps.equals(image, other);
+				ImageOps.setHashedEquals(true);
+				assertEquals(i == 0, expected);
+				assertEquals(expected, ImageOps.equals(image, other), type + " " + i);
+				assertEquals(expected, ImageOps.equals(other, image), type + " " + i);
+			}
+		}
+	}
+
+	@Test
+	void changesThroughImageOpsAreSeen() {
+		Random random = new Random(26);
+		BufferedImage image = ImageKernelsTest.random(20, 10, BufferedImage.TYPE_INT_RGB, random);
+		BufferedImage copy = convert(image, BufferedImage.TYPE_INT_RGB);
+		assertTrue(ImageOps.equals(image, copy)); // both hashes are cached now
+
+		ImageOps.setRGB(copy, 3, 4, ~copy.getRGB(3, 4));
+		assertFalse(ImageOps.equals(image, copy));
+		ImageOps.setRGB(copy, 3, 4, image.getRGB(3, 4));
+		assertTrue(ImageOps.equals(image, copy));
+
+		ImageOps.setAllPixels(copy, 0x123456);
+		assertFalse(ImageOps.equals(image, copy));
+		ImageOps.copyInto(image, copy);
+		assertTrue(ImageOps.equals(image, copy));
+
+		// a temporary holding the result of an operation is changed by it
+		BufferedImage sum = ImageOps.binaryImageScalarOp(OP.PLUS, copy, 0, ImageOps.TEMP_LEFT);
+		assertTrue(ImageOps.equals(image, sum));
+		sum = ImageOps.binaryImageScalarOp(OP.PLUS, sum, 1, ImageOps.TEMP_LEFT);
+		assertFalse(ImageOps.equals(image, sum));
+	}
+
+	@Test
+	void copiesAreEqualUntilOneChanges() {
+		BufferedImage image = ImageKernelsTest.random(20, 10, BufferedImage.TYPE_INT_RGB, new Random(27));
+		BufferedImage clone = ImageOps.cloneImage(image);
+		BufferedImage copy = new BufferedImage(20, 10, BufferedImage.TYPE_INT_RGB);
+		ImageOps.copyInto(clone, copy);
+		assertTrue(ImageVersions.sameContents(image, copy));
+		assertTrue(ImageOps.equals(copy, image));
+		ImageOps.setRGB(clone, 0, 0, 0);
+		assertFalse(ImageVersions.sameContents(clone, copy));
+		assertFalse(ImageOps.equals(clone, copy));
+		assertTrue(ImageOps.equals(image, copy));
+	}
+
+}
@@ -0,0 +1,416 @@
+package edu.ufl.cise.plcsp23.runtime;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import edu.ufl.cise.plcsp23.runtime.ImageOps.OP;
+
+/**
+ * Pixel kernels used to implement ImageOps. The kernels read and write the int[]
+ * backing the raster of an image directly, in row-major order, instead of calling
+ * getRGB and setRGB (and going through the ColorModel) for every pixel.
+ *
+ * Each kernel is applied to the range [from, to) of indices into its arrays, where
+ * the pixel at (x,y) of a w by h image has index y*w + x.
+ *
+ * Pixels in a TYPE_INT_RGB raster are stored without the alpha value. The
+ * kernels only look at the color components of their inputs, and store their
+ * results without alpha, just like setRGB does for a TYPE_INT_RGB image.
+ * 
+ * Large images are split into strips of rows that are processed in parallel on a
+ * ForkJoinPool. Every pixel is computed by the same kernel in either case, so the
+ * results do not depend on whether an operation ran in parallel.
+ * 
+ * If the jdk.incubator.vector module is present (run with --add-modules
+ * jdk.incubator.vector), the arithmetic kernels are replaced by the SIMD versions in
+ * VectorKernels. Setting the system property plc.vectorize to false, or calling
+ * setVectorized(false), selects the scalar kernels instead.
+ */
+public class ImageKernels {
+
+	/** Selects the part of a packed pixel that is stored in a TYPE_INT_RGB raster */
+	static final int SELECT_RGB = 0x00ffffff;
+
+	/** A kernel applied to the pixels with indices in [from, to) */
+	interface RangeKernel {
+		void apply(int from, int to);
+	}
+
+	/** A test of the pixels with indices in [from, to) */
+	interface RangeTest {
+		boolean test(int from, int to);
+	}
+
+	/** Arithmetic kernels that can replace the ones in this class, see setVectorized */
+	interface Arithmetic {
+		void imageImage(OP op, int[] left, int[] right, int[] dst, int from, int to);
+
+		void imagePixel(OP op, int[] left, int right, int[] dst, int from, int to);
+
+		void imageScalar(OP op, int[] left, int right, int[] table, int[] dst, int from, int to);
+	}
+
+	private static volatile Arithmetic vectorKernels = Boolean.parseBoolean(System.getProperty("plc.vectorize", "true"))
+			? loadVectorKernels()
+			: null;
+
+	private static volatile boolean parallel = true;
+	private static volatile int parallelThreshold = 1 << 18;
+	private static volatile ForkJoinPool pool = ForkJoinPool.commonPool();
+
+	/**
+	 * Selects the vectorized arithmetic kernels if enabled is true and they are
+	 * available, and the scalar kernels otherwise.
+	 * 
+	 * @param enabled
+	 * @return true if the vectorized kernels are now in use
+	 */
+	public static boolean setVectorized(boolean enabled) {
+		vectorKernels = enabled ? loadVectorKernels() : null;
+		return vectorKernels != null;
+	}
+
+	public static boolean isVectorized() {
+		return vectorKernels != null;
+	}
+
+	/**
+	 * VectorKernels is loaded by name so that this class still works on a JVM
+	 * without the incubator module.
+	 */
+	private static Arithmetic loadVectorKernels() {
+		if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+			return null;
+		}
+		try {
+			return (Arithmetic) Class.forName("edu.ufl.cise.plcsp23.runtime.VectorKernels")
+					.getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Turns parallel execution of kernels on or off. It is on by default.
+	 */
+	public static void setParallel(boolean enabled) {
+		parallel = enabled;
+	}
+
+	/**
+	 * Images with fewer pixels than the threshold are always processed sequentially.
+	 */
+	public static void setParallelThreshold(int pixels) {
+		parallelThreshold = pixels;
+	}
+
+	/**
+	 * Sets the pool that parallel kernels run on. The default is the common pool.
+	 */
+	public static void setPool(ForkJoinPool forkJoinPool) {
+		pool = forkJoinPool;
+	}
+
+	/**
+	 * Applies kernel to all pixels of a width by height image, in parallel strips of
+	 * rows if the image is large enough.
+	 */
+	static void run(int width, int height, RangeKernel kernel) {
+		ForkJoinPool p = pool;
+		if (!isParallel(p, width, height)) {
+			kernel.apply(0, width * height);
+			return;
+		}
+		p.invoke(new Strips(kernel, null, width, 0, height, rowsPerStrip(p, height), null));
+	}
+
+	/**
+	 * Returns true if test holds for all pixels of a width by height image. Strips
+	 * that have not been started yet are skipped once the test has failed.
+	 */
+	static boolean all(int width, int height, RangeTest test) {
+		ForkJoinPool p = pool;
+		if (!isParallel(p, width, height)) {
+			return test.test(0, width * height);
+		}
+		AtomicBoolean failed = new AtomicBoolean();
+		p.invoke(new Strips(null, test, width, 0, height, rowsPerStrip(p, height), failed));
+		return !failed.get();
+	}
+
+	private static boolean isParallel(ForkJoinPool p, int width, int height) {
+		return parallel && p.getParallelism() > 1 && height > 1 && (long) width * height >= parallelThreshold;
+	}
+
+	/** Aim for a few strips per worker so that uneven progress is balanced out */
+	private static int rowsPerStrip(ForkJoinPool p, int height) {
+		return Math.max(1, height / (4 * p.getParallelism()));
+	}
+
+	/**
+	 * Applies a kernel or test to rows [startRow, endRow), splitting the rows in half
+	 * until there are at most rowsPerStrip of them.
+	 */
+	@SuppressWarnings("serial")
+	private static class Strips extends RecursiveAction {
+		final RangeKernel kernel;
+		final RangeTest test;
+		final int width;
+		final int startRow;
+		final int endRow;
+		final int rowsPerStrip;
+		final AtomicBoolean failed;
+
+		Strips(RangeKernel kernel, RangeTest test, int width, int startRow, int endRow, int rowsPerStrip,
+				AtomicBoolean failed) {
+			this.kernel = kernel;
+			this.test = test;
+			this.width = width;
+			this.startRow = startRow;
+			this.endRow = endRow;
+			this.rowsPerStrip = rowsPerStrip;
+			this.failed = failed;
+		}
+
+		@Override
+		protected void compute() {
+			if (endRow - startRow <= rowsPerStrip) {
+				int from = startRow * width;
+				int to = endRow * width;
+				if (kernel != null) {
+					kernel.apply(from, to);
+				}
+				else if (!failed.get() && !test.test(from, to)) {
+					failed.set(true);
+				}
+				return;
+			}
+			int mid = (startRow + endRow) >>> 1;
+			invokeAll(new Strips(kernel, test, width, startRow, mid, rowsPerStrip, failed),
+					new Strips(kernel, test, width, mid, endRow, rowsPerStrip, failed));
+		}
+	}
+
+	/**
+	 * Returns the int[] holding the pixels of the given image if they are stored in
+	 * row-major order, one packed int per pixel with the default RGB or ARGB layout,
+	 * and null otherwise. Writes to the returned array change the image. For a
+	 * LazyImage, this is the array of the evaluated image.
+	 *
+	 * @param image
+	 * @return backing array of image, or null
+	 */
+	static int[] data(BufferedImage image) {
+		if (image instanceof LazyImage lazy) {
+			image = lazy.evaluate();
+		}
+		int type = image.getType();
+		if (type != BufferedImage.TYPE_INT_RGB && type != BufferedImage.TYPE_INT_ARGB) {
+			return null;
+		}
+		WritableRaster raster = image.getRaster();
+		if (raster.getSampleModelTranslateX() != 0 || raster.getSampleModelTranslateY() != 0) {
+			return null; // subimage of a larger raster
+		}
+		DataBuffer buffer = raster.getDataBuffer();
+		SampleModel sampleModel = raster.getSampleModel();
+		if (!(buffer instanceof DataBufferInt) || buffer.getNumBanks() != 1 || buffer.getOffset() != 0
+				|| !(sampleModel instanceof SinglePixelPackedSampleModel)
+				|| ((SinglePixelPackedSampleModel) sampleModel).getScanlineStride() != image.getWidth()) {
+			return null;
+		}
+		return ((DataBufferInt) buffer).getData();
+	}
+
+	/**
+	 * Returns the pixels of the given image in row-major order. This is the backing
+	 * array if there is one, otherwise the pixels are copied out of the image with a
+	 * single bulk getRGB call. The result should only be read.
+	 *
+	 * @param image
+	 * @return array containing the pixels of image
+	 */
+	static int[] pixels(BufferedImage image) {
+		int[] data = data(image);
+		if (data != null) {
+			return data;
+		}
+		int w = image.getWidth();
+		return image.getRGB(0, 0, w, image.getHeight(), null, 0, w);
+	}
+
+	/**
+	 * Returns the bits that have to be or-ed with the pixels returned by pixels(image)
+	 * to get the values that getRGB would return, namely the alpha bits for a
+	 * TYPE_INT_RGB image.
+	 */
+	static int alphaFill(BufferedImage image) {
+		return image.getType() == BufferedImage.TYPE_INT_RGB || image instanceof LazyImage ? PixelOps.SELECT_ALPHA : 0;
+	}
+
+	/**
+	 * Returns true if (a[i] | fillA) == (b[i] | fillB) for all i in [from, to)
+	 */
+	static boolean equal(int[] a, int fillA, int[] b, int fillB, int from, int to) {
+		if (fillA == fillB) { // only the values that differ have to be checked with the fill
+			for (int i = from; i < to; i++) {
+				int m = Arrays.mismatch(a, i, to, b, i, to);
+				if (m < 0) {
+					return true;
+				}
+				i += m;
+				if ((a[i] | fillA) != (b[i] | fillB)) {
+					return false;
+				}
+			}
+			return true;
+		}
+		for (int i = from; i < to; i++) {
+			if ((a[i] | fillA) != (b[i] | fillB)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns true if rows [fromRow, toRow) of two images of the same size have the
+	 * same pixels, compared like equal does. The rows of an image without an int[]
+	 * (data0 or data1 is null) are copied out one at a time.
+	 */
+	static boolean equalRows(BufferedImage image0, int[] data0, BufferedImage image1, int[] data1, int fromRow,
+			int toRow) {
+		int width = image0.getWidth();
+		int fill0 = data0 != null ? alphaFill(image0) : 0;
+		int fill1 = data1 != null ? alphaFill(image1) : 0;
+		int[] row0 = data0 == null ? new int[width] : null;
+		int[] row1 = data1 == null ? new int[width] : null;
+		for (int y = fromRow; y < toRow; y++) {
+			int start = y * width;
+			if (data0 != null && data1 != null) {
+				if (!equal(data0, fill0, data1, fill1, start, start + width)) {
+					return false;
+				}
+				continue;
+			}
+			int[] pixels0 = data0 == null ? image0.getRGB(0, y, width, 1, row0, 0, width) : data0;
+			int[] pixels1 = data1 == null ? image1.getRGB(0, y, width, 1, row1, 0, width) : data1;
+			int offset0 = data0 == null ? 0 : start;
+			int offset1 = data1 == null ? 0 : start;
+			for (int x = 0; x < width; x++) {
+				if ((pixels0[offset0 + x] | fill0) != (pixels1[offset1 + x] | fill1)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * dst[i] = src[i] & select, which keeps only the color components chosen by select.
+	 */
+	static void select(int[] src, int[] dst, int from, int to, int select) {
+		for (int i = from; i < to; i++) {
+			dst[i] = src[i] & select;
+		}
+	}
+
+	/**
+	 * dst[i] = left[i] op right[i], applied to each color component
+	 */
+	static void imageImage(OP op, int[] left, int[] right, int[] dst, int from, int to) {
+		Arithmetic vector = vectorKernels;
+		if (vector != null) {
+			vector.imageImage(op, left, right, dst, from, to);
+		}
+		else {
+			imageImageLoop(op, left, right, dst, from, to);
+		}
+	}
+
+	/** Scalar implementation of imageImage, one pixel per iteration */
+	static void imageImageLoop(OP op, int[] left, int[] right, int[] dst, int from, int to) {
+		for (int i = from; i < to; i++) {
+			dst[i] = ImageOps.binaryPackedPixelPixelOp(op, left[i], right[i]) & SELECT_RGB;
+		}
+	}
+
+	/**
+	 * dst[i] = left[i] op right, applied to each color component
+	 */
+	static void imagePixel(OP op, int[] left, int right, int[] dst, int from, int to) {
+		Arithmetic vector = vectorKernels;
+		if (vector != null) {
+			vector.imagePixel(op, left, right, dst, from, to);
+		}
+		else {
+			imagePixelLoop(op, left, right, dst, from, to);
+		}
+	}
+
+	/** Scalar implementation of imagePixel, one pixel per iteration */
+	static void imagePixelLoop(OP op, int[] left, int right, int[] dst, int from, int to) {
+		for (int i = from; i < to; i++) {
+			dst[i] = ImageOps.binaryPackedPixelPixelOp(op, left[i], right) & SELECT_RGB;
+		}
+	}
+
+	/**
+	 * dst[i] = left[i] op right, where right is applied to each color component
+	 */
+	static void imageScalar(OP op, int[] left, int right, int[] dst, int from, int to) {
+		imageScalar(op, left, right, scalarTable(op, right), dst, from, to);
+	}
+
+	/**
+	 * Like imageScalar(op, left, right, dst, from, to), with the table returned by
+	 * scalarTable(op, right). Operations that are split into strips or chunks get the
+	 * table once and pass it to each of them.
+	 */
+	static void imageScalar(OP op, int[] left, int right, int[] table, int[] dst, int from, int to) {
+		Arithmetic vector = vectorKernels;
+		if (vector != null) {
+			vector.imageScalar(op, left, right, table, dst, from, to);
+		}
+		else {
+			imageScalarLoop(op, left, right, table, dst, from, to);
+		}
+	}
+
+	/**
+	 * Returns the ChannelTables table that imageScalarLoop looks up the results of op
+	 * and right in, or null if it computes them with the SWAR methods in PixelOps,
+	 * which is faster than a table lookup. Throws an ArithmeticException for DIV and
+	 * MOD by zero.
+	 */
+	static int[] scalarTable(OP op, int right) {
+		boolean swar = (op == OP.TIMES && right >= 0)
+				|| ((op == OP.PLUS || op == OP.MINUS) && -255 <= right && right <= 255);
+		return swar ? null : ChannelTables.get(op, right);
+	}
+
+	/**
+	 * Scalar implementation of imageScalar. Looks up the components of each pixel in
+	 * table, or uses binaryPackedPixelScalarOp if table is null (see scalarTable).
+	 */
+	static void imageScalarLoop(OP op, int[] left, int right, int[] table, int[] dst, int from, int to) {
+		if (table == null) {
+			for (int i = from; i < to; i++) {
+				dst[i] = ImageOps.binaryPackedPixelScalarOp(op, left[i], right) & SELECT_RGB;
+			}
+			return;
+		}
+		for (int i = from; i < to; i++) {
+			dst[i] = ChannelTables.apply(table, left[i]);
+		}
+	}
+
+}
@@ -0,0 +1,249 @@
+package edu.ufl.cise.plcsp23.runtime;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntBinaryOperator;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import edu.ufl.cise.plcsp23.runtime.ImageOps.OP;
+
+class ImageKernelsTest {
+
+	/** Kinds of images with and without an int[] the kernels can use */
+	static final int[] TYPES = { BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB,
+			BufferedImage.TYPE_3BYTE_BGR };
+
+	@AfterEach
+	void reset() {
+		ImageKernels.setParallel(true);
+		ImageKernels.setParallelThreshold(1 << 18);
+		ImageKernels.setPool(ForkJoinPool.commonPool());
+	}
+
+	/** The component computation of the reference implementation */
+	static int expected(OP op, int left, int right) {
+		int lred = PixelOps.red(left), rred = PixelOps.red(right);
+		int lgrn = PixelOps.grn(left), rgrn = PixelOps.grn(right);
+		int lblu = PixelOps.blu(left), rblu = PixelOps.blu(right);
+		return switch (op) {
+		case PLUS -> PixelOps.pack(lred + rred, lgrn + rgrn, lblu + rblu);
+		case MINUS -> PixelOps.pack(lred - rred, lgrn - rgrn, lblu - rblu);
+		case TIMES -> PixelOps.pack(lred * rred, lgrn * rgrn, lblu * rblu);
+		case DIV -> PixelOps.pack(lred / rred, lgrn / rgrn, lblu / rblu);
+		case MOD -> PixelOps.pack(lred % rred, lgrn % rgrn, lblu % rblu);
+		};
+	}
+
+	/** An image with random pixels, and random alpha values if it has alpha */
+	static BufferedImage random(int w, int h, int type, Random random) {
+		BufferedImage image = new BufferedImage(w, h, type);
+		for (int y = 0; y < h; y++) {
+			for (int x = 0; x < w; x++) {
+				image.setRGB(x, y, random.nextInt());
+			}
+		}
+		return image;
+	}
+
+	/** What the reference implementation computed: f of the getRGB values of each pixel */
+	static int[] reference(BufferedImage left, BufferedImage right, IntBinaryOperator f) {
+		int w = left.getWidth();
+		int[] pixels = new int[w * left.getHeight()];
+		for (int i = 0; i < pixels.length; i++) {
+			pixels[i] = f.applyAsInt(left.getRGB(i % w, i / w), right == null ? 0 : right.getRGB(i % w, i / w));
+		}
+		return pixels;
+	}
+
+	static void assertPixels(int[] expected, BufferedImage actual, String message) {
+		assertEquals(BufferedImage.TYPE_INT_RGB, actual.getType(), message);
+		assertArrayEquals(expected, ImageOps.getRGBPixels(actual), message);
+	}
+
+	@Test
+	void arithmeticMatchesTheReference() {
+		Random random = new Random(1);
+		for (int leftType : TYPES) {
+			for (int rightType : TYPES) {
+				BufferedImage left = random(29, 17, leftType, random);
+				BufferedImage right = random(29, 17, rightType, random);
+				for (int y = 0; y < 17; y++) {
+					for (int x = 0; x < 29; x++) { // no zero components, so that DIV and MOD are defined
+						right.setRGB(x, y, right.getRGB(x, y) | 0x010101);
+					}
+				}
+				int pixel = random.nextInt() | 0x010101;
+				for (OP op : OP.values()) {
+					String message = op + " " + leftType + " " + rightType;
+					assertPixels(reference(left, right, (l, r) -> expected(op, l, r)),
+							ImageOps.binaryImageImageOp(op, left, right), message);
+					assertPixels(reference(left, null, (l, r) -> expected(op, l, pixel)),
+							ImageOps.binaryImagePixelOp(op, left, pixel), message);
+					for (int scalar : ChannelTablesTest.SCALARS) {
+						assertPixels(reference(left, null, (l, r) -> ChannelTablesTest.expected(op, l, scalar)),
+								ImageOps.binaryImageScalarOp(op, left, scalar), message + " " + scalar);
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	void subimagesAreReadThroughTheirRaster() {
+		Random random = new Random(2);
+		BufferedImage image = random(40, 30, BufferedImage.TYPE_INT_RGB, random).getSubimage(5, 7, 20, 10);
+		assertNull(ImageKernels.data(image));
+		BufferedImage other = random(20, 10, BufferedImage.TYPE_INT_RGB, random);
+		assertPixels(reference(image, other, (l, r) -> expected(OP.MINUS, l, r)),
+				ImageOps.binaryImageImageOp(OP.MINUS, image, other), "subimage");
+		assertPixels(reference(image, null, (l, r) -> l & PixelOps.SELECT_GRN | PixelOps.SELECT_ALPHA),
+				ImageOps.extractGrn(image), "subimage");
+	}
+
+	@Test
+	void channelsAreExtracted() {
+		Random random = new Random(3);
+		for (int type : TYPES) {
+			BufferedImage image = random(23, 31, type, random);
+			assertPixels(reference(image, null, (l, r) -> l & PixelOps.SELECT_RED | PixelOps.SELECT_ALPHA),
+					ImageOps.extractRed(image), "red " + type);
+			assertPixels(reference(image, null, (l, r) -> l & PixelOps.SELECT_GRN | PixelOps.SELECT_ALPHA),
+					ImageOps.extractGrn(image), "grn " + type);
+			assertPixels(reference(image, null, (l, r) -> l & PixelOps.SELECT_BLU | PixelOps.SELECT_ALPHA),
+					ImageOps.extractBlu(image), "blu " + type);
+		}
+	}
+
+	@Test
+	void setAllPixelsAndCloneKeepTheType() {
+		Random random = new Random(4);
+		for (int type : TYPES) {
+			BufferedImage image = random(13, 11, type, random);
+			BufferedImage expected = random(13, 11, type, random);
+			for (int y = 0; y < 11; y++) {
+				for (int x = 0; x < 13; x++) {
+					expected.setRGB(x, y, 0x80123456);
+				}
+			}
+			ImageOps.setAllPixels(image, 0x80123456);
+			assertArrayEquals(ImageOps.getRGBPixels(expected), ImageOps.getRGBPixels(image), "set " + type);
+			BufferedImage clone = ImageOps.cloneImage(image);
+			assertEquals(type, clone.getType());
+			assertArrayEquals(ImageOps.getRGBPixels(image), ImageOps.getRGBPixels(clone), "clone " + type);
+		}
+	}
+
+	@Test
+	void equalsComparesColorsLikeGetRGB() {
+		Random random = new Random(5);
+		BufferedImage rgb = random(17, 9, BufferedImage.TYPE_INT_RGB, random);
+		BufferedImage bgr = new BufferedImage(17, 9, BufferedImage.TYPE_3BYTE_BGR);
+		BufferedImage argb = new BufferedImage(17, 9, BufferedImage.TYPE_INT_ARGB);
+		int[] pixels = ImageOps.getRGBPixels(rgb);
+		bgr.setRGB(0, 0, 17, 9, pixels, 0, 17);
+		argb.setRGB(0, 0, 17, 9, pixels, 0, 17);
+		assertTrue(ImageOps.equals(rgb, bgr));
+		assertTrue(ImageOps.equals(argb, rgb));
+		argb.setRGB(3, 4, argb.getRGB(3, 4) & 0xffffff); // the same color, but transparent
+		assertFalse(ImageOps.equals(argb, rgb));
+		bgr.setRGB(16, 8, ~bgr.getRGB(16, 8));
+		assertFalse(ImageOps.equals(rgb, bgr));
+	}
+
+	@Test
+	void errorsOfTheReferenceAreKept() {
+		BufferedImage image = new BufferedImage(4, 4, BufferedImage.TYPE_INT_RGB);
+		assertThrows(PLCRuntimeException.class,
+				() -> ImageOps.binaryImageImageOp(OP.PLUS, image, new BufferedImage(4, 5, BufferedImage.TYPE_INT_RGB)));
+		assertThrows(ArithmeticException.class, () -> ImageOps.binaryImageImageOp(OP.DIV, image, image));
+		assertThrows(ArithmeticException.class, () -> ImageOps.binaryImagePixelOp(OP.MOD, image, 0));
+		assertThrows(ArithmeticException.class, () -> ImageOps.binaryImageScalarOp(OP.DIV, image, 0));
+	}
+
+	@Test
+	void parallelStripsGiveTheSequentialResults() {
+		Random random = new Random(6);
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			ImageKernels.setPool(pool);
+			ImageKernels.setParallelThreshold(1);
+			for (int[] size : new int[][] { { 1, 1 }, { 300, 1 }, { 1, 300 }, { 97, 61 }, { 640, 480 } }) {
+				BufferedImage left = random(size[0], size[1], BufferedImage.TYPE_INT_RGB, random);
+				BufferedImage right = random(size[0], size[1], BufferedImage.TYPE_3BYTE_BGR, random);
+				for (OP op : new OP[] { OP.PLUS, OP.TIMES }) {
+					ImageKernels.setParallel(true);
+					BufferedImage parallel = ImageOps.binaryImageImageOp(op, left, right);
+					BufferedImage scalar = ImageOps.binaryImageScalarOp(op, left, 3);
+					BufferedImage red = ImageOps.extractRed(right);
+					ImageKernels.setParallel(false);
+					String message = op + " " + size[0] + "x" + size[1];
+					assertPixels(ImageOps.getRGBPixels(ImageOps.binaryImageImageOp(op, left, right)), parallel, message);
+					assertPixels(ImageOps.getRGBPixels(ImageOps.binaryImageScalarOp(op, left, 3)), scalar, message);
+					assertPixels(ImageOps.getRGBPixels(ImageOps.extractRed(right)), red, message);
+				}
+			}
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	void parallelKernelsCoverEveryPixelOnce() {
+		ForkJoinPool pool = new ForkJoinPool(3);
+		try {
+			ImageKernels.setPool(pool);
+			ImageKernels.setParallelThreshold(1);
+			int width = 13;
+			int height = 101;
+			AtomicInteger[] counts = new AtomicInteger[width * height];
+			for (int i = 0; i < counts.length; i++) {
+				counts[i] = new AtomicInteger();
+			}
+			ImageKernels.run(width, height, (from, to) -> {
+				assertEquals(0, from % width);
+				for (int i = from; i < to; i++) {
+					counts[i].incrementAndGet();
+				}
+			});
+			for (AtomicInteger count : counts) {
+				assertEquals(1, count.get());
+			}
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	void parallelEqualsFindsAnyDifference() {
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			ImageKernels.setPool(pool);
+			ImageKernels.setParallelThreshold(1);
+			BufferedImage image = random(200, 150, BufferedImage.TYPE_INT_RGB, new Random(7));
+			BufferedImage copy = ImageOps.cloneImage(image);
+			assertTrue(ImageOps.equals(image, copy));
+			for (int[] xy : new int[][] { { 0, 0 }, { 100, 75 }, { 199, 149 } }) {
+				BufferedImage changed = ImageOps.cloneImage(image);
+				changed.setRGB(xy[0], xy[1], ~changed.getRGB(xy[0], xy[1]));
+				assertFalse(ImageOps.equals(image, changed));
+			}
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+}
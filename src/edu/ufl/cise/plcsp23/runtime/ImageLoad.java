@@ -0,0 +1,145 @@
+package edu.ufl.cise.plcsp23.runtime;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An image being read in the background. The generated code starts a load at the
+ * beginning of apply for every image declared with a string that is already known
+ * there, and joins it where the image is first used, so images are decoded in
+ * parallel with each other and with the computation in between.
+ *
+ * Files are decoded on a pool with one thread per processor, since decoding is bound
+ * by the processor. URLs are read on virtual threads where the Java version has them,
+ * and otherwise on a larger pool, since they mostly wait for the network; HTTP
+ * requests only take a thread once the response arrives (see HttpImages). Errors are
+ * thrown by join, as readImage would have thrown them.
+ *
+ * Loads can be turned off with setEnabled or the system property plc.asyncLoad; the
+ * image is then read when the load is joined.
+ */
+public final class ImageLoad {
+
+	private static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+	private static volatile boolean enabled = Boolean.parseBoolean(System.getProperty("plc.asyncLoad", "true"));
+
+	private static final ExecutorService fileReaders = pool(THREADS, "plc-image-load");
+	private static final ExecutorService urlReaders = urlReaders();
+
+	private final String source;
+	private final Integer width;
+	private final Integer height;
+	/** The image being read, or null if it is read by join */
+	private final CompletableFuture<BufferedImage> image;
+	/** The image read by join if loads were off */
+	private BufferedImage read;
+
+	private ImageLoad(String source, Integer width, Integer height) {
+		this.source = source;
+		this.width = width;
+		this.height = height;
+		this.image = enabled ? FileURLIO.readImageAsync(source, width, height) : null;
+	}
+
+	/** Starts reading the image from the given URL or filename, see FileURLIO.readImage */
+	public static ImageLoad start(String source) {
+		return new ImageLoad(source, null, null);
+	}
+
+	/**
+	 * Starts reading the image from the given URL or filename, resized to width by
+	 * height unless they are null
+	 */
+	public static ImageLoad start(String source, Integer width, Integer height) {
+		return new ImageLoad(source, width, height);
+	}
+
+	/** Waits for the image to be read and returns it */
+	public BufferedImage join() {
+		if (image == null) {
+			if (read == null) {
+				read = read();
+			}
+			return read;
+		}
+		try {
+			return image.join();
+		}
+		catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException cause) {
+				throw cause;
+			}
+			if (e.getCause() instanceof Error cause) {
+				throw cause;
+			}
+			throw new PLCRuntimeException(e.getCause());
+		}
+	}
+
+	/**
+	 * Waits for all the given loads, throwing the error of the first one that failed.
+	 * The generated code calls this before apply returns, so that an image that was
+	 * never read still throws its error, as reading it at its declaration would have.
+	 */
+	public static void joinAll(ImageLoad... loads) {
+		for (ImageLoad load : loads) {
+			load.join();
+		}
+	}
+
+	private BufferedImage read() {
+		return width == null || height == null ? FileURLIO.readImage(source)
+				: FileURLIO.readImage(source, width, height);
+	}
+
+	/** Turns background loading on or off */
+	public static void setEnabled(boolean on) {
+		enabled = on;
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * The executor for reading source in the background. Tasks on the pool for files
+	 * are started in the order they are submitted, so a load may wait for a preload
+	 * submitted before it (see FileURLIO.preload).
+	 */
+	static ExecutorService executor(String source) {
+		return FileURLIO.isRemote(source) ? urlReaders : fileReaders;
+	}
+
+	/** A pool of at most the given number of daemon threads, which end when idle */
+	private static ExecutorService pool(int threads, String name) {
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<>(), r -> {
+					Thread thread = new Thread(r, name);
+					thread.setDaemon(true);
+					return thread;
+				});
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
+	/**
+	 * Virtual threads are looked up reflectively so that the runtime still works on
+	 * Java versions without them.
+	 */
+	private static ExecutorService urlReaders() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}
+		catch (ReflectiveOperationException e) {
+			return pool(4 * THREADS, "plc-image-fetch");
+		}
+	}
+
+}
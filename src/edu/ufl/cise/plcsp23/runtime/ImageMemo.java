@@ -0,0 +1,197 @@
+package edu.ufl.cise.plcsp23.runtime;
+
+import java.awt.image.BufferedImage;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * A cache of the results of image operations, used by ImageOps when memoization is
+ * turned on (see ImageOps.setMemoized). A result is found again if the same operation
+ * is applied with the same arguments to the same image, and the image has not been
+ * changed in between (see ImageVersions).
+ *
+ * The caller of an operation owns its result and may change it, so the cache keeps
+ * its own copy and hands out copies of it. A hit therefore still copies the pixels
+ * once, which is much less work than resizing an image or dividing every component,
+ * but about as much as extracting a channel.
+ *
+ * The cache holds at most a given number of results and bytes of pixel data, and
+ * drops the least recently used results first. Results are only softly referenced,
+ * so the garbage collector may also drop them when memory runs low.
+ */
+public class ImageMemo {
+
+	private static final class Key {
+		final WeakReference<BufferedImage> image;
+		final int identity;
+		final long version;
+		final String operation;
+		final int arg0;
+		final int arg1;
+
+		Key(BufferedImage image, long version, String operation, int arg0, int arg1) {
+			this.image = new WeakReference<>(image);
+			this.identity = System.identityHashCode(image);
+			this.version = version;
+			this.operation = operation;
+			this.arg0 = arg0;
+			this.arg1 = arg1;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key k)) {
+				return false;
+			}
+			BufferedImage i = image.get();
+			return i != null && i == k.image.get() && version == k.version && operation.equals(k.operation)
+					&& arg0 == k.arg0 && arg1 == k.arg1;
+		}
+
+		@Override
+		public int hashCode() {
+			return ((identity * 31 + Long.hashCode(version)) * 31 + operation.hashCode()) * 31 + arg0 * 17 + arg1;
+		}
+	}
+
+	private record Entry(SoftReference<BufferedImage> result, long bytes) {
+	}
+
+	/** Cached results, least recently used first. Also guards bytes. */
+	private static final LinkedHashMap<Key, Entry> results = new LinkedHashMap<>(64, 0.75f, true);
+	private static long bytes;
+
+	private static volatile int maxEntries = 256;
+	private static volatile long maxBytes = Runtime.getRuntime().maxMemory() / 16;
+
+	private static final LongAdder hits = new LongAdder();
+	private static final LongAdder misses = new LongAdder();
+	private static final LongAdder evictions = new LongAdder();
+
+	/**
+	 * Returns a copy of the cached result of operation with the given arguments on
+	 * image, computing and caching it with compute if there is none.
+	 */
+	static BufferedImage apply(String operation, BufferedImage image, int arg0, int arg1,
+			Supplier<BufferedImage> compute) {
+		Key key = new Key(image, ImageVersions.version(image), operation, arg0, arg1);
+		BufferedImage cached = null;
+		synchronized (results) {
+			Entry entry = results.get(key);
+			if (entry != null) {
+				cached = entry.result.get();
+				if (cached == null) { // dropped by the garbage collector
+					results.remove(key);
+					bytes -= entry.bytes;
+				}
+			}
+		}
+		if (cached != null) {
+			hits.increment();
+			return ImageOps.cloneImage(cached);
+		}
+		misses.increment();
+		BufferedImage result = compute.get();
+		long size = 4L * result.getWidth() * result.getHeight();
+		if (size <= maxBytes) {
+			BufferedImage copy = ImageOps.cloneImage(result);
+			synchronized (results) {
+				Entry old = results.put(key, new Entry(new SoftReference<>(copy), size));
+				bytes += size - (old == null ? 0 : old.bytes);
+				evict(maxEntries, maxBytes);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Drops the least recently used results, and those whose image or pixels are
+	 * gone, until the cache fits the limits. Must hold the lock.
+	 */
+	private static void evict(int entries, long budget) {
+		Iterator<Map.Entry<Key, Entry>> i = results.entrySet().iterator();
+		while (i.hasNext()) {
+			Map.Entry<Key, Entry> e = i.next();
+			boolean gone = e.getKey().image.get() == null || e.getValue().result.get() == null;
+			if (gone || results.size() > entries || bytes > budget) {
+				i.remove();
+				bytes -= e.getValue().bytes;
+				if (!gone) {
+					evictions.increment();
+				}
+			}
+		}
+	}
+
+	/** Sets the maximum number of results kept in the cache */
+	public static void setMaxEntries(int entries) {
+		maxEntries = entries;
+		synchronized (results) {
+			evict(entries, maxBytes);
+		}
+	}
+
+	/** Sets the maximum number of bytes of pixel data kept in the cache */
+	public static void setMaxBytes(long max) {
+		maxBytes = max;
+		synchronized (results) {
+			evict(maxEntries, max);
+		}
+	}
+
+	/** Drops all cached results */
+	public static void clear() {
+		synchronized (results) {
+			results.clear();
+			bytes = 0;
+		}
+	}
+
+	/** Number of results currently in the cache */
+	public static int size() {
+		synchronized (results) {
+			return results.size();
+		}
+	}
+
+	/** Number of bytes of pixel data currently in the cache */
+	public static long cachedBytes() {
+		synchronized (results) {
+			return bytes;
+		}
+	}
+
+	/** Number of operations answered from the cache */
+	public static long hits() {
+		return hits.sum();
+	}
+
+	/** Number of operations that had to be computed */
+	public static long misses() {
+		return misses.sum();
+	}
+
+	/** Number of results dropped to stay within the limits */
+	public static long evictions() {
+		return evictions.sum();
+	}
+
+	/** Fraction of operations answered from the cache, or 0 if there were none */
+	public static double hitRate() {
+		long h = hits.sum();
+		long total = h + misses.sum();
+		return total == 0 ? 0 : (double) h / total;
+	}
+
+	public static void resetStatistics() {
+		hits.reset();
+		misses.reset();
+		evictions.reset();
+	}
+
+}
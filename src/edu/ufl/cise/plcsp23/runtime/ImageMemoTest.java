@@ -0,0 +1,141 @@
+package edu.ufl.cise.plcsp23.runtime;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.Random;
+import java.util.function.UnaryOperator;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import edu.ufl.cise.plcsp23.runtime.ImageOps.OP;
+
+class ImageMemoTest {
+
+	@BeforeEach
+	void memoized() {
+		ImageOps.setMemoized(true);
+		ImageMemo.resetStatistics();
+	}
+
+	@AfterEach
+	void reset() {
+		ImageOps.setMemoized(false);
+		ImageOps.setLazy(false);
+		ImageMemo.setMaxEntries(256);
+		ImageMemo.setMaxBytes(Runtime.getRuntime().maxMemory() / 16);
+		Resize.setMode(Resize.Mode.NEAREST);
+		ImageMemo.resetStatistics();
+	}
+
+	/** Each memoized operation, some of them with arguments that use the lookup tables */
+	static final List<UnaryOperator<BufferedImage>> OPERATIONS = List.of(image -> ImageOps.extractRed(image),
+			image -> ImageOps.extractGrn(image), image -> ImageOps.extractBlu(image),
+			image -> ImageOps.binaryImageScalarOp(OP.DIV, image, 3),
+			image -> ImageOps.binaryImageScalarOp(OP.TIMES, image, 3),
+			image -> ImageOps.binaryImagePixelOp(OP.MINUS, image, 0x102030),
+			image -> ImageOps.copyAndResize(image, 17, 9), image -> ImageOps.copyAndResize(image, 80, 40));
+
+	@Test
+	void cachedResultsAreTheComputedOnes() {
+		BufferedImage image = ImageKernelsTest.random(40, 20, BufferedImage.TYPE_INT_RGB, new Random(30));
+		ImageOps.setMemoized(false);
+		int[][] results = new int[OPERATIONS.size()][];
+		for (int i = 0; i < OPERATIONS.size(); i++) {
+			results[i] = ImageOps.getRGBPixels(OPERATIONS.get(i).apply(image));
+		}
+		ImageOps.setMemoized(true);
+		for (int i = 0; i < OPERATIONS.size(); i++) {
+			int[] expected = results[i];
+			BufferedImage first = OPERATIONS.get(i).apply(image);
+			BufferedImage second = OPERATIONS.get(i).apply(image);
+			assertNotSame(first, second);
+			assertArrayEquals(expected, ImageOps.getRGBPixels(first), "operation " + i);
+			assertArrayEquals(expected, ImageOps.getRGBPixels(second), "operation " + i);
+			// the caller owns the result, so changing it does not change the cached one
+			ImageOps.setAllPixels(second, 0x123456);
+			assertArrayEquals(expected, ImageOps.getRGBPixels(OPERATIONS.get(i).apply(image)), "operation " + i);
+		}
+		assertEquals(OPERATIONS.size(), ImageMemo.misses());
+		assertEquals(2 * OPERATIONS.size(), ImageMemo.hits());
+		assertEquals(OPERATIONS.size(), ImageMemo.size());
+	}
+
+	@Test
+	void changedImagesAreComputedAgain() {
+		BufferedImage image = ImageKernelsTest.random(40, 20, BufferedImage.TYPE_INT_RGB, new Random(31));
+		BufferedImage other = ImageOps.cloneImage(image);
+		BufferedImage before = ImageOps.binaryImageScalarOp(OP.PLUS, image, 10);
+		ImageOps.setRGB(image, 5, 5, 0);
+		ImageOps.setMemoized(false);
+		int[] expected = ImageOps.getRGBPixels(ImageOps.binaryImageScalarOp(OP.PLUS, image, 10));
+		ImageOps.setMemoized(true);
+		assertArrayEquals(expected, ImageOps.getRGBPixels(ImageOps.binaryImageScalarOp(OP.PLUS, image, 10)));
+		assertFalse(ImageOps.equals(before, ImageOps.binaryImageScalarOp(OP.PLUS, image, 10)));
+		assertEquals(1, ImageMemo.hits());
+		// an equal image is a different key
+		assertTrue(ImageOps.equals(before, ImageOps.binaryImageScalarOp(OP.PLUS, other, 10)));
+		assertEquals(1, ImageMemo.hits());
+	}
+
+	@Test
+	void argumentsAreToldApart() {
+		BufferedImage image = ImageKernelsTest.random(40, 20, BufferedImage.TYPE_INT_RGB, new Random(32));
+		ImageOps.binaryImageScalarOp(OP.PLUS, image, 10);
+		ImageOps.binaryImageScalarOp(OP.MINUS, image, 10);
+		ImageOps.binaryImageScalarOp(OP.PLUS, image, 11);
+		ImageOps.binaryImagePixelOp(OP.PLUS, image, 10);
+		ImageOps.copyAndResize(image, 10, 11);
+		ImageOps.copyAndResize(image, 11, 10);
+		Resize.setMode(Resize.Mode.BILINEAR);
+		BufferedImage bilinear = ImageOps.copyAndResize(image, 10, 11);
+		assertEquals(0, ImageMemo.hits());
+		ImageOps.setMemoized(false);
+		assertTrue(ImageOps.equals(ImageOps.copyAndResize(image, 10, 11), bilinear));
+	}
+
+	@Test
+	void temporariesAndLazyResultsAreNotCached() {
+		BufferedImage image = ImageKernelsTest.random(40, 20, BufferedImage.TYPE_INT_RGB, new Random(33));
+		ImageOps.binaryImageScalarOp(OP.PLUS, ImageOps.cloneImage(image), 10, ImageOps.TEMP_LEFT);
+		ImageOps.extractRed(ImageOps.cloneImage(image), ImageOps.TEMP_LEFT);
+		ImageOps.setLazy(true);
+		ImageOps.materialize(ImageOps.binaryImageScalarOp(OP.PLUS, image, 10));
+		assertEquals(0, ImageMemo.size());
+		assertEquals(0, ImageMemo.hits() + ImageMemo.misses());
+	}
+
+	@Test
+	void cacheStaysWithinItsLimits() {
+		Random random = new Random(34);
+		BufferedImage image = ImageKernelsTest.random(40, 20, BufferedImage.TYPE_INT_RGB, random);
+		ImageMemo.setMaxEntries(3);
+		for (int i = 0; i < 5; i++) {
+			ImageOps.binaryImageScalarOp(OP.PLUS, image, i);
+		}
+		assertEquals(3, ImageMemo.size());
+		assertEquals(2, ImageMemo.evictions());
+		ImageOps.binaryImageScalarOp(OP.PLUS, image, 4);
+		assertEquals(1, ImageMemo.hits());
+		ImageOps.binaryImageScalarOp(OP.PLUS, image, 0); // evicted, the least recently used
+		assertEquals(1, ImageMemo.hits());
+
+		ImageMemo.setMaxBytes(2 * 4 * 40 * 20);
+		assertEquals(2, ImageMemo.size());
+		assertEquals(2 * 4 * 40 * 20, ImageMemo.cachedBytes());
+		ImageOps.copyAndResize(image, 400, 200); // larger than the whole cache
+		assertEquals(2, ImageMemo.size());
+
+		ImageOps.setMemoized(false);
+		assertEquals(0, ImageMemo.size());
+		assertEquals(0, ImageMemo.cachedBytes());
+	}
+
+}
@@ -10,6 +10,7 @@
 
 package edu.ufl.cise.plcsp23.runtime;
 
+import java.awt.Dimension;
 import java.awt.Graphics2D;
 import java.awt.geom.AffineTransform;
 import java.awt.image.AffineTransformOp;
@@ -39,6 +40,92 @@ import edu.ufl.cise.plcsp23.runtime.PLCRuntimeException;
 
 public class ImageOps {
 
+	/**
+	 * Flags for the temporaries argument of the image operations that have one. They
+	 * tell the operation which of its image arguments are intermediate results that
+	 * nothing else refers to, like the result of a + b in (a + b) * c. The
+	 * operation may store its result in such an image, and gives it back to the
+	 * ImagePool otherwise.
+	 */
+	public static final int TEMP_LEFT = 1;
+	public static final int TEMP_RIGHT = 2;
+
+	private static volatile boolean lazy = Boolean.getBoolean("plc.lazy");
+
+	/**
+	 * Turns lazy mode on or off. In lazy mode, the image operations that compute each
+	 * pixel from the pixels at the same position return a LazyImage, which is only
+	 * evaluated when its pixels are needed. Nested operations are then evaluated
+	 * together in one pass without intermediate images. It is off by default, and can
+	 * also be turned on with the system property plc.lazy.
+	 */
+	public static void setLazy(boolean on) {
+		lazy = on;
+	}
+
+	public static boolean isLazy() {
+		return lazy;
+	}
+
+	private static volatile boolean hashedEquals = Boolean.getBoolean("plc.hashEquals");
+
+	/**
+	 * Turns hashed equality on or off. When it is on, equals uses what it knows about
+	 * the images before it compares their pixels: images that are unchanged copies of
+	 * the same contents are equal (see ImageVersions), and images whose cached content
+	 * hashes differ are not. This relies on the images being changed only through this
+	 * class, so it must only be turned on for generated code that does not share its
+	 * images. It is off by default, and can also be turned on with the system property
+	 * plc.hashEquals.
+	 */
+	public static void setHashedEquals(boolean on) {
+		hashedEquals = on;
+		ImageHash.clear();
+	}
+
+	public static boolean isHashedEquals() {
+		return hashedEquals;
+	}
+
+	private static volatile boolean memoized = Boolean.getBoolean("plc.memoize");
+
+	/**
+	 * Turns memoization on or off. When it is on, the results of extractRed, extractGrn,
+	 * extractBlu, binaryImageScalarOp, binaryImagePixelOp and copyAndResize are cached
+	 * in ImageMemo, and the same operation on an image that has not changed since is
+	 * answered with a copy of the cached result. Like hashed equality, this relies on
+	 * images being changed only through this class. It is off by default, and can
+	 * also be turned on with the system property plc.memoize.
+	 */
+	public static void setMemoized(boolean on) {
+		memoized = on;
+		if (!on) {
+			ImageMemo.clear();
+		}
+	}
+
+	public static boolean isMemoized() {
+		return memoized;
+	}
+
+	/**
+	 * True if the result of an operation on image can be cached: memoization is on,
+	 * the image is not a temporary that the operation may reuse, and it is not one of
+	 * the kinds of images that are not worth copying.
+	 */
+	private static boolean isMemoizable(BufferedImage image, int temporaries) {
+		return memoized && !lazy && (temporaries & TEMP_LEFT) == 0 && !(image instanceof TiledImage)
+				&& !(image instanceof LazyImage);
+	}
+
+	/**
+	 * Returns the evaluated image if image is a LazyImage, and image itself otherwise.
+	 * The generated code calls this before it stores an image that may be lazy.
+	 */
+	public static BufferedImage materialize(BufferedImage image) {
+		return image instanceof LazyImage lazyImage ? lazyImage.evaluate() : image;
+	}
+
 //	/**
 //	 * returns the pixel at the x,y location in the given image in packed int form.
 //	 * 
@@ -60,18 +147,11 @@ public class ImageOps {
 	 * @return
 	 */
 	public static BufferedImage extractRed(BufferedImage image) {
-		int width = image.getWidth();
-		int height = image.getHeight();
-		BufferedImage newImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-		for (int x = 0; x < width; x++) {
-			for (int y = 0; y < height; y++) {
-				int pixel = getRGB(image, x, y);
-				int red = PixelOps.red(pixel);
-				int redPixel = PixelOps.pack(red, 0, 0);
-				newImage.setRGB(x, y, redPixel);
-			}
-		}
-		return newImage;
+		return extract(image, PixelOps.SELECT_RED, 0);
+	}
+
+	public static BufferedImage extractRed(BufferedImage image, int temporaries) {
+		return extract(image, PixelOps.SELECT_RED, temporaries);
 	}
 
 	/**
@@ -83,18 +163,11 @@ public class ImageOps {
 	 * @return
 	 */
 	public static BufferedImage extractGrn(BufferedImage image) {
-		int width = image.getWidth();
-		int height = image.getHeight();
-		BufferedImage newImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-		for (int x = 0; x < width; x++) {
-			for (int y = 0; y < height; y++) {
-				int pixel = getRGB(image, x, y);
-				int grn = PixelOps.grn(pixel);
-				int grnPixel = PixelOps.pack(0, grn, 0);
-				newImage.setRGB(x, y, grnPixel);
-			}
-		}
-		return newImage;
+		return extract(image, PixelOps.SELECT_GRN, 0);
+	}
+
+	public static BufferedImage extractGrn(BufferedImage image, int temporaries) {
+		return extract(image, PixelOps.SELECT_GRN, temporaries);
 	}
 
 	/**
@@ -106,20 +179,136 @@ public class ImageOps {
 	 * @return
 	 */
 	public static BufferedImage extractBlu(BufferedImage image) {
+		return extract(image, PixelOps.SELECT_BLU, 0);
+	}
+
+	public static BufferedImage extractBlu(BufferedImage image, int temporaries) {
+		return extract(image, PixelOps.SELECT_BLU, temporaries);
+	}
+
+	/**
+	 * Returns a new image containing only the color components of the given image
+	 * selected by the mask select.
+	 */
+	private static BufferedImage extract(BufferedImage image, int select, int temporaries) {
+		if (isMemoizable(image, temporaries)) {
+			return ImageMemo.apply("extract", image, select, 0, () -> extractPixels(image, select, 0));
+		}
+		return extractPixels(image, select, temporaries);
+	}
+
+	private static BufferedImage extractPixels(BufferedImage image, int select, int temporaries) {
+		if (isTiled(image, null)) {
+			BufferedImage newImage = TiledImage.apply(image, null, (l, r, d, from, to) -> ImageKernels.select(l, d, from, to, select));
+			releaseTemporaries(image, null, temporaries, newImage);
+			return newImage;
+		}
+		if (image instanceof PlanarImage planar) { // keep one plane and clear the others
+			int channel = select == PixelOps.SELECT_RED ? PlanarImage.RED
+					: select == PixelOps.SELECT_GRN ? PlanarImage.GRN : PlanarImage.BLU;
+			PlanarImage newImage = planarTarget(planar, null, temporaries);
+			PlanarImage.apply(planar, null, newImage, (c, l, r, d, from, to) -> {
+				if (c != channel) {
+					Arrays.fill(d, from, to, (byte) 0);
+				}
+				else if (d != l) {
+					System.arraycopy(l, from, d, from, to - from);
+				}
+			});
+			releaseTemporaries(image, null, temporaries, newImage);
+			return newImage;
+		}
+		if (lazy) { // image, if it is a temporary, now belongs to the result
+			return LazyImage.select(image, select, temporaries);
+		}
 		int width = image.getWidth();
 		int height = image.getHeight();
-		BufferedImage newImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-		for (int x = 0; x < width; x++) {
-			for (int y = 0; y < height; y++) {
-				int pixel = getRGB(image, x, y);
-				int blu = PixelOps.blu(pixel);
-				int bluPixel = PixelOps.pack(0, 0, blu);
-				newImage.setRGB(x, y, bluPixel);
-			}
-		}
+		BufferedImage newImage = target(image, null, temporaries);
+		int[] src = ImageKernels.pixels(image);
+		int[] dst = ImageKernels.data(newImage);
+		ImageKernels.run(width, height, (from, to) -> ImageKernels.select(src, dst, from, to, select));
+		releaseTemporaries(image, null, temporaries, newImage);
 		return newImage;
 	}
 
+	/**
+	 * Returns the image that the result of an operation on each pixel of left (and
+	 * right) is stored in: one of the arguments if it is a temporary whose backing
+	 * array can be written directly, and otherwise a new image from the ImagePool.
+	 * 
+	 * This is only correct for operations where each pixel of the result only
+	 * depends on the pixels at the same position in left and right.
+	 */
+	private static BufferedImage target(BufferedImage left, BufferedImage right, int temporaries) {
+		BufferedImage result;
+		if ((temporaries & TEMP_LEFT) != 0 && isReusable(left)) {
+			result = left;
+			ImageVersions.changed(result);
+		}
+		else if ((temporaries & TEMP_RIGHT) != 0 && isReusable(right)) {
+			result = right;
+			ImageVersions.changed(result);
+		}
+		else {
+			result = ImagePool.acquire(left.getWidth(), left.getHeight());
+		}
+		return result;
+	}
+
+	/**
+	 * Like target, for operations on planar images: one of the arguments if it is a
+	 * temporary, and otherwise a new PlanarImage.
+	 */
+	private static PlanarImage planarTarget(PlanarImage left, PlanarImage right, int temporaries) {
+		if ((temporaries & TEMP_LEFT) != 0) {
+			ImageVersions.changed(left);
+			return left;
+		}
+		if ((temporaries & TEMP_RIGHT) != 0 && right != null) {
+			ImageVersions.changed(right);
+			return right;
+		}
+		return new PlanarImage(left.getWidth(), left.getHeight());
+	}
+
+	/**
+	 * Returns true if left or right (which may be null) is a TiledImage, so that the
+	 * operation has to be done a tile at a time.
+	 */
+	private static boolean isTiled(BufferedImage left, BufferedImage right) {
+		return left instanceof TiledImage || right instanceof TiledImage;
+	}
+
+	private static boolean isReusable(BufferedImage image) {
+		return image.getType() == BufferedImage.TYPE_INT_RGB && ImageKernels.data(image) != null;
+	}
+
+	/**
+	 * Releases the arguments that are temporaries, except for the one that holds the
+	 * result. This must only be called once the operation is done with them.
+	 */
+	private static void releaseTemporaries(BufferedImage left, BufferedImage right, int temporaries,
+			BufferedImage result) {
+		if ((temporaries & TEMP_LEFT) != 0 && left != result) {
+			release(left);
+		}
+		if ((temporaries & TEMP_RIGHT) != 0 && right != null && right != result) {
+			release(right);
+		}
+	}
+
+	static void release(BufferedImage image) {
+		if (image instanceof TiledImage tiled) {
+			tiled.dispose();
+		}
+		else if (image instanceof LazyImage lazyImage) {
+			lazyImage.release();
+		}
+		else {
+			ImagePool.release(image);
+		}
+	}
+
 	public enum OP {
 		PLUS, MINUS, TIMES, DIV, MOD;
 	}
@@ -129,9 +318,16 @@ public class ImageOps {
 	}
 
 	/**
-
+	 * Applies op to each color component of the given pixels. PLUS and MINUS work on
+	 * all components at once, see PixelOps.addSaturate and subSaturate.
 	 */
 	public static int binaryPackedPixelPixelOp(OP op, int leftPacked, int rightPacked) {
+		if (op == OP.PLUS) {
+			return PixelOps.addSaturate(leftPacked, rightPacked);
+		}
+		if (op == OP.MINUS) {
+			return PixelOps.subSaturate(leftPacked, rightPacked);
+		}
 		int lred = PixelOps.red(leftPacked);
 		int lgrn = PixelOps.grn(leftPacked);
 		int lblu = PixelOps.blu(leftPacked);
@@ -149,7 +345,23 @@ public class ImageOps {
 		};		
 	}
 	
+	/**
+	 * Applies op to each color component of the given pixel and right. TIMES, and PLUS
+	 * and MINUS with right in [-255,255], work on all components at once. DIV and MOD
+	 * use the cached lookup tables in ChannelTables when there is one for right.
+	 */
 	public static int binaryPackedPixelScalarOp(OP op, int leftPacked, int right) {
+		if (op == OP.TIMES) {
+			return PixelOps.mulScalar(leftPacked, right);
+		}
+		if (-255 <= right && right <= 255 && (op == OP.PLUS || op == OP.MINUS)) {
+			boolean add = (op == OP.PLUS) == (right >= 0);
+			int components = Math.abs(right) * 0x010101;
+			return add ? PixelOps.addSaturate(leftPacked, components) : PixelOps.subSaturate(leftPacked, components);
+		}
+		if ((op == OP.DIV || op == OP.MOD) && ChannelTables.isCached(right)) {
+			return ChannelTables.apply(ChannelTables.get(op, right), leftPacked) | PixelOps.SELECT_ALPHA;
+		}
 		int lred = PixelOps.red(leftPacked);
 		int lgrn = PixelOps.grn(leftPacked);
 		int lblu = PixelOps.blu(leftPacked);
@@ -184,6 +396,10 @@ public class ImageOps {
 	 */
 	
 	public static BufferedImage binaryImageImageOp(OP op, BufferedImage left, BufferedImage right) {
+		return binaryImageImageOp(op, left, right, 0);
+	}
+
+	public static BufferedImage binaryImageImageOp(OP op, BufferedImage left, BufferedImage right, int temporaries) {
 		int lwidth = left.getWidth();
 		int rwidth = right.getWidth();
 		int lheight = left.getHeight();
@@ -191,31 +407,69 @@ public class ImageOps {
 		if (lwidth != rwidth || lheight != rheight) {
 			throw new PLCRuntimeException("Attempting binary operation on images with unequal sizes");
 		}
-		BufferedImage result = new BufferedImage(lwidth, lheight, BufferedImage.TYPE_INT_RGB);
-		for (int x = 0; x < lwidth; x++) {
-			for (int y = 0; y < lheight; y++) {
-				int leftPixel = left.getRGB(x, y);
-				int rightPixel = right.getRGB(x, y);
-				int newPixel = binaryPackedPixelPixelOp(op, leftPixel, rightPixel);
-				result.setRGB(x, y, newPixel);
-			}
+		if (isTiled(left, right)) {
+			BufferedImage result = TiledImage.apply(left, right, (l, r, d, from, to) -> ImageKernels.imageImage(op, l, r, d, from, to));
+			releaseTemporaries(left, right, temporaries, result);
+			return result;
+		}
+		if (left instanceof PlanarImage planarLeft && right instanceof PlanarImage planarRight) {
+			PlanarImage result = planarTarget(planarLeft, planarRight, temporaries);
+			PlanarImage.apply(planarLeft, planarRight, result,
+					(c, l, r, d, from, to) -> PlanarImage.imageImage(op, l, r, d, from, to));
+			releaseTemporaries(left, right, temporaries, result);
+			return result;
 		}
+		if (lazy) {
+			return LazyImage.imageImage(op, left, right, temporaries);
+		}
+		BufferedImage result = target(left, right, temporaries);
+		int[] l = ImageKernels.pixels(left);
+		int[] r = ImageKernels.pixels(right);
+		int[] dst = ImageKernels.data(result);
+		ImageKernels.run(lwidth, lheight, (from, to) -> ImageKernels.imageImage(op, l, r, dst, from, to));
+		releaseTemporaries(left, right, temporaries, result);
 		return result;
 	}
 	
 	
 	public static BufferedImage binaryImagePixelOp(OP op, BufferedImage left, int right) {
-		int lwidth = left.getWidth();
-		int lheight = left.getHeight();
+		return binaryImagePixelOp(op, left, right, 0);
+	}
+
+	public static BufferedImage binaryImagePixelOp(OP op, BufferedImage left, int right, int temporaries) {
+		if (isMemoizable(left, temporaries)) {
+			return ImageMemo.apply("pixel", left, right, op.ordinal(), () -> imagePixelOp(op, left, right, 0));
+		}
+		return imagePixelOp(op, left, right, temporaries);
+	}
 
-		BufferedImage result = new BufferedImage(lwidth, lheight, BufferedImage.TYPE_INT_RGB);
-		for (int x = 0; x < lwidth; x++) {
-			for (int y = 0; y < lheight; y++) {
-				int leftPixel = left.getRGB(x, y);
-				int newPixel = binaryPackedPixelPixelOp(op, leftPixel, right);
-				result.setRGB(x, y, newPixel);
+	private static BufferedImage imagePixelOp(OP op, BufferedImage left, int right, int temporaries) {
+		if (isTiled(left, null)) {
+			BufferedImage result = TiledImage.apply(left, null, (l, r, d, from, to) -> ImageKernels.imagePixel(op, l, right, d, from, to));
+			releaseTemporaries(left, null, temporaries, result);
+			return result;
+		}
+		if (left instanceof PlanarImage planar) { // each plane is combined with its component of right
+			int[][] tables = new int[3][];
+			for (int c = PlanarImage.RED; c <= PlanarImage.BLU; c++) {
+				tables[c] = ChannelTables.get(op, PlanarImage.component(right, c));
 			}
+			PlanarImage result = planarTarget(planar, null, temporaries);
+			PlanarImage.apply(planar, null, result, (c, l, r, d, from, to) -> PlanarImage.lookup(tables[c], l, d, from, to));
+			releaseTemporaries(left, null, temporaries, result);
+			return result;
+		}
+		if (lazy) {
+			return LazyImage.imagePixel(op, left, right, temporaries);
 		}
+		int lwidth = left.getWidth();
+		int lheight = left.getHeight();
+
+		BufferedImage result = target(left, null, temporaries);
+		int[] l = ImageKernels.pixels(left);
+		int[] dst = ImageKernels.data(result);
+		ImageKernels.run(lwidth, lheight, (from, to) -> ImageKernels.imagePixel(op, l, right, dst, from, to));
+		releaseTemporaries(left, null, temporaries, result);
 		return result;
 	}
 	
@@ -229,32 +483,83 @@ public class ImageOps {
 	 * @return
 	 */
 	public static BufferedImage binaryImageScalarOp(OP op, BufferedImage left, int right) {
+		return binaryImageScalarOp(op, left, right, 0);
+	}
+
+	public static BufferedImage binaryImageScalarOp(OP op, BufferedImage left, int right, int temporaries) {
+		if (isMemoizable(left, temporaries)) {
+			return ImageMemo.apply("scalar", left, right, op.ordinal(), () -> imageScalarOp(op, left, right, 0));
+		}
+		return imageScalarOp(op, left, right, temporaries);
+	}
+
+	private static BufferedImage imageScalarOp(OP op, BufferedImage left, int right, int temporaries) {
+		if (isTiled(left, null)) {
+			int[] table = ImageKernels.scalarTable(op, right);
+			BufferedImage result = TiledImage.apply(left, null, (l, r, d, from, to) -> ImageKernels.imageScalar(op, l, right, table, d, from, to));
+			releaseTemporaries(left, null, temporaries, result);
+			return result;
+		}
+		if (left instanceof PlanarImage planar) {
+			int[] table = ChannelTables.get(op, right);
+			PlanarImage result = planarTarget(planar, null, temporaries);
+			PlanarImage.apply(planar, null, result, (c, l, r, d, from, to) -> PlanarImage.lookup(table, l, d, from, to));
+			releaseTemporaries(left, null, temporaries, result);
+			return result;
+		}
+		if (lazy) {
+			return LazyImage.imageScalar(op, left, right, temporaries);
+		}
 		int lwidth = left.getWidth();
 		int lheight = left.getHeight();
-		BufferedImage result = new BufferedImage(lwidth, lheight, BufferedImage.TYPE_INT_RGB);
-		for (int x = 0; x < lwidth; x++) {
-			for (int y = 0; y < lheight; y++) {
-				int leftPixel = left.getRGB(x, y);
-				int newPixel = binaryPackedPixelScalarOp(op,leftPixel, right);
-				result.setRGB(x, y, newPixel);
-			}
-		}
+		int[] table = ImageKernels.scalarTable(op, right);
+		BufferedImage result = target(left, null, temporaries);
+		int[] l = ImageKernels.pixels(left);
+		int[] dst = ImageKernels.data(result);
+		ImageKernels.run(lwidth, lheight, (from, to) -> ImageKernels.imageScalar(op, l, right, table, dst, from, to));
+		releaseTemporaries(left, null, temporaries, result);
 		return result;
 	}
 	
 
 	
+	/**
+	 * Sets every pixel of the given image to packed and returns the image.
+	 * 
+	 * @param image
+	 * @param packed
+	 * @return image
+	 */
 	public static BufferedImage setAllPixels(BufferedImage image, int packed) {
-		for (int x = 0; x < image.getWidth(); x++)
-			for (int y = 0; y < image.getHeight(); y++) {
-				image.setRGB(x, y,  packed);
+		ImageVersions.changed(image);
+		if (image instanceof LazyImage lazyImage) {
+			setAllPixels(lazyImage.evaluate(), packed);
+			return image;
+		}
+		int[] data = ImageKernels.data(image);
+		if (image instanceof TiledImage tiled) {
+			TiledImage.apply(null, null, tiled, (l, r, d, from, to) -> Arrays.fill(d, from, to, packed & ImageKernels.SELECT_RGB));
+		}
+		else if (image instanceof PlanarImage planar) {
+			for (int c = PlanarImage.RED; c <= PlanarImage.BLU; c++) {
+				Arrays.fill(planar.getPlane(c), (byte) PlanarImage.component(packed, c));
 			}
+		}
+		else if (data != null) {
+			int pixel = image.getType() == BufferedImage.TYPE_INT_RGB ? packed & ImageKernels.SELECT_RGB : packed;
+			Arrays.fill(data, 0, image.getWidth() * image.getHeight(), pixel);
+		}
+		else { // fill one row and use a scansize of 0 to store it into every row
+			int[] row = new int[image.getWidth()];
+			Arrays.fill(row, packed);
+			image.setRGB(0, 0, image.getWidth(), image.getHeight(), row, 0, 0);
+		}
 		return image;
 	}
 
 	
 	/**
-	 * Creates an image of given size. 
+	 * Creates an image of given size, with all pixels black.
 	 * 
 	 * @param width
 	 * @param height
@@ -262,7 +567,7 @@ public class ImageOps {
 	 * @return
 	 */
 	public static BufferedImage makeImage(int width, int height) {
-		return new BufferedImage(width, height,BufferedImage.TYPE_INT_RGB);
+		return ImagePool.acquireBlank(width, height);
 	}
 	
 	/**
@@ -271,6 +576,24 @@ public class ImageOps {
 	 * @return new image that is copy of the given image
 	 */
 	public static final BufferedImage cloneImage(BufferedImage image) {
+	    BufferedImage clone = clonePixels(materialize(image));
+	    ImageVersions.copied(image, clone);
+	    return clone;
+	}
+
+	private static BufferedImage clonePixels(BufferedImage image) {
+	    if (isTiled(image, null)) {
+	    	return TiledImage.apply(image, null, (l, r, d, from, to) -> System.arraycopy(l, from, d, from, to - from));
+	    }
+	    if (image instanceof PlanarImage planar) {
+	    	return PlanarImage.copy(planar);
+	    }
+	    int[] data = ImageKernels.data(image);
+	    if (data != null) {
+	    	BufferedImage clone = ImagePool.acquire(image.getWidth(), image.getHeight(), image.getType());
+	    	System.arraycopy(data, 0, ImageKernels.data(clone), 0, image.getWidth() * image.getHeight());
+	    	return clone;
+	    }
 	    BufferedImage clone = new BufferedImage(image.getWidth(),
 	            image.getHeight(), image.getType());
 	    Graphics2D g2d = clone.createGraphics();
@@ -286,20 +609,71 @@ public class ImageOps {
 	 * @param sourceImage
 	 * @param destImage
 	 */
-	public static final void copyInto(BufferedImage sourceImage, BufferedImage destImage) {		
-        int w = sourceImage.getWidth();
+	public static final void copyInto(BufferedImage sourceImage, BufferedImage destImage) {
+		ImageVersions.changed(destImage);
+		copyPixels(sourceImage, destImage);
+		if (isExactCopy(sourceImage, destImage)) {
+			ImageVersions.copied(sourceImage, destImage);
+		}
+	}
+
+	/**
+	 * Returns true if copying source into dest with copyInto gives dest the same pixels,
+	 * as returned by getRGB, as source.
+	 */
+	private static boolean isExactCopy(BufferedImage source, BufferedImage dest) {
+		if (source.getWidth() != dest.getWidth() || source.getHeight() != dest.getHeight()) {
+			return false;
+		}
+		int type = source.getType();
+		return type == dest.getType() && type != BufferedImage.TYPE_CUSTOM || isOpaqueRgb(source) && isOpaqueRgb(dest);
+	}
+
+	/** True for the kinds of images that hold 8 bits per color component and no alpha */
+	private static boolean isOpaqueRgb(BufferedImage image) {
+		return image.getType() == BufferedImage.TYPE_INT_RGB || image instanceof TiledImage
+				|| image instanceof PlanarImage || image instanceof LazyImage;
+	}
+
+	private static void copyPixels(BufferedImage sourceImage, BufferedImage destImage) {
+		int w = sourceImage.getWidth();
 		int h = sourceImage.getHeight();
 		int maxX = destImage.getWidth();
 		int maxY = destImage.getHeight();
+		if (sourceImage instanceof LazyImage lazyImage && w == maxX && h == maxY
+				&& destImage.getType() == BufferedImage.TYPE_INT_RGB && ImageKernels.data(destImage) != null) {
+			lazyImage.evaluateInto(ImageKernels.data(destImage)); // no need to evaluate it separately
+			return;
+		}
+		sourceImage = materialize(sourceImage);
+		destImage = materialize(destImage);
+		ImageVersions.changed(destImage);
+		if (destImage instanceof TiledImage tiled && w == maxX && h == maxY) {
+			TiledImage.apply(sourceImage, null, tiled, (l, r, d, from, to) -> System.arraycopy(l, from, d, from, to - from));
+			return;
+		}
+		if (Resize.isSupported(sourceImage, destImage)) {
+			Resize.scale(sourceImage, destImage);
+			return;
+		}
 		AffineTransform at = new AffineTransform();
 		at.scale(((float) maxX) / w, ((float) maxY) / h);
 		AffineTransformOp scaleOp = new AffineTransformOp(at, AffineTransformOp.TYPE_NEAREST_NEIGHBOR);
 		scaleOp.filter(sourceImage, destImage);
 	}
+
+	public static final void copyInto(BufferedImage sourceImage, BufferedImage destImage, int temporaries) {
+		copyInto(sourceImage, destImage);
+		releaseTemporaries(sourceImage, null, temporaries, destImage);
+	}
 	
 	/**
 	 * Returns a new image that is a resized version of the 'before' image.
 	 * 
+	 * In the NEAREST resize mode the new image has the size AffineTransformOp gives
+	 * it, which is sometimes a column or row larger than maxX by maxY (see
+	 * Resize.scaledSize).
+	 * 
 	 * @param image
 	 * @param maxX
 	 * @param maxY
@@ -307,16 +681,48 @@ public class ImageOps {
 	 */
 	public static BufferedImage copyAndResize(BufferedImage image, int maxX,
 			int maxY) {
+		return copyAndResize(image, maxX, maxY, 0);
+	}
+
+	public static BufferedImage copyAndResize(BufferedImage image, int maxX, int maxY, int temporaries) {
+		BufferedImage newResizedImage = isMemoizable(image, temporaries)
+				? ImageMemo.apply("resize " + Resize.getMode(), image, maxX, maxY, () -> resize(image, maxX, maxY))
+				: resize(image, maxX, maxY);
+		releaseTemporaries(image, null, temporaries, newResizedImage);
+		return newResizedImage;
+	}
+
+	private static BufferedImage resize(BufferedImage image, int maxX, int maxY) {
+		image = materialize(image);
 		int w = image.getWidth();
 		int h = image.getHeight();
-		AffineTransform at = new AffineTransform();
-		at.scale(((float) maxX) / w, ((float) maxY) / h);
-		AffineTransformOp scaleOp = new AffineTransformOp(at, AffineTransformOp.TYPE_NEAREST_NEIGHBOR);
-		BufferedImage newResizedImage = null;
-		newResizedImage = scaleOp.filter(image, newResizedImage);
+		// like AffineTransformOp, NEAREST may create an image a column or row larger
+		// than maxX by maxY, and does not necessarily write every pixel, so the image
+		// must be blank
+		Dimension size = Resize.scaledSize(w, h, maxX, maxY);
+		BufferedImage newResizedImage;
+		if (isTiled(image, null) && TiledImage.isLarge(size.width, size.height)) {
+			newResizedImage = new TiledImage(size.width, size.height);
+		}
+		else if (image instanceof PlanarImage) {
+			newResizedImage = new PlanarImage(size.width, size.height);
+		}
+		else if (ImageKernels.data(image) != null && image.getType() != BufferedImage.TYPE_INT_RGB) {
+			newResizedImage = new BufferedImage(size.width, size.height, image.getType());
+		}
+		else if (ImageKernels.data(image) != null || isTiled(image, null) || Resize.getMode() != Resize.Mode.NEAREST) {
+			newResizedImage = makeImage(size.width, size.height);
+		}
+		else {
+			AffineTransform at = new AffineTransform();
+			at.scale(((float) maxX) / w, ((float) maxY) / h);
+			AffineTransformOp scaleOp = new AffineTransformOp(at, AffineTransformOp.TYPE_NEAREST_NEIGHBOR);
+			return scaleOp.filter(image, null);
+		}
+		Resize.scale(image, newResizedImage, maxX, maxY);
 		return newResizedImage;
 	}
-	
+
 
 	/**
 	 * Returns an array of ints representing the packed pixels of the given image.
@@ -331,12 +737,149 @@ public class ImageOps {
 		return result.getRGB(0,0,result.getWidth(), result.getHeight(), null,0,result.getWidth());
 	}
 	
+	/**
+	 * Returns true if the images have the same size and the same pixels. The pixels
+	 * are compared where they are stored, and the comparison stops at the first
+	 * difference. See also setHashedEquals.
+	 */
 	public static boolean equals(BufferedImage image0, BufferedImage image1) {
-		int[] pixels0 = getRGBPixels(image0);
-		int[] pixels1 = getRGBPixels(image1);
-		return Arrays.equals(pixels0, pixels1);
+		int width = image0.getWidth();
+		int height = image0.getHeight();
+		if (width != image1.getWidth() || height != image1.getHeight()) {
+			return false;
+		}
+		if (image0 == image1) {
+			return true;
+		}
+		if (isTiled(image0, image1)) {
+			return TiledImage.all(image0, image1, (l, r, from, to) -> ImageKernels.equal(l, 0, r, 0, from, to));
+		}
+		if (hashedEquals) {
+			if (ImageVersions.sameContents(image0, image1)) {
+				return true;
+			}
+			if (ImageHash.get(image0) != ImageHash.get(image1)) {
+				return false;
+			}
+		}
+		if (image0 instanceof PlanarImage planar0 && image1 instanceof PlanarImage planar1) {
+			return PlanarImage.equal(planar0, planar1);
+		}
+		int[] data0 = ImageKernels.data(image0);
+		int[] data1 = ImageKernels.data(image1);
+		return ImageKernels.all(width, height,
+				(from, to) -> ImageKernels.equalRows(image0, data0, image1, data1, from / width, to / width));
 	}
 	
+	public static boolean equals(BufferedImage image0, BufferedImage image1, int temporaries) {
+		boolean equal = equals(image0, image1);
+		releaseTemporaries(image0, image1, temporaries, null);
+		return equal;
+	}
+
+	/**
+	 * Off-heap versions of the image operations. They work like the ones on
+	 * BufferedImages, but process the pixels CHUNK at a time so that only small arrays
+	 * are allocated on the heap. Results are new off-heap images, which the caller has
+	 * to close.
+	 */
+	public static OffHeapImage binaryImageImageOp(OP op, OffHeapImage left, OffHeapImage right) {
+		int width = left.getWidth();
+		int height = left.getHeight();
+		if (width != right.getWidth() || height != right.getHeight()) {
+			throw new PLCRuntimeException("Attempting binary operation on images with unequal sizes");
+		}
+		OffHeapImage result = OffHeapImage.allocate(width, height);
+		OffHeapImage.run(width, height, (start, length, l, r) -> {
+			left.read(start, l, 0, length);
+			right.read(start, r, 0, length);
+			ImageKernels.imageImage(op, l, r, l, 0, length);
+			result.write(start, l, 0, length);
+		}, left, right);
+		return result;
+	}
+
+	public static OffHeapImage binaryImagePixelOp(OP op, OffHeapImage left, int right) {
+		OffHeapImage result = OffHeapImage.allocate(left.getWidth(), left.getHeight());
+		OffHeapImage.run(left.getWidth(), left.getHeight(), (start, length, l, unused) -> {
+			left.read(start, l, 0, length);
+			ImageKernels.imagePixel(op, l, right, l, 0, length);
+			result.write(start, l, 0, length);
+		}, left);
+		return result;
+	}
+
+	public static OffHeapImage binaryImageScalarOp(OP op, OffHeapImage left, int right) {
+		int[] table = ImageKernels.scalarTable(op, right);
+		OffHeapImage result = OffHeapImage.allocate(left.getWidth(), left.getHeight());
+		OffHeapImage.run(left.getWidth(), left.getHeight(), (start, length, l, unused) -> {
+			left.read(start, l, 0, length);
+			ImageKernels.imageScalar(op, l, right, table, l, 0, length);
+			result.write(start, l, 0, length);
+		}, left);
+		return result;
+	}
+
+	public static OffHeapImage extractRed(OffHeapImage image) {
+		return extract(image, PixelOps.SELECT_RED);
+	}
+
+	public static OffHeapImage extractGrn(OffHeapImage image) {
+		return extract(image, PixelOps.SELECT_GRN);
+	}
+
+	public static OffHeapImage extractBlu(OffHeapImage image) {
+		return extract(image, PixelOps.SELECT_BLU);
+	}
+
+	private static OffHeapImage extract(OffHeapImage image, int select) {
+		OffHeapImage result = OffHeapImage.allocate(image.getWidth(), image.getHeight());
+		OffHeapImage.run(image.getWidth(), image.getHeight(), (start, length, pixels, unused) -> {
+			image.read(start, pixels, 0, length);
+			ImageKernels.select(pixels, pixels, 0, length, select);
+			result.write(start, pixels, 0, length);
+		}, image);
+		return result;
+	}
+
+	public static OffHeapImage cloneImage(OffHeapImage image) {
+		return extract(image, ImageKernels.SELECT_RGB);
+	}
+
+	public static boolean equals(OffHeapImage image0, OffHeapImage image1) {
+		int width = image0.getWidth();
+		int height = image0.getHeight();
+		if (width != image1.getWidth() || height != image1.getHeight()) {
+			return false;
+		}
+		image0.acquire();
+		try {
+			image1.acquire();
+			try {
+				return ImageKernels.all(width, height, (from, to) -> {
+					int length = Math.min(OffHeapImage.CHUNK, to - from);
+					int[] pixels0 = new int[length];
+					int[] pixels1 = new int[length];
+					for (int start = from; start < to; start += length) {
+						int n = Math.min(length, to - start);
+						image0.read(start, pixels0, 0, n);
+						image1.read(start, pixels1, 0, n);
+						if (!ImageKernels.equal(pixels0, 0, pixels1, 0, 0, n)) {
+							return false;
+						}
+					}
+					return true;
+				});
+			}
+			finally {
+				image1.release();
+			}
+		}
+		finally {
+			image0.release();
+		}
+	}
+
 	public static int equalsForCodeGen(BufferedImage image0, BufferedImage image1) {
 		return equals(image0,image1)?1:0;
 	}
@@ -349,6 +892,7 @@ public class ImageOps {
 		int w = image.getWidth();
 		int h = image.getHeight();
 		if (0 <= x && x < w && 0 <= y && y < h) {
+			ImageVersions.changed(image);
 			image.setRGB(x, y, pixel);
 		}
 	}
@@ -366,21 +910,7 @@ public class ImageOps {
 	}
 
 	public static int binaryPackedPixelIntOp(OP op, int leftPacked, int q) {
-		int lred = PixelOps.red(leftPacked);
-		int lgrn = PixelOps.grn(leftPacked);
-		int lblu = PixelOps.blu(leftPacked);
-		int rred = q;
-		int rgrn = q;
-		int rblu = q;
-		return 
-		switch(op) {
-		case PLUS -> PixelOps.pack(lred + rred, lgrn + rgrn, lblu + rblu);
-		case MINUS -> PixelOps.pack(lred - rred, lgrn - rgrn, lblu - rblu);
-		case TIMES -> PixelOps.pack(lred * rred, lgrn * rgrn, lblu * rblu);
-		case DIV -> PixelOps.pack(lred / rred, lgrn / rgrn, lblu / rblu);
-		case MOD -> PixelOps.pack(lred % rred, lgrn % rgrn, lblu % rblu);
-		default -> throw new IllegalArgumentException("Compiler/runtime error Unexpected value: " + op);
-		};		
+		return binaryPackedPixelScalarOp(op, leftPacked, q);
 	}
 		
 	}
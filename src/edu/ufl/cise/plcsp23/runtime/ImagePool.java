@@ -0,0 +1,225 @@
+package edu.ufl.cise.plcsp23.runtime;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A pool of images that can be reused instead of allocating a new BufferedImage,
+ * and with it a new int[] of width*height pixels, for every intermediate result.
+ *
+ * Images are kept in lists keyed by (width, height, type). The keys are spread over
+ * a fixed number of stripes, each with its own lock and its own share of the memory
+ * budget, so threads working on images of different sizes rarely contend. When a
+ * stripe is over budget, the images of the size that was least recently used are
+ * dropped first.
+ *
+ * Only images whose pixels are stored in an int[] (see ImageKernels.data) are
+ * pooled. An image must not be used after it has been released: the next acquire
+ * of an image of the same size may return it with its pixels unchanged.
+ */
+public class ImagePool {
+
+	private static final int STRIPES = 16;
+
+	private record Key(int width, int height, int type) {
+	}
+
+	/** Images of each size, least recently used size first */
+	@SuppressWarnings("serial")
+	private static class Stripe extends LinkedHashMap<Key, ArrayDeque<BufferedImage>> {
+		long bytes;
+
+		Stripe() {
+			super(16, 0.75f, true);
+		}
+	}
+
+	private static final Stripe[] stripes = new Stripe[STRIPES];
+	static {
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new Stripe();
+		}
+	}
+
+	private static volatile long maxBytes = Runtime.getRuntime().maxMemory() / 8;
+	private static volatile boolean enabled = true;
+
+	private static final LongAdder hits = new LongAdder();
+	private static final LongAdder misses = new LongAdder();
+	private static final LongAdder evictions = new LongAdder();
+
+	/**
+	 * Returns a TYPE_INT_RGB image of the given size. The pixels of an image taken from
+	 * the pool are not cleared.
+	 */
+	public static BufferedImage acquire(int width, int height) {
+		return acquire(width, height, BufferedImage.TYPE_INT_RGB);
+	}
+
+	/**
+	 * Returns an image of the given size and type. The pixels of an image taken from
+	 * the pool are not cleared.
+	 */
+	public static BufferedImage acquire(int width, int height, int type) {
+		BufferedImage image = take(width, height, type);
+		return image != null ? image : new BufferedImage(width, height, type);
+	}
+
+	/**
+	 * Returns a TYPE_INT_RGB image of the given size with all pixels set to 0, like a
+	 * newly allocated one.
+	 */
+	public static BufferedImage acquireBlank(int width, int height) {
+		BufferedImage image = take(width, height, BufferedImage.TYPE_INT_RGB);
+		if (image == null) {
+			return new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		}
+		Arrays.fill(ImageKernels.data(image), 0, width * height, 0);
+		return image;
+	}
+
+	/** Removes and returns a pooled image of the given size and type, or returns null */
+	private static BufferedImage take(int width, int height, int type) {
+		if (enabled) {
+			Key key = new Key(width, height, type);
+			Stripe stripe = stripe(key);
+			synchronized (stripe) {
+				ArrayDeque<BufferedImage> images = stripe.get(key);
+				if (images != null && !images.isEmpty()) {
+					BufferedImage image = images.pop();
+					stripe.bytes -= bytes(key);
+					if (images.isEmpty()) {
+						stripe.remove(key);
+					}
+					hits.increment();
+					return image;
+				}
+			}
+		}
+		misses.increment();
+		return null;
+	}
+
+	/**
+	 * Gives the image back to the pool. The caller must not use it afterwards.
+	 * Images that cannot be pooled, or that would not fit in the budget, are left to
+	 * the garbage collector.
+	 */
+	public static void release(BufferedImage image) {
+		if (!enabled || image == null || ImageKernels.data(image) == null) {
+			return;
+		}
+		ImageVersions.changed(image); // it will be reused with other pixels
+		Key key = new Key(image.getWidth(), image.getHeight(), image.getType());
+		long size = bytes(key);
+		long stripeBudget = maxBytes / STRIPES;
+		if (size > stripeBudget) {
+			return;
+		}
+		Stripe stripe = stripe(key);
+		synchronized (stripe) {
+			ArrayDeque<BufferedImage> images = stripe.computeIfAbsent(key, k -> new ArrayDeque<>());
+			for (BufferedImage pooled : images) {
+				if (pooled == image) {
+					return; // released twice
+				}
+			}
+			images.push(image);
+			stripe.bytes += size;
+			evict(stripe, stripeBudget);
+		}
+	}
+
+	/** Drops images, least recently used size first, until the stripe fits its budget */
+	private static void evict(Stripe stripe, long budget) {
+		Iterator<Map.Entry<Key, ArrayDeque<BufferedImage>>> entries = stripe.entrySet().iterator();
+		while (stripe.bytes > budget && entries.hasNext()) {
+			Map.Entry<Key, ArrayDeque<BufferedImage>> entry = entries.next();
+			long size = bytes(entry.getKey());
+			ArrayDeque<BufferedImage> images = entry.getValue();
+			while (stripe.bytes > budget && !images.isEmpty()) {
+				images.removeLast();
+				stripe.bytes -= size;
+				evictions.increment();
+			}
+			if (images.isEmpty()) {
+				entries.remove();
+			}
+		}
+	}
+
+	private static Stripe stripe(Key key) {
+		int h = key.hashCode();
+		return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+	}
+
+	private static long bytes(Key key) {
+		return 4L * key.width() * key.height();
+	}
+
+	/** Sets the maximum number of bytes of pixel data kept in the pool */
+	public static void setMaxBytes(long bytes) {
+		maxBytes = bytes;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				evict(stripe, bytes / STRIPES);
+			}
+		}
+	}
+
+	/** Turns pooling on or off. When it is off, acquire always allocates a new image. */
+	public static void setEnabled(boolean on) {
+		enabled = on;
+		if (!on) {
+			clear();
+		}
+	}
+
+	/** Drops all pooled images */
+	public static void clear() {
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				stripe.clear();
+				stripe.bytes = 0;
+			}
+		}
+	}
+
+	/** Number of bytes of pixel data currently in the pool */
+	public static long pooledBytes() {
+		long total = 0;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				total += stripe.bytes;
+			}
+		}
+		return total;
+	}
+
+	/** Number of acquire calls that were satisfied from the pool */
+	public static long hits() {
+		return hits.sum();
+	}
+
+	/** Number of acquire calls that had to allocate a new image */
+	public static long misses() {
+		return misses.sum();
+	}
+
+	/** Number of pooled images dropped to stay within the budget */
+	public static long evictions() {
+		return evictions.sum();
+	}
+
+	public static void resetStatistics() {
+		hits.reset();
+		misses.reset();
+		evictions.reset();
+	}
+
+}
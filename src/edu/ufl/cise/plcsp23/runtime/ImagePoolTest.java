@@ -0,0 +1,106 @@
+package edu.ufl.cise.plcsp23.runtime;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import edu.ufl.cise.plcsp23.runtime.ImageOps.OP;
+
+class ImagePoolTest {
+
+	@BeforeEach
+	void clear() {
+		ImagePool.clear();
+	}
+
+	@AfterEach
+	void reset() {
+		ImagePool.setEnabled(true);
+		ImagePool.setMaxBytes(Runtime.getRuntime().maxMemory() / 8);
+		ImagePool.clear();
+	}
+
+	@Test
+	void releasedImagesAreReused() {
+		BufferedImage image = ImagePool.acquire(30, 20);
+		ImagePool.release(image);
+		ImagePool.release(image); // a second release is ignored
+		assertEquals(30 * 20 * 4, ImagePool.pooledBytes());
+		assertNotSame(image, ImagePool.acquire(20, 30));
+		assertNotSame(image, ImagePool.acquire(30, 20, BufferedImage.TYPE_INT_ARGB));
+		assertSame(image, ImagePool.acquire(30, 20));
+		assertNotSame(image, ImagePool.acquire(30, 20));
+		assertEquals(0, ImagePool.pooledBytes());
+	}
+
+	@Test
+	void blankImagesAreCleared() {
+		BufferedImage image = ImagePool.acquire(5, 4);
+		ImageOps.setAllPixels(image, 0x123456);
+		ImagePool.release(image);
+		BufferedImage blank = ImagePool.acquireBlank(5, 4);
+		assertSame(image, blank);
+		assertArrayEquals(ImageOps.getRGBPixels(new BufferedImage(5, 4, BufferedImage.TYPE_INT_RGB)),
+				ImageOps.getRGBPixels(blank));
+	}
+
+	@Test
+	void onlyImagesWithAnIntArrayArePooled() {
+		ImagePool.release(new BufferedImage(8, 8, BufferedImage.TYPE_3BYTE_BGR));
+		ImagePool.release(new BufferedImage(16, 16, BufferedImage.TYPE_INT_RGB).getSubimage(0, 0, 8, 8));
+		assertEquals(0, ImagePool.pooledBytes());
+	}
+
+	@Test
+	void poolStaysWithinItsBudget() {
+		ImagePool.setMaxBytes(16 * 4 * 100 * 100); // one 100x100 image per stripe
+		for (int i = 0; i < 4; i++) {
+			ImagePool.release(new BufferedImage(100, 100, BufferedImage.TYPE_INT_RGB));
+		}
+		assertEquals(4 * 100 * 100, ImagePool.pooledBytes()); // the others were evicted
+		ImagePool.release(new BufferedImage(1000, 1000, BufferedImage.TYPE_INT_RGB)); // over budget
+		assertEquals(4 * 100 * 100, ImagePool.pooledBytes());
+
+		ImagePool.setEnabled(false);
+		assertEquals(0, ImagePool.pooledBytes());
+		ImagePool.release(new BufferedImage(100, 100, BufferedImage.TYPE_INT_RGB));
+		assertEquals(0, ImagePool.pooledBytes());
+	}
+
+	@Test
+	void temporariesHoldTheResult() {
+		Random random = new Random(6);
+		BufferedImage a = ImageKernelsTest.random(31, 17, BufferedImage.TYPE_INT_RGB, random);
+		BufferedImage b = ImageKernelsTest.random(31, 17, BufferedImage.TYPE_INT_RGB, random);
+		BufferedImage expected = ImageOps.binaryImageImageOp(OP.MINUS, a, b);
+
+		BufferedImage left = ImageOps.cloneImage(a);
+		BufferedImage right = ImageOps.cloneImage(b);
+		BufferedImage result = ImageOps.binaryImageImageOp(OP.MINUS, left, right,
+				ImageOps.TEMP_LEFT | ImageOps.TEMP_RIGHT);
+		assertSame(left, result);
+		assertArrayEquals(ImageOps.getRGBPixels(expected), ImageOps.getRGBPixels(result));
+		assertSame(right, ImagePool.acquire(31, 17)); // released once it was used
+
+		right = ImageOps.cloneImage(b);
+		result = ImageOps.binaryImageImageOp(OP.MINUS, a, right, ImageOps.TEMP_RIGHT);
+		assertSame(right, result);
+		assertArrayEquals(ImageOps.getRGBPixels(expected), ImageOps.getRGBPixels(result));
+
+		// an ARGB temporary cannot hold the result, and is not reused for it
+		BufferedImage argb = new BufferedImage(31, 17, BufferedImage.TYPE_INT_ARGB);
+		argb.setRGB(0, 0, 31, 17, ImageOps.getRGBPixels(a), 0, 31);
+		result = ImageOps.extractRed(argb, ImageOps.TEMP_LEFT);
+		assertNotSame(argb, result);
+		assertArrayEquals(ImageOps.getRGBPixels(ImageOps.extractRed(a)), ImageOps.getRGBPixels(result));
+	}
+
+}
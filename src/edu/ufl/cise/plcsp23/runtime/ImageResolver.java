@@ -0,0 +1,62 @@
+package edu.ufl.cise.plcsp23.runtime;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Reads the images whose sources have one scheme, like "http" for the sources that
+ * start with "http:". Resolvers are registered with FileURLIO.setResolver, which
+ * comes with resolvers for "file" (which also reads sources without a scheme),
+ * "http", "https", "classpath" and "mem". Sources with any other scheme are read as
+ * URLs.
+ */
+public interface ImageResolver {
+
+	/** How the image is to be read: whole, resized or a part of it */
+	interface Request {
+
+		/**
+		 * Tells this request apart from other requests for the same source, for
+		 * resolvers that cache what they read
+		 */
+		String variant();
+
+		/**
+		 * Decodes the image in stream as requested and closes stream. Returns null if
+		 * no reader can decode it.
+		 */
+		BufferedImage decode(ImageInputStream stream) throws IOException;
+
+		/**
+		 * Returns the requested image for an image that is already decoded. A request
+		 * for the whole image returns the image itself. Throws an UncheckedIOException
+		 * if the image does not have the requested part.
+		 */
+		BufferedImage apply(BufferedImage image);
+	}
+
+	/** Reads the image named by source as requested */
+	BufferedImage read(String source, Request request) throws IOException;
+
+	/**
+	 * Starts reading the image named by source as requested. By default, read is run
+	 * with executor; resolvers that can wait for their source without holding a
+	 * thread override this.
+	 */
+	default CompletableFuture<BufferedImage> readAsync(String source, Request request, Executor executor) {
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				return read(source, request);
+			}
+			catch (IOException e) {
+				throw new CompletionException(e);
+			}
+		}, executor);
+	}
+
+}
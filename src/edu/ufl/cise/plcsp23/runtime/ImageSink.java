@@ -0,0 +1,283 @@
+package edu.ufl.cise.plcsp23.runtime;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Writes the images a program outputs to files instead of showing them on the
+ * screen, for machines without a display. ConsoleIO.write(BufferedImage) writes to
+ * the sink when it has a template, set with setTemplate or the system property
+ * plc.imageSink.
+ *
+ * The template is the path of the files, in which {n} is replaced by the number of
+ * images written to the sink before, {n:4} by that number padded with zeros to 4
+ * digits, {w} and {h} by the width and height of the image, and {t} by the time in
+ * milliseconds. The extension of the path gives the format: .png, .jpg or .jpeg,
+ * .plcimg for raw images (see FileURLIO.mapImage), or any other format
+ * FileURLIO.writeImage writes.
+ *
+ * write takes a copy of the image and returns; the image is encoded and written on
+ * a background thread, so a program that writes images in a loop keeps computing in
+ * the meantime. At most a given number of images wait to be written, set with the
+ * system property plc.imageSinkQueue (16 by default); write blocks while that many
+ * are waiting. PNG images are deflated in parallel strips (see PngEncoder) at the
+ * level set with setPngLevel or plc.pngLevel. An error in writing an image is
+ * thrown by the next write or by flush. Images still waiting when the program exits
+ * are written before the JVM ends.
+ */
+public class ImageSink {
+
+	private static final Pattern PLACEHOLDER = Pattern.compile("\\{(n(?::([1-9]\\d*))?|w|h|t)\\}");
+	/** A placeholder for the number with a width, which PLACEHOLDER must match */
+	private static final Pattern NUMBER_WIDTH = Pattern.compile("\\{n:[^}]*\\}");
+
+	private static volatile String template = System.getProperty("plc.imageSink");
+	private static volatile int pngLevel = Integer.getInteger("plc.pngLevel", 6);
+	private static volatile float jpegQuality = 0.9f;
+
+	private static final int QUEUE = Integer.getInteger("plc.imageSinkQueue", 16);
+
+	private static final AtomicLong sequence = new AtomicLong();
+	private static final AtomicReference<PLCRuntimeException> failure = new AtomicReference<>();
+
+	private static final LongAdder written = new LongAdder();
+	private static final LongAdder encodeNanos = new LongAdder();
+
+	private static ExecutorService writer;
+
+	/**
+	 * Sets the template of the paths images are written to, see above, and starts
+	 * numbering the images from 0. A null template turns the sink off. Throws a
+	 * PLCRuntimeException if a {n:...} placeholder does not give a width of at least 1.
+	 */
+	public static void setTemplate(String newTemplate) {
+		if (newTemplate != null) {
+			Matcher m = NUMBER_WIDTH.matcher(newTemplate);
+			while (m.find()) {
+				if (!PLACEHOLDER.matcher(m.group()).matches()) {
+					throw new PLCRuntimeException("Invalid placeholder in image sink template: " + m.group());
+				}
+			}
+		}
+		template = newTemplate;
+		sequence.set(0);
+	}
+
+	public static String getTemplate() {
+		return template;
+	}
+
+	/** True if ConsoleIO.write(BufferedImage) writes to the sink */
+	public static boolean isEnabled() {
+		return template != null;
+	}
+
+	/** Sets the deflate level of PNG images, from 0 (stored) to 9 (smallest) */
+	public static void setPngLevel(int level) {
+		if (level < 0 || level > 9) {
+			throw new PLCRuntimeException("PNG level must be between 0 and 9: " + level);
+		}
+		pngLevel = level;
+	}
+
+	public static int getPngLevel() {
+		return pngLevel;
+	}
+
+	/** Sets the quality of JPEG images, from 0 to 1 */
+	public static void setJpegQuality(float quality) {
+		if (quality < 0 || quality > 1) {
+			throw new PLCRuntimeException("JPEG quality must be between 0 and 1: " + quality);
+		}
+		jpegQuality = quality;
+	}
+
+	public static float getJpegQuality() {
+		return jpegQuality;
+	}
+
+	/**
+	 * Queues a copy of image to be written to the next path of the template, and
+	 * returns that path. Throws a PLCRuntimeException if the sink has no template, or
+	 * if writing an earlier image failed.
+	 */
+	public static String write(BufferedImage image) {
+		String t = template;
+		if (t == null) {
+			throw new PLCRuntimeException("The image sink has no template");
+		}
+		rethrow();
+		String path = path(t, sequence.getAndIncrement(), image);
+		BufferedImage copy = ImageOps.cloneImage(image);
+		writer().execute(() -> {
+			try {
+				long start = System.nanoTime();
+				write(copy, path);
+				encodeNanos.add(System.nanoTime() - start);
+				written.increment();
+			}
+			catch (PLCRuntimeException e) {
+				failure.compareAndSet(null, e);
+			}
+			catch (IOException | RuntimeException e) {
+				failure.compareAndSet(null, new PLCRuntimeException(FileURLIO.message(e, path), e));
+			}
+			finally {
+				ImagePool.release(copy);
+			}
+		});
+		return path;
+	}
+
+	/**
+	 * Waits until all queued images have been written. Throws a PLCRuntimeException if
+	 * writing one of them failed.
+	 */
+	public static void flush() {
+		ExecutorService w;
+		synchronized (ImageSink.class) {
+			w = writer;
+		}
+		if (w != null) {
+			CompletableFuture.runAsync(() -> {
+			}, w).join();
+		}
+		rethrow();
+	}
+
+	private static void rethrow() {
+		PLCRuntimeException e = failure.getAndSet(null);
+		if (e != null) {
+			throw e;
+		}
+	}
+
+	/** Number of images written */
+	public static long written() {
+		return written.sum();
+	}
+
+	/** Total time spent encoding and writing images, in nanoseconds */
+	public static long encodeNanos() {
+		return encodeNanos.sum();
+	}
+
+	public static void resetStatistics() {
+		written.reset();
+		encodeNanos.reset();
+	}
+
+	/** Expands the template for the image with the given number */
+	static String path(String template, long n, BufferedImage image) {
+		Matcher m = PLACEHOLDER.matcher(template);
+		StringBuilder path = new StringBuilder();
+		while (m.find()) {
+			String value = switch (m.group(1).charAt(0)) {
+			case 'w' -> Integer.toString(image.getWidth());
+			case 'h' -> Integer.toString(image.getHeight());
+			case 't' -> Long.toString(System.currentTimeMillis());
+			default -> m.group(2) == null ? Long.toString(n) : String.format("%0" + m.group(2) + "d", n);
+			};
+			m.appendReplacement(path, Matcher.quoteReplacement(value));
+		}
+		m.appendTail(path);
+		return path.toString();
+	}
+
+	/** Writes image to path in the format given by its extension */
+	private static void write(BufferedImage image, String path) throws IOException {
+		Path file = Paths.get(path);
+		if (file.getParent() != null) {
+			Files.createDirectories(file.getParent());
+		}
+		String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+		if (name.endsWith(".png")) {
+			try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file), 1 << 16)) {
+				PngEncoder.write(image, out, pngLevel);
+			}
+		}
+		else if (name.endsWith(".jpg") || name.endsWith(".jpeg")) {
+			writeJpeg(image, file);
+		}
+		else {
+			FileURLIO.writeImage(image, path);
+		}
+	}
+
+	/** Writes image as a JPEG image; the JDK's writer cannot write images with alpha */
+	private static void writeJpeg(BufferedImage image, Path file) throws IOException {
+		BufferedImage rgb = RgbConverter.toIntRgb(image);
+		Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+		ImageWriter jpeg = writers.next();
+		ImageWriteParam param = jpeg.getDefaultWriteParam();
+		param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+		param.setCompressionQuality(jpegQuality);
+		Files.deleteIfExists(file);
+		try (ImageOutputStream out = ImageIO.createImageOutputStream(file.toFile())) {
+			jpeg.setOutput(out);
+			jpeg.write(null, new IIOImage(rgb, null, null), param);
+		}
+		finally {
+			jpeg.dispose();
+		}
+	}
+
+	/**
+	 * The thread images are written on, started with the first image. Waiting images
+	 * are written by a shutdown hook when the program exits.
+	 */
+	private static synchronized ExecutorService writer() {
+		if (writer == null) {
+			ThreadPoolExecutor pool = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<>(QUEUE), r -> {
+						Thread thread = new Thread(r, "plc-image-sink");
+						thread.setDaemon(true);
+						return thread;
+					}, (r, executor) -> {
+						try { // wait for room in the queue
+							executor.getQueue().put(r);
+							executor.prestartCoreThread();
+						}
+						catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							throw new PLCRuntimeException("Interrupted while waiting to write an image");
+						}
+					});
+			pool.allowCoreThreadTimeOut(true);
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+				try {
+					flush();
+				}
+				catch (PLCRuntimeException e) {
+					System.err.println(e.getMessage());
+				}
+			}, "plc-image-sink-flush"));
+			writer = pool;
+		}
+		return writer;
+	}
+
+}
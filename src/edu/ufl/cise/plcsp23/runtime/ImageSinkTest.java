@@ -0,0 +1,94 @@
+package edu.ufl.cise.plcsp23.runtime;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ImageSinkTest {
+
+	@TempDir
+	Path dir;
+
+	@AfterEach
+	void reset() {
+		ImageSink.setTemplate(null);
+		ImageSink.setPngLevel(6);
+	}
+
+	@Test
+	void pngImagesDecodeToTheSamePixels() throws Exception {
+		Random random = new Random(25);
+		// the larger sizes are deflated in several strips
+		int[][] sizes = { { 1, 1 }, { 3, 200 }, { 37, 23 }, { 640, 480 }, { 1500, 300 } };
+		for (int[] size : sizes) {
+			BufferedImage image = FileURLIOTest.pattern(size[0], size[1], random);
+			for (int level = 0; level <= 9; level++) {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				PngEncoder.write(image, out, level);
+				BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+				String message = size[0] + "x" + size[1] + " level " + level;
+				assertNotNull(decoded, message);
+				ResizeTest.assertSameImage(image, decoded, message);
+			}
+		}
+	}
+
+	@Test
+	void sinkWritesEveryFormat() throws Exception {
+		BufferedImage image = ResizeTest.random(50, 40, BufferedImage.TYPE_INT_ARGB, new Random(26));
+		for (String extension : new String[] { "png", "jpg", "ppm", "plcimg" }) {
+			ImageSink.setTemplate(dir.resolve("sub/" + extension + "{n}." + extension).toString());
+			String path = ImageSink.write(image);
+			ImageSink.flush();
+			BufferedImage read = FileURLIO.readImage(path);
+			assertEquals(50, read.getWidth(), extension);
+			assertEquals(40, read.getHeight(), extension);
+			if (!extension.equals("jpg")) {
+				assertArrayEquals(RawImageTest.rgb(image), RawImageTest.rgb(read), extension);
+			}
+		}
+	}
+
+	@Test
+	void templatesAreExpanded() {
+		BufferedImage image = new BufferedImage(3, 2, BufferedImage.TYPE_INT_RGB);
+		assertEquals("a/7-0007-3x2.png", ImageSink.path("a/{n}-{n:4}-{w}x{h}.png", 7, image));
+		assertEquals("12345.png", ImageSink.path("{n:2}.png", 12345, image));
+		assertEquals("{x}{n:}.png", ImageSink.path("{x}{n:}.png", 1, image));
+	}
+
+	@Test
+	void invalidWidthsAreRejected() {
+		for (String template : new String[] { "{n:0}.png", "{n:04}.png", "{n:}.png", "{n:x}.png" }) {
+			assertThrows(PLCRuntimeException.class, () -> ImageSink.setTemplate(template), template);
+		}
+		ImageSink.setTemplate("{n:10}.png");
+		assertEquals("{n:10}.png", ImageSink.getTemplate());
+	}
+
+	@Test
+	void writeErrorsAreThrownByFlush() throws Exception {
+		File file = dir.resolve("file").toFile();
+		Files.writeString(file.toPath(), "not a directory");
+		ImageSink.setTemplate(new File(file, "{n}.png").getPath());
+		ImageSink.write(new BufferedImage(2, 2, BufferedImage.TYPE_INT_RGB));
+		assertThrows(PLCRuntimeException.class, ImageSink::flush);
+		ImageSink.flush(); // the error is thrown once
+	}
+
+}
@@ -0,0 +1,103 @@
+package edu.ufl.cise.plcsp23.runtime;
+
+import java.awt.image.BufferedImage;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Modification counters for images. The version of an image changes every time its
+ * pixels are changed through ImageOps, which includes all the writes done by the
+ * generated code, so anything computed from an image, like a cached hash, stays
+ * valid as long as the version of the image is the same.
+ *
+ * ImageOps also records when one image is made an exact copy of another, by
+ * cloneImage or copyInto. Two images that are copies of the same contents, and have
+ * not been changed since, are known to be equal without comparing their pixels.
+ *
+ * The counters are kept in a table on the side, since the images are plain
+ * BufferedImages. Writes that do not go through ImageOps are not counted. Changing
+ * the pixels of an image whose version has not been asked for since its last
+ * change costs nothing, so loops setting the pixels of an image one at a time do
+ * not slow down.
+ */
+public class ImageVersions {
+
+	private static final class Stamp {
+		long version;
+		/** True if version has been returned since the last change */
+		boolean observed;
+		/** Shared with the images that are unchanged copies of this one, or null */
+		Object contents;
+	}
+
+	private static final Map<BufferedImage, Stamp> stamps = new WeakHashMap<>();
+
+	/** An image whose version has not been observed since it was last changed */
+	private static volatile WeakReference<BufferedImage> unobserved = new WeakReference<>(null);
+
+	/**
+	 * Returns the version of image. A later call returns the same value if and only if
+	 * the pixels of image have not been changed through ImageOps in between.
+	 */
+	public static long version(BufferedImage image) {
+		synchronized (stamps) {
+			Stamp stamp = stamp(image);
+			stamp.observed = true;
+			return stamp.version;
+		}
+	}
+
+	/** Records that the pixels of image change */
+	static void changed(BufferedImage image) {
+		if (unobserved.get() == image) {
+			return;
+		}
+		synchronized (stamps) {
+			Stamp stamp = stamps.get(image);
+			if (stamp != null && (stamp.observed || stamp.contents != null)) {
+				stamp.version++;
+				stamp.observed = false;
+				stamp.contents = null;
+			}
+			unobserved = new WeakReference<>(image);
+		}
+	}
+
+	/** Records that copy now has exactly the same pixels as image */
+	static void copied(BufferedImage image, BufferedImage copy) {
+		if (image == copy) {
+			return;
+		}
+		synchronized (stamps) {
+			Stamp source = stamp(image);
+			if (source.contents == null) {
+				source.contents = new Object();
+			}
+			stamp(copy).contents = source.contents;
+		}
+	}
+
+	/**
+	 * Returns true if image0 and image1 are known to have the same pixels because one
+	 * was copied from the other, or both from the same image, and neither has been
+	 * changed since. A false result says nothing.
+	 */
+	static boolean sameContents(BufferedImage image0, BufferedImage image1) {
+		synchronized (stamps) {
+			Stamp stamp0 = stamps.get(image0);
+			Stamp stamp1 = stamps.get(image1);
+			return stamp0 != null && stamp1 != null && stamp0.contents != null && stamp0.contents == stamp1.contents;
+		}
+	}
+
+	/** Returns the stamp of image, creating it if necessary. Must hold the lock. */
+	private static Stamp stamp(BufferedImage image) {
+		Stamp stamp = stamps.computeIfAbsent(image, i -> new Stamp());
+		if (unobserved.get() == image) {
+			unobserved = new WeakReference<>(null);
+		}
+		return stamp;
+	}
+
+}
@@ -0,0 +1,105 @@
+package edu.ufl.cise.plcsp23.runtime;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import edu.ufl.cise.plcsp23.runtime.ImageOps.OP;
+
+class ImageVersionsTest {
+
+	static BufferedImage image() {
+		return new BufferedImage(8, 6, BufferedImage.TYPE_INT_RGB);
+	}
+
+	@Test
+	void versionsChangeWithThePixels() {
+		BufferedImage a = image();
+		BufferedImage b = image();
+		long v0 = ImageVersions.version(a);
+		assertEquals(v0, ImageVersions.version(a));
+		ImageOps.setRGB(a, 1, 1, 0x123456);
+		ImageOps.setRGB(a, 2, 1, 0x123456); // changes a while its version is not observed
+		long v1 = ImageVersions.version(a);
+		assertNotEquals(v0, v1);
+
+		ImageOps.setRGB(b, 0, 0, 1);
+		assertEquals(v1, ImageVersions.version(a));
+		ImageOps.setRGB(b, 0, 0, 2);
+		ImageOps.setRGB(a, 0, 0, 2); // after b was the unobserved one
+		long v2 = ImageVersions.version(a);
+		assertNotEquals(v1, v2);
+
+		ImageOps.setRGB(a, 100, 100, 2); // out of bounds, nothing changes
+		assertEquals(v2, ImageVersions.version(a));
+	}
+
+	@Test
+	void everyWriteThroughImageOpsIsCounted() {
+		Random random = new Random(28);
+		BufferedImage a = ImageKernelsTest.random(8, 6, BufferedImage.TYPE_INT_RGB, random);
+		BufferedImage b = ImageKernelsTest.random(8, 6, BufferedImage.TYPE_INT_RGB, random);
+		Runnable[] writes = { () -> ImageOps.setAllPixels(a, 7), () -> ImageOps.copyInto(b, a),
+				() -> ImageOps.copyInto(ImageKernelsTest.random(16, 12, BufferedImage.TYPE_INT_RGB, random), a),
+				() -> ImageOps.binaryImageImageOp(OP.PLUS, a, b, ImageOps.TEMP_LEFT),
+				() -> ImageOps.binaryImageImageOp(OP.PLUS, b, a, ImageOps.TEMP_RIGHT),
+				() -> ImageOps.binaryImageScalarOp(OP.TIMES, a, 2, ImageOps.TEMP_LEFT),
+				() -> ImageOps.binaryImagePixelOp(OP.MINUS, a, 5, ImageOps.TEMP_LEFT),
+				() -> ImageOps.extractRed(a, ImageOps.TEMP_LEFT) };
+		for (int i = 0; i < writes.length; i++) {
+			long version = ImageVersions.version(a);
+			writes[i].run();
+			assertNotEquals(version, ImageVersions.version(a), "write " + i);
+		}
+		long version = ImageVersions.version(a);
+		ImageOps.binaryImageImageOp(OP.PLUS, a, b);
+		ImageOps.extractRed(a);
+		ImageOps.cloneImage(a);
+		ImageOps.equals(a, b);
+		assertEquals(version, ImageVersions.version(a));
+	}
+
+	@Test
+	void releasedImagesChange() {
+		ImagePool.clear();
+		BufferedImage a = ImagePool.acquire(8, 6);
+		long version = ImageVersions.version(a);
+		ImagePool.release(a);
+		assertNotEquals(version, ImageVersions.version(a));
+		ImagePool.clear();
+	}
+
+	@Test
+	void copiesShareTheirContents() {
+		Random random = new Random(29);
+		BufferedImage a = ImageKernelsTest.random(8, 6, BufferedImage.TYPE_INT_RGB, random);
+		BufferedImage b = ImageOps.cloneImage(a);
+		BufferedImage c = image();
+		ImageOps.copyInto(b, c);
+		BufferedImage d = ImageOps.cloneImage(c);
+		assertTrue(ImageVersions.sameContents(a, b));
+		assertTrue(ImageVersions.sameContents(a, d));
+		assertTrue(ImageVersions.sameContents(c, b));
+
+		BufferedImage resized = new BufferedImage(4, 3, BufferedImage.TYPE_INT_RGB);
+		ImageOps.copyInto(a, resized);
+		assertFalse(ImageVersions.sameContents(a, resized));
+
+		ImageOps.setRGB(c, 0, 0, 0);
+		assertFalse(ImageVersions.sameContents(a, c));
+		assertFalse(ImageVersions.sameContents(c, d));
+		assertTrue(ImageVersions.sameContents(a, d));
+
+		ImageOps.setRGB(a, 0, 0, 0); // even if the pixel did not change
+		ImageOps.setRGB(a, 0, 0, 0);
+		assertFalse(ImageVersions.sameContents(a, d));
+		assertFalse(ImageVersions.sameContents(a, image()));
+	}
+
+}
@@ -0,0 +1,269 @@
+package edu.ufl.cise.plcsp23.runtime;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.ufl.cise.plcsp23.runtime.ImageOps.OP;
+
+/**
+ * The deferred result of an image operation, returned by ImageOps in lazy mode (see
+ * ImageOps.setLazy). A LazyImage records the operation and its arguments, which may
+ * themselves be lazy, so an expression like (a + b) * 2 - c becomes a tree with the
+ * images a, b and c at its leaves.
+ *
+ * Nothing is computed until the pixels are needed. Reading a single pixel with
+ * getRGB(x, y) evaluates the tree for that pixel only. Anything else evaluates the
+ * whole tree in one pass: the image is processed in chunks small enough to stay in
+ * the cache, and each chunk goes through all the operations of the tree before the
+ * next one is started, so no intermediate image is ever allocated. The result is
+ * kept, and the tree is dropped. Arguments that were temporaries of the generated
+ * code are given back to the ImagePool once the pass has read them, or when the
+ * image is released without being evaluated.
+ *
+ * A LazyImage is a BufferedImage of TYPE_CUSTOM, so it can be used wherever an image
+ * is expected. Since it reads its leaves when it is evaluated, the generated code
+ * evaluates it (see ImageOps.materialize) before any of them could be changed.
+ */
+public class LazyImage extends BufferedImage {
+
+	/** Number of pixels that go through the whole tree at a time */
+	static final int CHUNK = 1 << 10;
+
+	private static final DirectColorModel COLOR_MODEL = new DirectColorModel(24, 0xff0000, 0x00ff00, 0x0000ff);
+
+	private enum Kind {
+		IMAGE_IMAGE, IMAGE_PIXEL, IMAGE_SCALAR, SELECT
+	}
+
+	private final Kind kind;
+	private final OP op;
+	private final int value;
+	/** Which of left and right are temporaries, as ImageOps.TEMP_LEFT and TEMP_RIGHT */
+	private final int temporaries;
+	private BufferedImage left;
+	private BufferedImage right;
+	private BufferedImage evaluated;
+
+	private LazyImage(Kind kind, OP op, BufferedImage left, BufferedImage right, int value, int temporaries) {
+		super(COLOR_MODEL,
+				Raster.createWritableRaster(new SinglePixelPackedSampleModel(DataBuffer.TYPE_INT, left.getWidth(),
+						left.getHeight(), COLOR_MODEL.getMasks()), new Pixels(left.getWidth() * left.getHeight()), null),
+				false, null);
+		((Pixels) getRaster().getDataBuffer()).image = this;
+		this.kind = kind;
+		this.op = op;
+		this.left = left;
+		this.right = right;
+		this.value = value;
+		this.temporaries = temporaries;
+	}
+
+	static LazyImage imageImage(OP op, BufferedImage left, BufferedImage right, int temporaries) {
+		return new LazyImage(Kind.IMAGE_IMAGE, op, left, right, 0, temporaries);
+	}
+
+	static LazyImage imagePixel(OP op, BufferedImage left, int right, int temporaries) {
+		return new LazyImage(Kind.IMAGE_PIXEL, op, left, null, right, temporaries);
+	}
+
+	static LazyImage imageScalar(OP op, BufferedImage left, int right, int temporaries) {
+		return new LazyImage(Kind.IMAGE_SCALAR, op, left, null, right, temporaries);
+	}
+
+	/** The image with only the color components of image chosen by select */
+	static LazyImage select(BufferedImage image, int select, int temporaries) {
+		return new LazyImage(Kind.SELECT, null, image, null, select, temporaries);
+	}
+
+	public synchronized boolean isEvaluated() {
+		return evaluated != null;
+	}
+
+	/**
+	 * Returns a TYPE_INT_RGB image holding the value of this one, evaluating it first if
+	 * necessary. The result is the same image every time.
+	 */
+	public synchronized BufferedImage evaluate() {
+		if (evaluated == null) {
+			BufferedImage result = ImagePool.acquire(getWidth(), getHeight());
+			evaluateInto(ImageKernels.data(result));
+			evaluated = result;
+			releaseArguments();
+		}
+		return evaluated;
+	}
+
+	/**
+	 * Stores the value of this image into dst, which must hold the pixels of a
+	 * TYPE_INT_RGB image of the same size. dst may be one of the leaves, since every
+	 * chunk is read before it is written. This image is not evaluated by the call.
+	 */
+	synchronized void evaluateInto(int[] dst) {
+		if (evaluated != null) {
+			System.arraycopy(ImageKernels.data(evaluated), 0, dst, 0, dst.length);
+			return;
+		}
+		List<Step> program = new ArrayList<>();
+		int result = compile(program, new int[1]);
+		int registers = result + 1;
+		for (Step step : program) {
+			registers = Math.max(registers, step.target + 1);
+		}
+		int count = registers;
+		ImageKernels.run(getWidth(), getHeight(), (from, to) -> {
+			int[][] regs = new int[count][Math.min(CHUNK, to - from)];
+			for (int start = from; start < to; start += CHUNK) {
+				int n = Math.min(CHUNK, to - start);
+				for (Step step : program) {
+					step.run(regs, start, n);
+				}
+				System.arraycopy(regs[result], 0, dst, start, n);
+			}
+		});
+	}
+
+	/**
+	 * One operation of a compiled tree, applied to a chunk of n pixels held in
+	 * registers. Leaves are loaded into a register and every operation stores its
+	 * result in the register of its left operand. An image-scalar operation keeps
+	 * the table from ImageKernels.scalarTable, so it is not looked up for every chunk.
+	 */
+	private record Step(Kind kind, OP op, int value, int[] table, int[] pixels, int target, int source) {
+		void run(int[][] regs, int start, int n) {
+			int[] t = regs[target];
+			if (pixels != null) {
+				System.arraycopy(pixels, start, t, 0, n);
+				return;
+			}
+			switch (kind) {
+			case IMAGE_IMAGE -> ImageKernels.imageImage(op, t, regs[source], t, 0, n);
+			case IMAGE_PIXEL -> ImageKernels.imagePixel(op, t, value, t, 0, n);
+			case IMAGE_SCALAR -> ImageKernels.imageScalar(op, t, value, table, t, 0, n);
+			case SELECT -> ImageKernels.select(t, t, 0, n, value);
+			}
+		}
+	}
+
+	/**
+	 * Appends the steps that compute this image to program and returns the register
+	 * holding the result. next holds the next free register.
+	 */
+	private int compile(List<Step> program, int[] next) {
+		int target = operand(left, program, next);
+		if (kind == Kind.IMAGE_IMAGE) {
+			int source = operand(right, program, next);
+			program.add(new Step(kind, op, value, null, null, target, source));
+		}
+		else {
+			int[] table = kind == Kind.IMAGE_SCALAR ? ImageKernels.scalarTable(op, value) : null;
+			program.add(new Step(kind, op, value, table, null, target, -1));
+		}
+		return target;
+	}
+
+	private static int operand(BufferedImage image, List<Step> program, int[] next) {
+		if (image instanceof LazyImage lazy) {
+			synchronized (lazy) {
+				if (lazy.evaluated == null) {
+					return lazy.compile(program, next);
+				}
+			}
+		}
+		int register = next[0]++;
+		program.add(new Step(null, null, 0, null, ImageKernels.pixels(image), register, -1));
+		return register;
+	}
+
+	/**
+	 * Returns the pixel at x,y, computing only that pixel if this image has not been
+	 * evaluated yet.
+	 */
+	@Override
+	public synchronized int getRGB(int x, int y) {
+		if (evaluated != null) {
+			return evaluated.getRGB(x, y);
+		}
+		return pixel(x, y) | PixelOps.SELECT_ALPHA;
+	}
+
+	/** The value of the pixel at x,y without alpha, computed the same way as the kernels do */
+	private int pixel(int x, int y) {
+		int l = left.getRGB(x, y);
+		int p = switch (kind) {
+		case IMAGE_IMAGE -> ImageOps.binaryPackedPixelPixelOp(op, l, right.getRGB(x, y));
+		case IMAGE_PIXEL -> ImageOps.binaryPackedPixelPixelOp(op, l, value);
+		case IMAGE_SCALAR -> ImageOps.binaryPackedPixelScalarOp(op, l, value);
+		case SELECT -> l & value;
+		};
+		return p & ImageKernels.SELECT_RGB;
+	}
+
+	@Override
+	public int[] getRGB(int startX, int startY, int w, int h, int[] rgbArray, int offset, int scansize) {
+		return evaluate().getRGB(startX, startY, w, h, rgbArray, offset, scansize);
+	}
+
+	@Override
+	public void setRGB(int x, int y, int rgb) {
+		evaluate().setRGB(x, y, rgb);
+	}
+
+	@Override
+	public void setRGB(int startX, int startY, int w, int h, int[] rgbArray, int offset, int scansize) {
+		evaluate().setRGB(startX, startY, w, h, rgbArray, offset, scansize);
+	}
+
+	/**
+	 * Gives the evaluated pixels back to the ImagePool. The image must not be used
+	 * afterwards.
+	 */
+	synchronized void release() {
+		if (evaluated != null) {
+			ImagePool.release(evaluated);
+		}
+		releaseArguments();
+	}
+
+	/**
+	 * Releases the arguments that are temporaries, which releases the temporaries of
+	 * lazy arguments in turn, and drops the tree.
+	 */
+	private void releaseArguments() {
+		if ((temporaries & ImageOps.TEMP_LEFT) != 0 && left != null) {
+			ImageOps.release(left);
+		}
+		if ((temporaries & ImageOps.TEMP_RIGHT) != 0 && right != null && right != left) {
+			ImageOps.release(right);
+		}
+		left = null;
+		right = null;
+	}
+
+	/**
+	 * The raster of a LazyImage, which evaluates the image the first time it is
+	 * accessed. This is how drawing and encoding a LazyImage work.
+	 */
+	private static final class Pixels extends DataBuffer {
+		LazyImage image;
+
+		Pixels(int size) {
+			super(DataBuffer.TYPE_INT, size);
+		}
+
+		@Override
+		public int getElem(int bank, int i) {
+			return ImageKernels.data(image.evaluate())[i];
+		}
+
+		@Override
+		public void setElem(int bank, int i, int val) {
+			ImageKernels.data(image.evaluate())[i] = val & ImageKernels.SELECT_RGB;
+		}
+	}
+
+}
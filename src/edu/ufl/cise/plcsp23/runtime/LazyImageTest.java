@@ -0,0 +1,209 @@
+package edu.ufl.cise.plcsp23.runtime;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import edu.ufl.cise.plcsp23.runtime.ImageOps.OP;
+
+class LazyImageTest {
+
+	static final int W = 37;
+	static final int H = 23;
+
+	@BeforeEach
+	void lazy() {
+		ImageOps.setLazy(true);
+		ImagePool.clear();
+	}
+
+	@AfterEach
+	void eager() {
+		ImageOps.setLazy(false);
+		ImagePool.clear();
+		ImageKernels.setParallelThreshold(1 << 18);
+		ImageKernels.setPool(ForkJoinPool.commonPool());
+	}
+
+	static BufferedImage random(Random random) {
+		BufferedImage image = new BufferedImage(W, H, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < H; y++) {
+			for (int x = 0; x < W; x++) {
+				image.setRGB(x, y, random.nextInt());
+			}
+		}
+		return image;
+	}
+
+	/** A temporary like the ones the generated code passes with TEMP_LEFT or TEMP_RIGHT */
+	static BufferedImage temporary(BufferedImage image) {
+		BufferedImage copy = ImagePool.acquire(W, H);
+		copy.setRGB(0, 0, W, H, ImageOps.getRGBPixels(image), 0, W);
+		return copy;
+	}
+
+	@Test
+	void fusedEvaluationReleasesTemporaries() {
+		Random random = new Random(11);
+		BufferedImage a = random(random);
+		BufferedImage b = random(random);
+		BufferedImage c = random(random);
+		BufferedImage ta = temporary(a);
+		BufferedImage tc = temporary(c);
+		// (ta + b) * 2 - tc, where ta, tc and the intermediate results are temporaries
+		BufferedImage sum = ImageOps.binaryImageImageOp(OP.PLUS, ta, b, ImageOps.TEMP_LEFT);
+		BufferedImage product = ImageOps.binaryImageScalarOp(OP.TIMES, sum, 2, ImageOps.TEMP_LEFT);
+		BufferedImage result = ImageOps.binaryImageImageOp(OP.MINUS, product, tc,
+				ImageOps.TEMP_LEFT | ImageOps.TEMP_RIGHT);
+		assertTrue(result instanceof LazyImage);
+		assertEquals(0, ImagePool.pooledBytes());
+
+		BufferedImage evaluated = ImageOps.materialize(result);
+		assertEquals(2L * W * H * 4, ImagePool.pooledBytes());
+		ImageOps.setLazy(false);
+		BufferedImage expected = ImageOps.binaryImageImageOp(OP.MINUS,
+				ImageOps.binaryImageScalarOp(OP.TIMES, ImageOps.binaryImageImageOp(OP.PLUS, a, b), 2), c);
+		assertArrayEquals(ImageOps.getRGBPixels(expected), ImageOps.getRGBPixels(evaluated));
+	}
+
+	@Test
+	void argumentsThatAreNotTemporariesAreKept() {
+		Random random = new Random(12);
+		BufferedImage a = random(random);
+		BufferedImage result = ImageOps.binaryImageScalarOp(OP.PLUS, a, 1, 0);
+		ImageOps.materialize(result);
+		assertEquals(0, ImagePool.pooledBytes());
+	}
+
+	@Test
+	void releasingAnUnevaluatedImageReleasesItsTemporaries() {
+		Random random = new Random(13);
+		BufferedImage t = temporary(random(random));
+		BufferedImage result = ImageOps.binaryImagePixelOp(OP.DIV, t, PixelOps.pack(1, 2, 3), ImageOps.TEMP_LEFT);
+		ImageOps.release(result);
+		assertEquals((long) W * H * 4, ImagePool.pooledBytes());
+		assertSame(t, ImagePool.acquire(W, H));
+	}
+
+	/**
+	 * Builds a random expression over leaves, the same one for the same seed. The
+	 * results of subexpressions are passed as temporaries, like the generated code
+	 * does. Only leaves, which have no zero components, are divided by.
+	 */
+	static BufferedImage expression(Random random, int depth, BufferedImage[] leaves) {
+		if (depth == 0 || random.nextInt(4) == 0) {
+			return leaves[random.nextInt(leaves.length)];
+		}
+		OP op = OP.values()[random.nextInt(OP.values().length)];
+		BufferedImage left = expression(random, depth - 1, leaves);
+		int temp = isLeaf(left, leaves) ? 0 : ImageOps.TEMP_LEFT;
+		switch (random.nextInt(4)) {
+		case 0:
+			BufferedImage right = op == OP.DIV || op == OP.MOD ? leaves[random.nextInt(leaves.length)]
+					: expression(random, depth - 1, leaves);
+			if (!isLeaf(right, leaves)) {
+				temp |= ImageOps.TEMP_RIGHT;
+			}
+			return ImageOps.binaryImageImageOp(op, left, right, temp);
+		case 1:
+			return ImageOps.binaryImagePixelOp(op, left, random.nextInt() | 0x010101, temp);
+		case 2:
+			int scalar = ChannelTablesTest.SCALARS[random.nextInt(ChannelTablesTest.SCALARS.length)];
+			return ImageOps.binaryImageScalarOp(op, left, scalar == 0 ? 7 : scalar, temp);
+		default:
+			return switch (random.nextInt(3)) {
+			case 0 -> ImageOps.extractRed(left, temp);
+			case 1 -> ImageOps.extractGrn(left, temp);
+			default -> ImageOps.extractBlu(left, temp);
+			};
+		}
+	}
+
+	static boolean isLeaf(BufferedImage image, BufferedImage[] leaves) {
+		for (BufferedImage leaf : leaves) {
+			if (image == leaf) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	static BufferedImage[] leaves(int w, int h, Random random) {
+		BufferedImage[] leaves = new BufferedImage[ImageKernelsTest.TYPES.length];
+		for (int i = 0; i < leaves.length; i++) {
+			leaves[i] = ImageKernelsTest.random(w, h, ImageKernelsTest.TYPES[i], random);
+			for (int y = 0; y < h; y++) {
+				for (int x = 0; x < w; x++) {
+					leaves[i].setRGB(x, y, leaves[i].getRGB(x, y) | 0x010101);
+				}
+			}
+		}
+		return leaves;
+	}
+
+	void assertExpressionsMatchEagerEvaluation(int w, int h, int count, Random random) {
+		BufferedImage[] leaves = leaves(w, h, random);
+		for (int i = 0; i < count; i++) {
+			long seed = random.nextLong();
+			ImageOps.setLazy(false);
+			int[] pixels = ImageOps.getRGBPixels(expression(new Random(seed), 5, leaves));
+			ImageOps.setLazy(true);
+			BufferedImage lazy = expression(new Random(seed), 5, leaves);
+			if (lazy instanceof LazyImage lazyImage) {
+				for (int j = 0; j < 20; j++) {
+					int x = random.nextInt(w);
+					int y = random.nextInt(h);
+					assertEquals(pixels[y * w + x], lazy.getRGB(x, y), "pixel " + x + "," + y + " of " + seed);
+				}
+				assertFalse(lazyImage.isEvaluated());
+			}
+			assertArrayEquals(pixels, ImageOps.getRGBPixels(ImageOps.materialize(lazy)), "seed " + seed);
+		}
+	}
+
+	@Test
+	void fusedExpressionsMatchEagerEvaluation() {
+		assertExpressionsMatchEagerEvaluation(W, H, 300, new Random(14));
+		// several chunks, the last one partial
+		assertExpressionsMatchEagerEvaluation(LazyImage.CHUNK + 77, 3, 30, new Random(15));
+	}
+
+	@Test
+	void parallelFusedExpressionsMatchEagerEvaluation() {
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			ImageKernels.setPool(pool);
+			ImageKernels.setParallelThreshold(1);
+			assertExpressionsMatchEagerEvaluation(301, 57, 30, new Random(16));
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	void resultsCanBeCopiedIntoTheirLeaves() {
+		Random random = new Random(17);
+		BufferedImage a = random(random);
+		BufferedImage b = random(random);
+		ImageOps.setLazy(false);
+		BufferedImage expected = ImageOps.binaryImageImageOp(OP.PLUS,
+				ImageOps.binaryImageScalarOp(OP.TIMES, a, 3), ImageOps.extractGrn(b));
+		ImageOps.setLazy(true);
+		BufferedImage lazy = ImageOps.binaryImageImageOp(OP.PLUS, ImageOps.binaryImageScalarOp(OP.TIMES, a, 3, 0),
+				ImageOps.extractGrn(b, 0), ImageOps.TEMP_LEFT | ImageOps.TEMP_RIGHT);
+		ImageOps.copyInto(lazy, a); // a = a * 3 + b:grn
+		assertArrayEquals(ImageOps.getRGBPixels(expected), ImageOps.getRGBPixels(a));
+	}
+
+}
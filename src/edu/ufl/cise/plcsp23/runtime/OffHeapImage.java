@@ -0,0 +1,326 @@
+package edu.ufl.cise.plcsp23.runtime;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An image whose pixels are stored outside the Java heap, in a direct or memory
+ * mapped buffer. A very large BufferedImage needs a single int[] of width*height
+ * pixels, which the garbage collector has to allocate and move as one object; the
+ * pixels of an OffHeapImage are not seen by the garbage collector at all.
+ *
+ * Pixels are stored like those of a TYPE_INT_RGB image, one packed int per pixel in
+ * row-major order without the alpha value, in the native byte order. The
+ * operations on off-heap images in ImageOps copy the pixels through small on-heap
+ * chunks and use the same kernels as the operations on BufferedImages.
+ *
+ * The memory is freed when the image is closed, not when it becomes unreachable, so
+ * an OffHeapImage should be closed as soon as it is no longer needed. Using it once
+ * close has been called throws a PLCRuntimeException. Operations that are still
+ * running when it is closed keep the memory until they finish, so the memory is
+ * freed when the last of them ends. Use toBufferedImage and fromBufferedImage to
+ * convert at I/O boundaries.
+ */
+public class OffHeapImage implements AutoCloseable {
+
+	/** Number of pixels copied to the heap at a time by the ImageOps operations */
+	static final int CHUNK = 1 << 14;
+
+	/** Largest number of pixels a single buffer can hold */
+	public static final long MAX_PIXELS = Integer.MAX_VALUE / 4;
+
+	interface ChunkKernel {
+		/** Processes the pixels [start, start + length) of the images */
+		void apply(int start, int length, int[] scratch0, int[] scratch1);
+	}
+
+	private final int width;
+	private final int height;
+	private final boolean mapped;
+	private volatile ByteBuffer buffer;
+	private volatile IntBuffer pixels;
+	/** Uses of the memory that have not ended, counting the owner's until close */
+	private final AtomicInteger users = new AtomicInteger(1);
+	private final AtomicBoolean closed = new AtomicBoolean();
+
+	private OffHeapImage(int width, int height, ByteBuffer buffer, boolean mapped) {
+		this.width = width;
+		this.height = height;
+		this.buffer = buffer;
+		this.pixels = buffer.order(ByteOrder.nativeOrder()).asIntBuffer();
+		this.mapped = mapped;
+	}
+
+	/**
+	 * Returns a new image with all pixels black, stored in a direct buffer.
+	 */
+	public static OffHeapImage allocate(int width, int height) {
+		return new OffHeapImage(width, height, ByteBuffer.allocateDirect(size(width, height)), false);
+	}
+
+	/**
+	 * Returns an image backed by the given file, which is created or extended to
+	 * 4*width*height bytes if necessary. Changes to the pixels are written to the file;
+	 * the file keeps its contents after the image is closed, so it can be mapped again
+	 * later on the same machine.
+	 */
+	public static OffHeapImage map(Path file, int width, int height) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE)) {
+			return map(channel, 0, width, height);
+		}
+	}
+
+	/** Returns an image backed by the pixels of channel's file that start at position */
+	static OffHeapImage map(FileChannel channel, long position, int width, int height) throws IOException {
+		int size = size(width, height);
+		return new OffHeapImage(width, height, channel.map(FileChannel.MapMode.READ_WRITE, position, size), true);
+	}
+
+	private static int size(int width, int height) {
+		if (width <= 0 || height <= 0 || (long) width * height > MAX_PIXELS) {
+			throw new PLCRuntimeException("Unsupported off-heap image size " + width + "x" + height);
+		}
+		return 4 * width * height;
+	}
+
+	/**
+	 * Returns a new off-heap image with the same pixels as the given image.
+	 */
+	public static OffHeapImage fromBufferedImage(BufferedImage image) {
+		int w = image.getWidth();
+		int h = image.getHeight();
+		OffHeapImage result = allocate(w, h);
+		int[] data = ImageKernels.data(image);
+		int rowsPerChunk = Math.max(1, CHUNK / w);
+		int[] rows = new int[rowsPerChunk * w];
+		for (int y = 0; y < h; y += rowsPerChunk) {
+			int n = Math.min(rowsPerChunk, h - y) * w;
+			if (data != null) {
+				System.arraycopy(data, y * w, rows, 0, n);
+			}
+			else {
+				image.getRGB(0, y, w, n / w, rows, 0, w);
+			}
+			ImageKernels.select(rows, rows, 0, n, ImageKernels.SELECT_RGB);
+			result.write(y * w, rows, 0, n);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns a new TYPE_INT_RGB image with the same pixels as this one.
+	 */
+	public BufferedImage toBufferedImage() {
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		acquire();
+		try {
+			pixels().get(0, ImageKernels.data(image), 0, width * height);
+		}
+		finally {
+			release();
+		}
+		return image;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/** True for images created by map */
+	public boolean isMapped() {
+		return mapped;
+	}
+
+	public boolean isClosed() {
+		return closed.get();
+	}
+
+	/**
+	 * Returns the pixel at x,y with the alpha value set, like BufferedImage.getRGB, or
+	 * a black pixel if the coordinates are out of bounds.
+	 */
+	public int getRGB(int x, int y) {
+		if (0 <= x && x < width && 0 <= y && y < height) {
+			acquire();
+			try {
+				return pixels().get(y * width + x) | PixelOps.SELECT_ALPHA;
+			}
+			finally {
+				release();
+			}
+		}
+		return PixelOps.pack(0, 0, 0);
+	}
+
+	/**
+	 * Sets the pixel at x,y. If the coordinates are out of bounds does nothing.
+	 */
+	public void setRGB(int x, int y, int pixel) {
+		if (0 <= x && x < width && 0 <= y && y < height) {
+			acquire();
+			try {
+				pixels().put(y * width + x, pixel & ImageKernels.SELECT_RGB);
+			}
+			finally {
+				release();
+			}
+		}
+	}
+
+	/**
+	 * Copies the pixels [index, index + length) into dst, starting at offset. Like
+	 * write and bytes, it may only be called by the owner of an image that has not
+	 * been closed, or while a use acquired with acquire has not been released.
+	 */
+	void read(int index, int[] dst, int offset, int length) {
+		pixels().get(index, dst, offset, length);
+	}
+
+	/**
+	 * Copies length pixels from src, starting at offset, into the pixels starting at
+	 * index. The pixels must not have the alpha value set.
+	 */
+	void write(int index, int[] src, int offset, int length) {
+		pixels().put(index, src, offset, length);
+	}
+
+	/**
+	 * Applies kernel to all pixels of a width by height image, CHUNK pixels at a time,
+	 * in parallel strips if the image is large enough. Each strip gets its own pair of
+	 * scratch arrays of CHUNK pixels. The images the kernel reads or writes are in use
+	 * until all strips have finished, so closing one of them meanwhile does not free
+	 * its memory.
+	 */
+	static void run(int width, int height, ChunkKernel kernel, OffHeapImage... images) {
+		int acquired = 0;
+		try {
+			for (OffHeapImage image : images) {
+				image.acquire();
+				acquired++;
+			}
+			ImageKernels.run(width, height, (from, to) -> {
+				int length = Math.min(CHUNK, to - from);
+				int[] scratch0 = new int[length];
+				int[] scratch1 = new int[length];
+				for (int start = from; start < to; start += length) {
+					kernel.apply(start, Math.min(length, to - start), scratch0, scratch1);
+				}
+			});
+		}
+		finally {
+			for (int i = 0; i < acquired; i++) {
+				images[i].release();
+			}
+		}
+	}
+
+	/**
+	 * Starts a use of the memory, which is not freed until the use is released.
+	 * Throws a PLCRuntimeException if the image has been closed.
+	 */
+	void acquire() {
+		int n;
+		do {
+			n = users.get();
+			if (n == 0) {
+				throw new PLCRuntimeException("Off-heap image has been closed");
+			}
+		} while (!users.compareAndSet(n, n + 1));
+		if (closed.get()) {
+			release();
+			throw new PLCRuntimeException("Off-heap image has been closed");
+		}
+	}
+
+	/** Ends a use started by acquire, freeing the memory if the image was closed meanwhile */
+	void release() {
+		if (users.decrementAndGet() == 0) {
+			ByteBuffer b = buffer;
+			buffer = null;
+			pixels = null;
+			free(b);
+		}
+	}
+
+	/** The bytes of the pixels, in the native byte order; see read for when it may be called */
+	ByteBuffer bytes() {
+		ByteBuffer b = buffer;
+		if (b == null) {
+			throw new PLCRuntimeException("Off-heap image has been closed");
+		}
+		return b.duplicate();
+	}
+
+	private IntBuffer pixels() {
+		IntBuffer p = pixels;
+		if (p == null) {
+			throw new PLCRuntimeException("Off-heap image has been closed");
+		}
+		return p;
+	}
+
+	/**
+	 * Frees the memory holding the pixels, or unmaps the file for a mapped image, once
+	 * the operations that are using it have finished. Calling close more than once has
+	 * no effect.
+	 */
+	@Override
+	public void close() {
+		if (closed.compareAndSet(false, true)) {
+			release();
+		}
+	}
+
+	private static final Object unsafe;
+	private static final Method invokeCleaner;
+	static {
+		Object u = null;
+		Method m = null;
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			u = theUnsafe.get(null);
+			m = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+		}
+		catch (ReflectiveOperationException | RuntimeException e) {
+			// the memory is freed by the garbage collector instead
+			u = null;
+			m = null;
+		}
+		unsafe = u;
+		invokeCleaner = m;
+	}
+
+	/**
+	 * Releases the memory of a direct or mapped buffer right away if the JDK allows it.
+	 * Otherwise it is released once the buffer has been garbage collected.
+	 */
+	static void free(ByteBuffer b) {
+		if (invokeCleaner == null) {
+			return;
+		}
+		try {
+			invokeCleaner.invoke(unsafe, b);
+		}
+		catch (ReflectiveOperationException e) {
+			// left to the garbage collector
+		}
+	}
+
+}
@@ -0,0 +1,213 @@
+package edu.ufl.cise.plcsp23.runtime;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import edu.ufl.cise.plcsp23.runtime.ImageOps.OP;
+
+class OffHeapImageTest {
+
+	@TempDir
+	Path dir;
+
+	@AfterEach
+	void reset() {
+		ImageKernels.setParallelThreshold(1 << 18);
+		ImageKernels.setPool(ForkJoinPool.commonPool());
+	}
+
+	static void assertSameImage(BufferedImage expected, OffHeapImage actual, String message) {
+		assertEquals(expected.getWidth(), actual.getWidth(), message);
+		assertEquals(expected.getHeight(), actual.getHeight(), message);
+		ImageKernelsTest.assertPixels(ImageOps.getRGBPixels(expected), actual.toBufferedImage(), message);
+	}
+
+	@Test
+	void convertedImagesKeepTheirPixels() {
+		Random random = new Random(7);
+		for (int type : ImageKernelsTest.TYPES) {
+			// more pixels than a chunk, in rows that do not divide it
+			BufferedImage image = ImageKernelsTest.random(301, 97, type, random);
+			try (OffHeapImage offHeap = OffHeapImage.fromBufferedImage(image)) {
+				assertFalse(offHeap.isMapped());
+				assertEquals(image.getRGB(300, 96) | PixelOps.SELECT_ALPHA, offHeap.getRGB(300, 96));
+				assertArrayEquals(RawImageTest.rgb(image), RawImageTest.rgb(offHeap.toBufferedImage()), "" + type);
+			}
+		}
+		BufferedImage subimage = ImageKernelsTest.random(50, 40, BufferedImage.TYPE_INT_RGB, random).getSubimage(3, 4,
+				20, 10);
+		try (OffHeapImage offHeap = OffHeapImage.fromBufferedImage(subimage)) {
+			assertArrayEquals(RawImageTest.rgb(subimage), RawImageTest.rgb(offHeap.toBufferedImage()));
+		}
+	}
+
+	@Test
+	void pixelsOutOfBoundsAreBlack() {
+		try (OffHeapImage image = OffHeapImage.allocate(4, 3)) {
+			image.setRGB(3, 2, 0xff123456);
+			image.setRGB(4, 0, 0x123456);
+			image.setRGB(0, -1, 0x123456);
+			assertEquals(0xff123456, image.getRGB(3, 2));
+			assertEquals(0xff000000, image.getRGB(0, 0));
+			assertEquals(0xff000000, image.getRGB(4, 0));
+			assertEquals(0xff000000, image.getRGB(-1, 2));
+		}
+	}
+
+	@Test
+	void operationsMatchTheHeapImages() {
+		Random random = new Random(8);
+		BufferedImage left = ImageKernelsTest.random(213, 101, BufferedImage.TYPE_INT_RGB, random);
+		BufferedImage right = ImageKernelsTest.random(213, 101, BufferedImage.TYPE_INT_RGB, random);
+		for (int y = 0; y < 101; y++) {
+			for (int x = 0; x < 213; x++) {
+				right.setRGB(x, y, right.getRGB(x, y) | 0x010101);
+			}
+		}
+		int pixel = random.nextInt() | 0x010101;
+		try (OffHeapImage l = OffHeapImage.fromBufferedImage(left);
+				OffHeapImage r = OffHeapImage.fromBufferedImage(right)) {
+			for (OP op : OP.values()) {
+				try (OffHeapImage result = ImageOps.binaryImageImageOp(op, l, r)) {
+					assertSameImage(ImageOps.binaryImageImageOp(op, left, right), result, op + " image");
+				}
+				try (OffHeapImage result = ImageOps.binaryImagePixelOp(op, l, pixel)) {
+					assertSameImage(ImageOps.binaryImagePixelOp(op, left, pixel), result, op + " pixel");
+				}
+				for (int scalar : ChannelTablesTest.SCALARS) {
+					try (OffHeapImage result = ImageOps.binaryImageScalarOp(op, l, scalar)) {
+						assertSameImage(ImageOps.binaryImageScalarOp(op, left, scalar), result, op + " " + scalar);
+					}
+				}
+			}
+			try (OffHeapImage red = ImageOps.extractRed(l);
+					OffHeapImage grn = ImageOps.extractGrn(l);
+					OffHeapImage blu = ImageOps.extractBlu(l);
+					OffHeapImage clone = ImageOps.cloneImage(l)) {
+				assertSameImage(ImageOps.extractRed(left), red, "red");
+				assertSameImage(ImageOps.extractGrn(left), grn, "grn");
+				assertSameImage(ImageOps.extractBlu(left), blu, "blu");
+				assertSameImage(left, clone, "clone");
+			}
+		}
+	}
+
+	@Test
+	void parallelOperationsMatchTheHeapImages() {
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			ImageKernels.setPool(pool);
+			ImageKernels.setParallelThreshold(1);
+			Random random = new Random(9);
+			BufferedImage left = ImageKernelsTest.random(640, 120, BufferedImage.TYPE_INT_RGB, random);
+			BufferedImage right = ImageKernelsTest.random(640, 120, BufferedImage.TYPE_INT_RGB, random);
+			try (OffHeapImage l = OffHeapImage.fromBufferedImage(left);
+					OffHeapImage r = OffHeapImage.fromBufferedImage(right);
+					OffHeapImage sum = ImageOps.binaryImageImageOp(OP.PLUS, l, r)) {
+				assertSameImage(ImageOps.binaryImageImageOp(OP.PLUS, left, right), sum, "parallel");
+			}
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	void equalsComparesEveryPixel() {
+		BufferedImage image = ImageKernelsTest.random(300, 100, BufferedImage.TYPE_INT_RGB, new Random(10));
+		try (OffHeapImage a = OffHeapImage.fromBufferedImage(image);
+				OffHeapImage b = ImageOps.cloneImage(a);
+				OffHeapImage smaller = OffHeapImage.allocate(300, 99)) {
+			assertTrue(ImageOps.equals(a, b));
+			assertFalse(ImageOps.equals(a, smaller));
+			b.setRGB(299, 99, ~b.getRGB(299, 99));
+			assertFalse(ImageOps.equals(a, b));
+			assertThrows(PLCRuntimeException.class, () -> ImageOps.binaryImageImageOp(OP.PLUS, a, smaller));
+		}
+	}
+
+	@Test
+	void mappedImagesKeepTheirPixels() throws Exception {
+		Path file = dir.resolve("pixels");
+		BufferedImage image = ImageKernelsTest.random(30, 20, BufferedImage.TYPE_INT_RGB, new Random(11));
+		try (OffHeapImage mapped = OffHeapImage.map(file, 30, 20)) {
+			assertTrue(mapped.isMapped());
+			assertEquals(4 * 30 * 20, Files.size(file));
+			assertEquals(0xff000000, mapped.getRGB(29, 19));
+			for (int y = 0; y < 20; y++) {
+				for (int x = 0; x < 30; x++) {
+					mapped.setRGB(x, y, image.getRGB(x, y));
+				}
+			}
+		}
+		try (OffHeapImage mapped = OffHeapImage.map(file, 30, 20)) {
+			assertSameImage(image, mapped, "mapped again");
+		}
+	}
+
+	@Test
+	void closedImagesCannotBeUsed() {
+		OffHeapImage image = OffHeapImage.allocate(5, 5);
+		image.close();
+		image.close();
+		assertTrue(image.isClosed());
+		assertThrows(PLCRuntimeException.class, () -> image.getRGB(0, 0));
+		assertThrows(PLCRuntimeException.class, () -> image.toBufferedImage());
+		assertThrows(PLCRuntimeException.class, () -> ImageOps.cloneImage(image));
+	}
+
+	@Test
+	void closingWaitsForRunningOperations() throws Exception {
+		BufferedImage image = ImageKernelsTest.random(300, 100, BufferedImage.TYPE_INT_RGB, new Random(12));
+		OffHeapImage offHeap = OffHeapImage.fromBufferedImage(image);
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch closed = new CountDownLatch(1);
+		int[] copy = new int[300 * 100];
+		CompletableFuture<Void> run = CompletableFuture.runAsync(() -> OffHeapImage.run(300, 100,
+				(start, length, pixels, unused) -> {
+					started.countDown();
+					try {
+						assertTrue(closed.await(10, TimeUnit.SECONDS));
+					}
+					catch (InterruptedException e) {
+						throw new RuntimeException(e);
+					}
+					offHeap.read(start, pixels, 0, length);
+					System.arraycopy(pixels, 0, copy, start, length);
+				}, offHeap), command -> new Thread(command).start());
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+		offHeap.close();
+		assertTrue(offHeap.isClosed());
+		assertThrows(PLCRuntimeException.class, () -> offHeap.getRGB(0, 0));
+		assertThrows(PLCRuntimeException.class, () -> ImageOps.cloneImage(offHeap));
+		closed.countDown();
+		run.get(10, TimeUnit.SECONDS);
+		// the run read every pixel from memory that was still there
+		assertArrayEquals(RawImageTest.rgb(image), copy);
+		assertThrows(PLCRuntimeException.class, () -> offHeap.toBufferedImage());
+	}
+
+	@Test
+	void unsupportedSizesThrow() {
+		assertThrows(PLCRuntimeException.class, () -> OffHeapImage.allocate(0, 5));
+		assertThrows(PLCRuntimeException.class, () -> OffHeapImage.allocate(5, -1));
+		assertThrows(PLCRuntimeException.class, () -> OffHeapImage.allocate(1 << 16, 1 << 16));
+	}
+
+}
@@ -48,6 +48,99 @@ public class PixelOps {
 	}
 	
 	
+	/*
+	 * SIMD within a register: the methods below work on all three color components
+	 * of a packed pixel at once, using masks so that carries and borrows never cross
+	 * from one component into the next. The alpha values of the arguments are
+	 * ignored and it is set to 0xff in the result, as in pack.
+	 * 
+	 * The long versions work on two packed pixels at a time, one in the upper and one
+	 * in the lower 32 bits.
+	 */
+
+	private static final int LOW7 = 0x007f7f7f;
+	private static final int HIGH1 = 0x00808080;
+	private static final long LOW7_2 = 0x007f7f7f_007f7f7fL;
+	private static final long HIGH1_2 = 0x00808080_00808080L;
+	private static final long ALPHA_2 = 0xff000000_ff000000L;
+
+	/**
+	 * Returns pack(red(a) + red(b), grn(a) + grn(b), blu(a) + blu(b))
+	 */
+	public static int addSaturate(int a, int b) {
+		int sum = (a & LOW7) + (b & LOW7);
+		int carry = ((a & b) | ((a | b) & sum)) & HIGH1;
+		return sum | (a & HIGH1) | (b & HIGH1) | ((carry >>> 7) * 0xff) | SELECT_ALPHA;
+	}
+
+	/**
+	 * Returns pack(red(a) - red(b), grn(a) - grn(b), blu(a) - blu(b))
+	 */
+	public static int subSaturate(int a, int b) {
+		int diff = (a | HIGH1) - (b & LOW7);
+		int borrow = ((~a & b) | (~(a ^ b) & ~diff)) & HIGH1;
+		int keep = ~((borrow >>> 7) * 0xff);
+		return (diff ^ ((a ^ ~b) & HIGH1)) & keep & (SELECT_RED | SELECT_GRN | SELECT_BLU) | SELECT_ALPHA;
+	}
+
+	/**
+	 * Returns pack(red(pixel) * k, grn(pixel) * k, blu(pixel) * k)
+	 */
+	public static int mulScalar(int pixel, int k) {
+		if (k < 0 || k > MAX_SWAR_FACTOR) {
+			return pack(red(pixel) * k, grn(pixel) * k, blu(pixel) * k);
+		}
+		// products of components <= 255 with factors >= 256 are either 0 or saturated
+		int f = Math.min(k, 256);
+		int rb = mulLanes(pixel & (SELECT_RED | SELECT_BLU), f);
+		int g = mulLanes((pixel & SELECT_GRN) >>> SHIFT_GRN, f);
+		return rb | (g << SHIFT_GRN) | SELECT_ALPHA;
+	}
+
+	/**
+	 * Returns the product of the 8-bit values in lanes, which are 16 bits apart, and f
+	 * with f in [0,256], clamped to 255 in each lane.
+	 */
+	private static int mulLanes(int lanes, int f) {
+		int product = lanes * f;
+		int high = (product >>> 8) & 0x00ff00ff;
+		int overflow = ((high + 0x00ff00ff) >>> 8) & 0x00010001;
+		return (product | (overflow * 0xff)) & 0x00ff00ff;
+	}
+
+	/**
+	 * Largest factor for which component * factor cannot overflow an int. mulScalar
+	 * with larger factors (or negative ones) unpacks the pixel so that it gives the
+	 * same results as pack for every int factor.
+	 */
+	private static final int MAX_SWAR_FACTOR = Integer.MAX_VALUE / 255;
+
+	/**
+	 * addSaturate applied to both pixels in a and b
+	 */
+	public static long addSaturate(long a, long b) {
+		long sum = (a & LOW7_2) + (b & LOW7_2);
+		long carry = ((a & b) | ((a | b) & sum)) & HIGH1_2;
+		return sum | (a & HIGH1_2) | (b & HIGH1_2) | ((carry >>> 7) * 0xff) | ALPHA_2;
+	}
+
+	/**
+	 * subSaturate applied to both pixels in a and b
+	 */
+	public static long subSaturate(long a, long b) {
+		long diff = (a | HIGH1_2) - (b & LOW7_2);
+		long borrow = ((~a & b) | (~(a ^ b) & ~diff)) & HIGH1_2;
+		long keep = ~((borrow >>> 7) * 0xff);
+		return (diff ^ ((a ^ ~b) & HIGH1_2)) & keep & ~ALPHA_2 | ALPHA_2;
+	}
+
+	/**
+	 * Packs two pixels into a long for use with the long versions of the methods above.
+	 */
+	public static long pair(int high, int low) {
+		return ((long) high << 32) | (low & 0xffffffffL);
+	}
+
 	/**
 	 * truncates an int to value in range of [0,256)
 	 * 
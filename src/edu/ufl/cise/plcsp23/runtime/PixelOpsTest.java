@@ -0,0 +1,59 @@
+package edu.ufl.cise.plcsp23.runtime;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class PixelOpsTest {
+
+	/** Every pair of component values, in all three components, with random alpha */
+	@Test
+	void saturatingArithmeticMatchesPack() {
+		Random random = new Random(4);
+		for (int a = 0; a < 256; a++) {
+			for (int b = 0; b < 256; b++) {
+				int left = random.nextInt() & PixelOps.SELECT_ALPHA | a << 16 | b << 8 | (a ^ b);
+				int right = random.nextInt() & PixelOps.SELECT_ALPHA | b << 16 | a << 8 | (255 - b);
+				assertEquals(PixelOps.pack(a + b, b + a, (a ^ b) + 255 - b), PixelOps.addSaturate(left, right));
+				assertEquals(PixelOps.pack(a - b, b - a, (a ^ b) - 255 + b), PixelOps.subSaturate(left, right));
+			}
+		}
+	}
+
+	@Test
+	void pairsGiveTheResultsOfBothPixels() {
+		Random random = new Random(5);
+		for (int i = 0; i < 100000; i++) {
+			int a0 = random.nextInt();
+			int a1 = random.nextInt();
+			int b0 = random.nextInt();
+			int b1 = random.nextInt();
+			assertEquals(PixelOps.pair(PixelOps.addSaturate(a0, b0), PixelOps.addSaturate(a1, b1)),
+					PixelOps.addSaturate(PixelOps.pair(a0, a1), PixelOps.pair(b0, b1)));
+			assertEquals(PixelOps.pair(PixelOps.subSaturate(a0, b0), PixelOps.subSaturate(a1, b1)),
+					PixelOps.subSaturate(PixelOps.pair(a0, a1), PixelOps.pair(b0, b1)));
+		}
+	}
+
+	@Test
+	void mulScalarMatchesPack() {
+		Random random = new Random(6);
+		int[] factors = { Integer.MIN_VALUE, -1, 0, 1, 2, 3, 127, 128, 255, 256, 257, 65535, 8421504,
+				Integer.MAX_VALUE / 255, Integer.MAX_VALUE / 255 + 1, Integer.MAX_VALUE };
+		for (int c = 0; c < 256; c++) {
+			int pixel = random.nextInt() & PixelOps.SELECT_ALPHA | c << 16 | (255 - c) << 8 | (c * 7 & 0xff);
+			for (int k : factors) {
+				assertEquals(PixelOps.pack(c * k, (255 - c) * k, (c * 7 & 0xff) * k), PixelOps.mulScalar(pixel, k),
+						c + " * " + k);
+			}
+			for (int i = 0; i < 100; i++) {
+				int k = random.nextInt(i < 50 ? 300 : Integer.MAX_VALUE);
+				assertEquals(PixelOps.pack(c * k, (255 - c) * k, (c * 7 & 0xff) * k), PixelOps.mulScalar(pixel, k),
+						c + " * " + k);
+			}
+		}
+	}
+
+}
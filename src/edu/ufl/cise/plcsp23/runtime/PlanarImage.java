@@ -0,0 +1,260 @@
+package edu.ufl.cise.plcsp23.runtime;
+
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.util.Arrays;
+
+import edu.ufl.cise.plcsp23.runtime.ImageOps.OP;
+
+/**
+ * An image that stores each color component in its own plane, a byte[] of
+ * width*height values in row-major order, instead of packing the three components
+ * of a pixel into an int. This is the layout to use for work on single channels: a
+ * plane is a quarter of the size of a TYPE_INT_RGB image, and the kernels on planes
+ * handle one component per byte without shifting and masking.
+ *
+ * A PlanarImage is a BufferedImage of TYPE_CUSTOM with a banded raster, so it can be
+ * used, drawn and written wherever an image is expected. The operations in ImageOps
+ * work on the planes directly when all their image arguments are planar, and their
+ * results are planar too. The channel selectors keep the selected plane and clear
+ * the other two.
+ *
+ * Use split to convert an image, which reads each pixel once, and toBufferedImage to
+ * convert back.
+ */
+public class PlanarImage extends BufferedImage {
+
+	public static final int RED = 0;
+	public static final int GRN = 1;
+	public static final int BLU = 2;
+
+	private static final ComponentColorModel COLOR_MODEL = new ComponentColorModel(
+			ColorSpace.getInstance(ColorSpace.CS_sRGB), false, false, Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
+
+	private static final int[] SHIFTS = { PixelOps.SHIFT_RED, PixelOps.SHIFT_GRN, PixelOps.SHIFT_BLU };
+
+	/** A kernel applied to the values [from, to) of a plane of each image */
+	interface PlaneKernel {
+		void apply(int channel, byte[] left, byte[] right, byte[] dst, int from, int to);
+	}
+
+	private final byte[][] planes;
+
+	/**
+	 * Creates a black image of the given size.
+	 */
+	public PlanarImage(int width, int height) {
+		this(width, height, new byte[3][width * height]);
+	}
+
+	private PlanarImage(int width, int height, byte[][] planes) {
+		super(COLOR_MODEL, Raster.createBandedRaster(new DataBufferByte(planes, width * height), width, height, width,
+				new int[] { RED, GRN, BLU }, new int[3], null), false, null);
+		this.planes = planes;
+	}
+
+	/**
+	 * Returns the plane holding the given channel, RED, GRN or BLU. Writes to the
+	 * plane change the image.
+	 */
+	public byte[] getPlane(int channel) {
+		return planes[channel];
+	}
+
+	/**
+	 * Returns a new planar image with the same pixels as the given image. Each pixel
+	 * is read once and its three components are stored into the three planes.
+	 */
+	public static PlanarImage split(BufferedImage image) {
+		if (image instanceof PlanarImage planar) {
+			return copy(planar);
+		}
+		int width = image.getWidth();
+		int height = image.getHeight();
+		PlanarImage result = new PlanarImage(width, height);
+		byte[] red = result.planes[RED];
+		byte[] grn = result.planes[GRN];
+		byte[] blu = result.planes[BLU];
+		int[] data = ImageKernels.data(image);
+		ImageKernels.run(width, height, (from, to) -> {
+			int[] src = data;
+			int offset = from;
+			if (src == null) { // only this strip is copied out of the image
+				src = image.getRGB(0, from / width, width, (to - from) / width, null, 0, width);
+				offset = 0;
+			}
+			for (int i = from; i < to; i++) {
+				int p = src[i - from + offset];
+				red[i] = (byte) (p >>> PixelOps.SHIFT_RED);
+				grn[i] = (byte) (p >>> PixelOps.SHIFT_GRN);
+				blu[i] = (byte) p;
+			}
+		});
+		return result;
+	}
+
+	static PlanarImage copy(PlanarImage image) {
+		byte[][] planes = new byte[3][];
+		for (int c = RED; c <= BLU; c++) {
+			planes[c] = image.planes[c].clone();
+		}
+		return new PlanarImage(image.getWidth(), image.getHeight(), planes);
+	}
+
+	/**
+	 * Returns a new TYPE_INT_RGB image with the same pixels as this one.
+	 */
+	public BufferedImage toBufferedImage() {
+		BufferedImage image = ImagePool.acquire(getWidth(), getHeight());
+		int[] dst = ImageKernels.data(image);
+		byte[] red = planes[RED];
+		byte[] grn = planes[GRN];
+		byte[] blu = planes[BLU];
+		ImageKernels.run(getWidth(), getHeight(), (from, to) -> {
+			for (int i = from; i < to; i++) {
+				dst[i] = (red[i] & 0xff) << PixelOps.SHIFT_RED | (grn[i] & 0xff) << PixelOps.SHIFT_GRN | (blu[i] & 0xff);
+			}
+		});
+		return image;
+	}
+
+	/**
+	 * Applies kernel to each plane of result and the same planes of left and right
+	 * (which may be null), in parallel strips if the image is large enough.
+	 */
+	static void apply(PlanarImage left, PlanarImage right, PlanarImage result, PlaneKernel kernel) {
+		int width = result.getWidth();
+		ImageKernels.run(width, result.getHeight(), (from, to) -> {
+			for (int c = RED; c <= BLU; c++) {
+				kernel.apply(c, left == null ? null : left.planes[c], right == null ? null : right.planes[c],
+						result.planes[c], from, to);
+			}
+		});
+	}
+
+	/**
+	 * True if the planes of the images hold the same values. Like ImageOps.equals,
+	 * this only requires the images to have the same number of pixels.
+	 */
+	static boolean equal(PlanarImage image0, PlanarImage image1) {
+		return ImageKernels.all(image0.getWidth(), image0.getHeight(), (from, to) -> {
+			for (int c = RED; c <= BLU; c++) {
+				if (!Arrays.equals(image0.planes[c], from, to, image1.planes[c], from, to)) {
+					return false;
+				}
+			}
+			return true;
+		});
+	}
+
+	/**
+	 * dst[i] = left[i] op right[i] for i in [from, to), with the result truncated to
+	 * [0, 255] like PixelOps.pack does.
+	 */
+	static void imageImage(OP op, byte[] left, byte[] right, byte[] dst, int from, int to) {
+		switch (op) {
+		case PLUS -> {
+			for (int i = from; i < to; i++) {
+				dst[i] = (byte) Math.min(255, (left[i] & 0xff) + (right[i] & 0xff));
+			}
+		}
+		case MINUS -> {
+			for (int i = from; i < to; i++) {
+				dst[i] = (byte) Math.max(0, (left[i] & 0xff) - (right[i] & 0xff));
+			}
+		}
+		case TIMES -> {
+			for (int i = from; i < to; i++) {
+				dst[i] = (byte) Math.min(255, (left[i] & 0xff) * (right[i] & 0xff));
+			}
+		}
+		case DIV -> {
+			for (int i = from; i < to; i++) {
+				dst[i] = (byte) ((left[i] & 0xff) / (right[i] & 0xff));
+			}
+		}
+		case MOD -> {
+			for (int i = from; i < to; i++) {
+				dst[i] = (byte) ((left[i] & 0xff) % (right[i] & 0xff));
+			}
+		}
+		}
+	}
+
+	/**
+	 * dst[i] = the result for src[i] in a ChannelTables table, for i in [from, to)
+	 */
+	static void lookup(int[] table, byte[] src, byte[] dst, int from, int to) {
+		for (int i = from; i < to; i++) {
+			dst[i] = (byte) table[512 + (src[i] & 0xff)]; // the blue entries are not shifted
+		}
+	}
+
+	/** The component of pixel that is stored in the given channel */
+	static int component(int pixel, int channel) {
+		return (pixel >>> SHIFTS[channel]) & 0xff;
+	}
+
+	private void checkBounds(int x, int y) {
+		if (x < 0 || x >= getWidth() || y < 0 || y >= getHeight()) {
+			throw new ArrayIndexOutOfBoundsException("Coordinate out of bounds!");
+		}
+	}
+
+	@Override
+	public int getRGB(int x, int y) {
+		checkBounds(x, y);
+		int i = y * getWidth() + x;
+		return PixelOps.SELECT_ALPHA | (planes[RED][i] & 0xff) << PixelOps.SHIFT_RED
+				| (planes[GRN][i] & 0xff) << PixelOps.SHIFT_GRN | (planes[BLU][i] & 0xff);
+	}
+
+	@Override
+	public void setRGB(int x, int y, int rgb) {
+		checkBounds(x, y);
+		int i = y * getWidth() + x;
+		planes[RED][i] = (byte) (rgb >>> PixelOps.SHIFT_RED);
+		planes[GRN][i] = (byte) (rgb >>> PixelOps.SHIFT_GRN);
+		planes[BLU][i] = (byte) rgb;
+	}
+
+	@Override
+	public int[] getRGB(int startX, int startY, int w, int h, int[] rgbArray, int offset, int scansize) {
+		checkBounds(startX, startY);
+		checkBounds(startX + w - 1, startY + h - 1);
+		if (rgbArray == null) {
+			rgbArray = new int[offset + h * scansize];
+		}
+		for (int y = 0; y < h; y++) {
+			int i = (startY + y) * getWidth() + startX;
+			int o = offset + y * scansize;
+			for (int x = 0; x < w; x++) {
+				rgbArray[o + x] = PixelOps.SELECT_ALPHA | (planes[RED][i + x] & 0xff) << PixelOps.SHIFT_RED
+						| (planes[GRN][i + x] & 0xff) << PixelOps.SHIFT_GRN | (planes[BLU][i + x] & 0xff);
+			}
+		}
+		return rgbArray;
+	}
+
+	@Override
+	public void setRGB(int startX, int startY, int w, int h, int[] rgbArray, int offset, int scansize) {
+		checkBounds(startX, startY);
+		checkBounds(startX + w - 1, startY + h - 1);
+		for (int y = 0; y < h; y++) {
+			int i = (startY + y) * getWidth() + startX;
+			int o = offset + y * scansize;
+			for (int x = 0; x < w; x++) {
+				int rgb = rgbArray[o + x];
+				planes[RED][i + x] = (byte) (rgb >>> PixelOps.SHIFT_RED);
+				planes[GRN][i + x] = (byte) (rgb >>> PixelOps.SHIFT_GRN);
+				planes[BLU][i + x] = (byte) rgb;
+			}
+		}
+	}
+
+}
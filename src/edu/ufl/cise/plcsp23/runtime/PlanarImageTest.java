@@ -0,0 +1,163 @@
+package edu.ufl.cise.plcsp23.runtime;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import edu.ufl.cise.plcsp23.runtime.ImageOps.OP;
+
+class PlanarImageTest {
+
+	@TempDir
+	Path dir;
+
+	@AfterEach
+	void reset() {
+		ImageKernels.setParallelThreshold(1 << 18);
+		ImageKernels.setPool(ForkJoinPool.commonPool());
+	}
+
+	static void assertSameImage(BufferedImage expected, BufferedImage actual, String message) {
+		assertTrue(actual instanceof PlanarImage, message);
+		assertEquals(expected.getWidth(), actual.getWidth(), message);
+		assertEquals(expected.getHeight(), actual.getHeight(), message);
+		assertArrayEquals(RawImageTest.rgb(expected), RawImageTest.rgb(actual), message);
+	}
+
+	@Test
+	void splitKeepsEveryComponent() {
+		Random random = new Random(18);
+		for (int type : ImageKernelsTest.TYPES) {
+			BufferedImage image = ImageKernelsTest.random(41, 19, type, random);
+			PlanarImage planar = PlanarImage.split(image);
+			assertSameImage(image, planar, "split " + type);
+			assertEquals(image.getRGB(40, 18) & 0xff, planar.getPlane(PlanarImage.BLU)[18 * 41 + 40] & 0xff);
+			assertEquals((image.getRGB(0, 1) >> 16) & 0xff, planar.getPlane(PlanarImage.RED)[41] & 0xff);
+			BufferedImage back = planar.toBufferedImage();
+			assertEquals(BufferedImage.TYPE_INT_RGB, back.getType());
+			assertArrayEquals(RawImageTest.rgb(image), RawImageTest.rgb(back), "back " + type);
+		}
+		BufferedImage subimage = ImageKernelsTest.random(50, 40, BufferedImage.TYPE_INT_RGB, random).getSubimage(3, 4,
+				20, 10);
+		assertSameImage(subimage, PlanarImage.split(subimage), "subimage");
+		PlanarImage planar = PlanarImage.split(subimage);
+		PlanarImage copy = PlanarImage.split(planar);
+		assertNotSame(planar.getPlane(PlanarImage.GRN), copy.getPlane(PlanarImage.GRN));
+		assertSameImage(subimage, copy, "copy");
+	}
+
+	@Test
+	void parallelSplitKeepsEveryComponent() {
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			ImageKernels.setPool(pool);
+			ImageKernels.setParallelThreshold(1);
+			Random random = new Random(19);
+			for (int type : ImageKernelsTest.TYPES) {
+				BufferedImage image = ImageKernelsTest.random(301, 67, type, random);
+				PlanarImage planar = PlanarImage.split(image);
+				assertSameImage(image, planar, "split " + type);
+				assertArrayEquals(RawImageTest.rgb(image), RawImageTest.rgb(planar.toBufferedImage()), "back " + type);
+			}
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	void operationsMatchThePackedImages() {
+		Random random = new Random(20);
+		BufferedImage left = ImageKernelsTest.random(37, 29, BufferedImage.TYPE_INT_RGB, random);
+		BufferedImage right = ImageKernelsTest.random(37, 29, BufferedImage.TYPE_INT_RGB, random);
+		for (int y = 0; y < 29; y++) {
+			for (int x = 0; x < 37; x++) {
+				right.setRGB(x, y, right.getRGB(x, y) | 0x010101);
+			}
+		}
+		int pixel = random.nextInt() | 0x010101;
+		PlanarImage l = PlanarImage.split(left);
+		PlanarImage r = PlanarImage.split(right);
+		for (OP op : OP.values()) {
+			assertSameImage(ImageOps.binaryImageImageOp(op, left, right), ImageOps.binaryImageImageOp(op, l, r),
+					op + " image");
+			assertSameImage(ImageOps.binaryImagePixelOp(op, left, pixel), ImageOps.binaryImagePixelOp(op, l, pixel),
+					op + " pixel");
+			for (int scalar : ChannelTablesTest.SCALARS) {
+				assertSameImage(ImageOps.binaryImageScalarOp(op, left, scalar),
+						ImageOps.binaryImageScalarOp(op, l, scalar), op + " " + scalar);
+			}
+			// with a packed operand the packed operation is used
+			ImageKernelsTest.assertPixels(ImageOps.getRGBPixels(ImageOps.binaryImageImageOp(op, left, right)),
+					ImageOps.binaryImageImageOp(op, l, right), op + " mixed");
+		}
+		assertSameImage(ImageOps.extractRed(left), ImageOps.extractRed(l), "red");
+		assertSameImage(ImageOps.extractGrn(left), ImageOps.extractGrn(l), "grn");
+		assertSameImage(ImageOps.extractBlu(left), ImageOps.extractBlu(l), "blu");
+		assertSameImage(left, ImageOps.cloneImage(l), "clone");
+		assertSameImage(ImageOps.setAllPixels(ImageOps.cloneImage(left), 0x123456),
+				ImageOps.setAllPixels(ImageOps.cloneImage(l), 0x123456), "set");
+		assertSameImage(ResizeTest.reference(left, 20, 50), ImageOps.copyAndResize(l, 20, 50), "resize");
+		assertThrows(ArithmeticException.class, () -> ImageOps.binaryImageImageOp(OP.DIV, r, l));
+	}
+
+	@Test
+	void temporariesHoldTheResult() {
+		Random random = new Random(21);
+		BufferedImage left = ImageKernelsTest.random(23, 17, BufferedImage.TYPE_INT_RGB, random);
+		BufferedImage right = ImageKernelsTest.random(23, 17, BufferedImage.TYPE_INT_RGB, random);
+		PlanarImage l = PlanarImage.split(left);
+		PlanarImage r = PlanarImage.split(right);
+		BufferedImage result = ImageOps.binaryImageImageOp(OP.MINUS, l, r, ImageOps.TEMP_RIGHT);
+		assertSame(r, result);
+		assertSameImage(ImageOps.binaryImageImageOp(OP.MINUS, left, right), result, "right");
+		result = ImageOps.extractGrn(l, ImageOps.TEMP_LEFT);
+		assertSame(l, result);
+		assertSameImage(ImageOps.extractGrn(left), result, "grn");
+	}
+
+	@Test
+	void equalsComparesThePlanes() {
+		BufferedImage image = ImageKernelsTest.random(31, 11, BufferedImage.TYPE_INT_RGB, new Random(22));
+		PlanarImage planar = PlanarImage.split(image);
+		assertTrue(ImageOps.equals(planar, PlanarImage.split(image)));
+		assertTrue(ImageOps.equals(planar, image));
+		for (int c = PlanarImage.RED; c <= PlanarImage.BLU; c++) {
+			PlanarImage changed = PlanarImage.split(image);
+			changed.getPlane(c)[5 * 31 + 7]++;
+			assertFalse(ImageOps.equals(planar, changed), "channel " + c);
+			assertFalse(ImageOps.equals(image, changed), "channel " + c);
+		}
+	}
+
+	@Test
+	void planarImagesAreWrittenLikeOthers() throws Exception {
+		BufferedImage image = ImageKernelsTest.random(45, 35, BufferedImage.TYPE_INT_RGB, new Random(23));
+		PlanarImage planar = PlanarImage.split(image);
+		File file = dir.resolve("planar.png").toFile();
+		assertTrue(ImageIO.write(planar, "png", file));
+		assertArrayEquals(RawImageTest.rgb(image), RawImageTest.rgb(ImageIO.read(file)));
+
+		planar.setRGB(44, 34, 0x123456);
+		assertEquals(0xff123456, planar.getRGB(44, 34));
+		assertThrows(ArrayIndexOutOfBoundsException.class, () -> planar.getRGB(45, 0));
+		assertThrows(ArrayIndexOutOfBoundsException.class, () -> planar.setRGB(0, 35, 0));
+	}
+
+}
@@ -0,0 +1,270 @@
+package edu.ufl.cise.plcsp23.runtime;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Encodes images as 8 bit RGB PNG files, compressing strips of rows in parallel.
+ *
+ * The strips of ImageKernels.run are filtered and deflated independently, each with
+ * the last 32 KB of filtered rows before it as the preset dictionary, so that
+ * matches across strip boundaries are still found. Every strip but the last ends
+ * with a sync flush, which ends its output on a byte boundary, so the outputs join
+ * into one zlib stream that any PNG reader decodes. The Adler-32 checksums of the
+ * strips are combined into the checksum of the stream.
+ *
+ * Rows are filtered with the filter that gives the smallest sum of absolute
+ * differences, like libpng does, except at level 0, where they are stored
+ * unfiltered.
+ */
+final class PngEncoder {
+
+	private static final byte[] SIGNATURE = { (byte) 137, 80, 78, 71, 13, 10, 26, 10 };
+
+	/** The size of the deflate window, and of the dictionary of a strip */
+	private static final int WINDOW = 1 << 15;
+
+	/** Largest number of bytes of an IDAT chunk */
+	private static final int MAX_CHUNK = 1 << 20;
+
+	private static final int ADLER_BASE = 65521;
+
+	/** The compressed rows of a strip, and the Adler-32 checksum and length of the filtered rows */
+	private record Strip(byte[] bytes, long adler, long length) {
+	}
+
+	private PngEncoder() {
+	}
+
+	/** Writes image to out as a PNG image, deflated at the given level (0 to 9) */
+	static void write(BufferedImage image, OutputStream out, int level) throws IOException {
+		int w = image.getWidth();
+		int h = image.getHeight();
+		int[] data = ImageKernels.data(image);
+		Map<Integer, Strip> strips = new ConcurrentSkipListMap<>();
+		ImageKernels.run(w, h, (from, to) -> {
+			strips.put(from / w, compress(image, data, from / w, to / w, level));
+		});
+
+		DataOutputStream png = new DataOutputStream(out);
+		png.write(SIGNATURE);
+		ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+		DataOutputStream ihdr = new DataOutputStream(header);
+		ihdr.writeInt(w);
+		ihdr.writeInt(h);
+		ihdr.write(new byte[] { 8, 2, 0, 0, 0 }); // 8 bit RGB, deflate, adaptive filtering, not interlaced
+		chunk(png, "IHDR", header.toByteArray(), 0, header.size());
+
+		// the zlib header; its level bits are only informative
+		int flags = level <= 1 ? 0x01 : level <= 5 ? 0x5e : level == 6 ? 0x9c : 0xda;
+		chunk(png, "IDAT", new byte[] { 0x78, (byte) flags }, 0, 2);
+		long adler = 1;
+		for (Strip strip : strips.values()) {
+			for (int off = 0; off < strip.bytes.length; off += MAX_CHUNK) {
+				chunk(png, "IDAT", strip.bytes, off, Math.min(MAX_CHUNK, strip.bytes.length - off));
+			}
+			adler = combine(adler, strip.adler, strip.length);
+		}
+		byte[] checksum = { (byte) (adler >>> 24), (byte) (adler >>> 16), (byte) (adler >>> 8), (byte) adler };
+		chunk(png, "IDAT", checksum, 0, 4);
+		chunk(png, "IEND", new byte[0], 0, 0);
+		png.flush();
+	}
+
+	/** Filters and deflates the rows [y0, y1) of image */
+	private static Strip compress(BufferedImage image, int[] data, int y0, int y1, int level) {
+		int w = image.getWidth();
+		int rowBytes = 1 + 3 * w;
+		Rows rows = new Rows(image, data, level > 0);
+		Deflater deflater = new Deflater(level, true);
+		try {
+			if (y0 > 0) { // the filtered rows before the strip, which its matches may refer to
+				int dictionaryRows = Math.min(y0, (WINDOW + rowBytes - 1) / rowBytes);
+				byte[] dictionary = new byte[dictionaryRows * rowBytes];
+				for (int y = y0 - dictionaryRows; y < y0; y++) {
+					System.arraycopy(rows.filter(y), 0, dictionary, (y - y0 + dictionaryRows) * rowBytes, rowBytes);
+				}
+				int length = Math.min(WINDOW, dictionary.length);
+				deflater.setDictionary(dictionary, dictionary.length - length, length);
+			}
+			Adler32 adler = new Adler32();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, (y1 - y0) * rowBytes / 4));
+			byte[] buffer = new byte[1 << 16];
+			for (int y = y0; y < y1; y++) {
+				byte[] row = rows.filter(y);
+				adler.update(row, 0, rowBytes);
+				deflater.setInput(row, 0, rowBytes);
+				while (!deflater.needsInput()) {
+					out.write(buffer, 0, deflater.deflate(buffer, 0, buffer.length, Deflater.NO_FLUSH));
+				}
+			}
+			if (y1 == image.getHeight()) {
+				deflater.finish();
+				while (!deflater.finished()) {
+					out.write(buffer, 0, deflater.deflate(buffer));
+				}
+			}
+			else {
+				int n;
+				do {
+					n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+					out.write(buffer, 0, n);
+				} while (n == buffer.length);
+			}
+			return new Strip(out.toByteArray(), adler.getValue(), (long) (y1 - y0) * rowBytes);
+		}
+		finally {
+			deflater.end();
+		}
+	}
+
+	/** Filters the rows of an image, each with the filter type byte in front */
+	private static final class Rows {
+
+		private final BufferedImage image;
+		private final int[] data;
+		private final boolean adaptive;
+		private final int[] pixels;
+		private byte[] previous;
+		private byte[] current;
+		private int currentRow = -2;
+		private final byte[][] filtered = new byte[5][];
+
+		Rows(BufferedImage image, int[] data, boolean adaptive) {
+			this.image = image;
+			this.data = data;
+			this.adaptive = adaptive;
+			int w = image.getWidth();
+			this.pixels = new int[w];
+			this.previous = new byte[3 * w];
+			this.current = new byte[3 * w];
+			for (int f = 0; f < filtered.length; f++) {
+				filtered[f] = new byte[1 + 3 * w];
+				filtered[f][0] = (byte) f;
+			}
+		}
+
+		/** Returns row y filtered. The array is reused by the next call. */
+		byte[] filter(int y) {
+			if (y != currentRow + 1) { // not the row after the last one, read the row before it first
+				unpack(y - 1, previous);
+			}
+			else {
+				byte[] swap = previous;
+				previous = current;
+				current = swap;
+			}
+			unpack(y, current);
+			currentRow = y;
+			if (!adaptive) {
+				System.arraycopy(current, 0, filtered[0], 1, current.length);
+				return filtered[0];
+			}
+			byte[] raw = current;
+			byte[] up = previous;
+			long[] sums = new long[5];
+			for (int i = 0; i < raw.length; i++) {
+				int x = raw[i] & 0xff;
+				int a = i >= 3 ? raw[i - 3] & 0xff : 0;
+				int b = up[i] & 0xff;
+				int c = i >= 3 ? up[i - 3] & 0xff : 0;
+				byte none = (byte) x;
+				byte sub = (byte) (x - a);
+				byte upper = (byte) (x - b);
+				byte average = (byte) (x - ((a + b) >>> 1));
+				byte paeth = (byte) (x - paeth(a, b, c));
+				filtered[0][i + 1] = none;
+				filtered[1][i + 1] = sub;
+				filtered[2][i + 1] = upper;
+				filtered[3][i + 1] = average;
+				filtered[4][i + 1] = paeth;
+				sums[0] += Math.abs(none);
+				sums[1] += Math.abs(sub);
+				sums[2] += Math.abs(upper);
+				sums[3] += Math.abs(average);
+				sums[4] += Math.abs(paeth);
+			}
+			int best = 0;
+			for (int f = 1; f < sums.length; f++) {
+				if (sums[f] < sums[best]) {
+					best = f;
+				}
+			}
+			return filtered[best];
+		}
+
+		/** Stores the RGB bytes of row y in bytes, or zeros for the row before the first */
+		private void unpack(int y, byte[] bytes) {
+			int w = image.getWidth();
+			if (y < 0) {
+				Arrays.fill(bytes, (byte) 0);
+				return;
+			}
+			if (data != null) {
+				System.arraycopy(data, y * w, pixels, 0, w);
+			}
+			else {
+				image.getRGB(0, y, w, 1, pixels, 0, w);
+			}
+			for (int x = 0, i = 0; x < w; x++, i += 3) {
+				int p = pixels[x];
+				bytes[i] = (byte) (p >> 16);
+				bytes[i + 1] = (byte) (p >> 8);
+				bytes[i + 2] = (byte) p;
+			}
+		}
+	}
+
+	private static int paeth(int a, int b, int c) {
+		int p = a + b - c;
+		int pa = Math.abs(p - a);
+		int pb = Math.abs(p - b);
+		int pc = Math.abs(p - c);
+		return pa <= pb && pa <= pc ? a : pb <= pc ? b : c;
+	}
+
+	/** The Adler-32 checksum of two byte sequences from their checksums, as in zlib */
+	private static long combine(long adler1, long adler2, long length2) {
+		long remainder = length2 % ADLER_BASE;
+		long sum1 = adler1 & 0xffff;
+		long sum2 = remainder * sum1 % ADLER_BASE;
+		sum1 += (adler2 & 0xffff) + ADLER_BASE - 1;
+		sum2 += (adler1 >>> 16) + (adler2 >>> 16) + ADLER_BASE - remainder;
+		if (sum1 >= ADLER_BASE) {
+			sum1 -= ADLER_BASE;
+		}
+		if (sum1 >= ADLER_BASE) {
+			sum1 -= ADLER_BASE;
+		}
+		if (sum2 >= 2L * ADLER_BASE) {
+			sum2 -= 2L * ADLER_BASE;
+		}
+		if (sum2 >= ADLER_BASE) {
+			sum2 -= ADLER_BASE;
+		}
+		return sum1 | sum2 << 16;
+	}
+
+	private static void chunk(DataOutputStream out, String type, byte[] bytes, int off, int length)
+			throws IOException {
+		byte[] name = type.getBytes(StandardCharsets.US_ASCII);
+		CRC32 crc = new CRC32();
+		crc.update(name);
+		crc.update(bytes, off, length);
+		out.writeInt(length);
+		out.write(name);
+		out.write(bytes, off, length);
+		out.writeInt((int) crc.getValue());
+	}
+
+}
@@ -0,0 +1,313 @@
+package edu.ufl.cise.plcsp23.runtime;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import javax.imageio.IIOException;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Reads and writes the binary PPM (P6, color) and PGM (P5, gray) formats, which
+ * ImageIO has no readers or writers for. Files with the extensions .ppm, .pgm and
+ * .pnm are read and written by FileURLIO with these methods, and images from other
+ * sources are recognized by their first bytes.
+ *
+ * Images are read through a buffer of bytes that is converted to TYPE_INT_RGB pixels
+ * in bulk, straight into the data array of the image, so they are never held as
+ * bytes in full. Samples with a maximum value other than 255, including 16 bit
+ * samples, are scaled to 8 bits. Images are written with a maximum value of 255;
+ * PGM files get the luma of each pixel.
+ */
+final class PnmImage {
+
+	/** Number of bytes read or written at a time */
+	private static final int BUFFER = 1 << 16;
+
+	private PnmImage() {
+	}
+
+	/** True if filename has the extension of a PPM or PGM file */
+	static boolean isPnm(String filename) {
+		return hasExtension(filename, ".ppm") || hasExtension(filename, ".pgm") || hasExtension(filename, ".pnm");
+	}
+
+	private static boolean hasExtension(String filename, String extension) {
+		return filename.regionMatches(true, filename.length() - extension.length(), extension, 0,
+				extension.length());
+	}
+
+	/** True if stream starts like a binary PPM or PGM image. Does not move the stream. */
+	static boolean isPnm(ImageInputStream stream) throws IOException {
+		stream.mark();
+		try {
+			int magic = stream.read() == 'P' ? stream.read() : -1;
+			return (magic == '5' || magic == '6') && Character.isWhitespace(stream.read());
+		}
+		finally {
+			stream.reset();
+		}
+	}
+
+	/** Reads the PPM or PGM image in file */
+	static BufferedImage read(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			return read(channel);
+		}
+	}
+
+	/** Reads a PPM or PGM image from stream, which is left open */
+	static BufferedImage read(ImageInputStream stream) throws IOException {
+		return read(new ReadableByteChannel() {
+			@Override
+			public int read(ByteBuffer dst) throws IOException {
+				int n = stream.read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+				if (n > 0) {
+					dst.position(dst.position() + n);
+				}
+				return n;
+			}
+
+			@Override
+			public boolean isOpen() {
+				return true;
+			}
+
+			@Override
+			public void close() {
+			}
+		});
+	}
+
+	/**
+	 * Reads a PPM or PGM image from channel. Images too large for the heap (see
+	 * TiledImage.isLarge) are read into a TiledImage.
+	 */
+	static BufferedImage read(ReadableByteChannel channel) throws IOException {
+		Input in = new Input(channel);
+		if (in.next() != 'P') {
+			throw new IIOException("Not a PPM or PGM image!");
+		}
+		int magic = in.next();
+		if (magic != '5' && magic != '6') {
+			throw new IIOException("Only binary PPM (P6) and PGM (P5) images are supported!");
+		}
+		int width = in.number();
+		int height = in.number();
+		int maxValue = in.number();
+		if (width <= 0 || height <= 0 || maxValue <= 0 || maxValue > 65535) {
+			throw new IIOException("Invalid PPM or PGM header!");
+		}
+		// a single whitespace character separates the header from the samples, and was read by number
+		int channels = magic == '6' ? 3 : 1;
+		int sampleBytes = maxValue < 256 ? 1 : 2;
+		int pixelBytes = channels * sampleBytes;
+		int[] scale = maxValue == 255 ? null : scale(maxValue, sampleBytes);
+
+		BufferedImage image = TiledImage.isLarge(width, height) ? new TiledImage(width, height)
+				: new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		int[] data = ImageKernels.data(image);
+		int[] row = data == null ? new int[width] : null;
+		ByteBuffer buffer = in.buffer;
+		for (int y = 0; y < height; y++) {
+			int[] dst = data != null ? data : row;
+			int offset = data != null ? y * width : 0;
+			for (int x = 0; x < width;) {
+				if (buffer.remaining() < pixelBytes && !in.fill(pixelBytes)) {
+					throw new IIOException("Truncated PPM or PGM image!");
+				}
+				int n = Math.min(width - x, buffer.remaining() / pixelBytes);
+				convert(buffer.array(), buffer.arrayOffset() + buffer.position(), dst, offset + x, n, channels,
+						sampleBytes, scale);
+				buffer.position(buffer.position() + n * pixelBytes);
+				x += n;
+			}
+			if (data == null) {
+				image.setRGB(0, y, width, 1, row, 0, width);
+			}
+		}
+		return image;
+	}
+
+	/**
+	 * Converts n pixels of samples starting at src[from] into packed pixels starting at
+	 * dst[to]. Samples are 1 or 2 bytes; scale maps them to 8 bits, and is null if the
+	 * maximum value is 255.
+	 */
+	private static void convert(byte[] src, int from, int[] dst, int to, int n, int channels, int sampleBytes,
+			int[] scale) {
+		if (sampleBytes == 2) {
+			for (int i = 0; i < n; i++) {
+				int pixel = 0;
+				for (int c = 0; c < channels; c++) {
+					int p = from + 2 * (i * channels + c);
+					pixel = pixel << 8 | scale[(src[p] & 0xff) << 8 | src[p + 1] & 0xff];
+				}
+				dst[to + i] = channels == 3 ? pixel : pixel * 0x010101;
+			}
+		}
+		else if (channels == 3 && scale == null) {
+			for (int i = 0, p = from; i < n; i++, p += 3) {
+				dst[to + i] = (src[p] & 0xff) << 16 | (src[p + 1] & 0xff) << 8 | src[p + 2] & 0xff;
+			}
+		}
+		else if (channels == 3) {
+			for (int i = 0, p = from; i < n; i++, p += 3) {
+				dst[to + i] = scale[src[p] & 0xff] << 16 | scale[src[p + 1] & 0xff] << 8
+						| scale[src[p + 2] & 0xff];
+			}
+		}
+		else if (scale == null) {
+			for (int i = 0; i < n; i++) {
+				dst[to + i] = (src[from + i] & 0xff) * 0x010101;
+			}
+		}
+		else {
+			for (int i = 0; i < n; i++) {
+				dst[to + i] = scale[src[from + i] & 0xff] * 0x010101;
+			}
+		}
+	}
+
+	/**
+	 * Maps all samples of the given number of bytes to 0..255, rounding to the nearest
+	 * value. Samples above maxValue, which a valid image does not have, map to 255.
+	 */
+	private static int[] scale(int maxValue, int sampleBytes) {
+		int[] scale = new int[1 << 8 * sampleBytes];
+		for (int v = 0; v < scale.length; v++) {
+			scale[v] = (int) ((Math.min(v, maxValue) * 255L + maxValue / 2) / maxValue);
+		}
+		return scale;
+	}
+
+	/** Reads the header and samples of an image through a buffer */
+	private static final class Input {
+
+		final ReadableByteChannel channel;
+		final ByteBuffer buffer = ByteBuffer.allocate(BUFFER).flip();
+
+		Input(ReadableByteChannel channel) {
+			this.channel = channel;
+		}
+
+		/**
+		 * Reads more bytes into the buffer until it has at least the given number.
+		 * Returns false if the channel ends first.
+		 */
+		boolean fill(int bytes) throws IOException {
+			buffer.compact();
+			try {
+				while (buffer.position() < bytes) {
+					if (channel.read(buffer) < 0) {
+						return false;
+					}
+				}
+				return true;
+			}
+			finally {
+				buffer.flip();
+			}
+		}
+
+		/** The next byte of the header, or -1 at the end of the channel */
+		int next() throws IOException {
+			return buffer.hasRemaining() || fill(1) ? buffer.get() & 0xff : -1;
+		}
+
+		/**
+		 * Reads a decimal number of the header, skipping whitespace and comments before
+		 * it, and the whitespace character after it.
+		 */
+		int number() throws IOException {
+			int c = next();
+			while (c == '#' || Character.isWhitespace(c)) {
+				if (c == '#') {
+					while (c != '\n' && c != '\r' && c >= 0) {
+						c = next();
+					}
+				}
+				c = next();
+			}
+			if (c < '0' || c > '9') {
+				throw new IIOException("Invalid PPM or PGM header!");
+			}
+			long value = 0;
+			while (c >= '0' && c <= '9') {
+				value = Math.min(Integer.MAX_VALUE, value * 10 + c - '0');
+				c = next();
+			}
+			if (!Character.isWhitespace(c)) {
+				throw new IIOException("Invalid PPM or PGM header!");
+			}
+			return (int) value;
+		}
+	}
+
+	/**
+	 * Writes image to file as a PPM image, or as a PGM image if gray is true,
+	 * replacing the file if it exists.
+	 */
+	static void write(BufferedImage image, Path file, boolean gray) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			write(image, channel, gray);
+		}
+	}
+
+	/** Writes image to channel as a PPM image, or as a PGM image if gray is true */
+	static void write(BufferedImage image, WritableByteChannel channel, boolean gray) throws IOException {
+		int width = image.getWidth();
+		int height = image.getHeight();
+		int channels = gray ? 1 : 3;
+		ByteBuffer buffer = ByteBuffer.allocate(Math.max(BUFFER, channels * width));
+		String header = (gray ? "P5" : "P6") + "\n" + width + " " + height + "\n255\n";
+		buffer.put(header.getBytes(StandardCharsets.US_ASCII));
+		int[] data = ImageKernels.data(image);
+		int[] row = new int[width];
+		for (int y = 0; y < height; y++) {
+			if (buffer.remaining() < channels * width) {
+				drain(buffer, channel);
+			}
+			byte[] bytes = buffer.array();
+			int start = buffer.arrayOffset() + buffer.position();
+			if (data != null) {
+				System.arraycopy(data, y * width, row, 0, width);
+			}
+			else {
+				image.getRGB(0, y, width, 1, row, 0, width);
+			}
+			if (gray) {
+				for (int x = 0; x < width; x++) {
+					int p = row[x];
+					bytes[start + x] = (byte) ((77 * (p >> 16 & 0xff) + 150 * (p >> 8 & 0xff) + 29 * (p & 0xff) + 128) >> 8);
+				}
+			}
+			else {
+				for (int x = 0, b = start; x < width; x++, b += 3) {
+					int p = row[x];
+					bytes[b] = (byte) (p >> 16);
+					bytes[b + 1] = (byte) (p >> 8);
+					bytes[b + 2] = (byte) p;
+				}
+			}
+			buffer.position(buffer.position() + channels * width);
+		}
+		drain(buffer, channel);
+	}
+
+	private static void drain(ByteBuffer buffer, WritableByteChannel channel) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+}
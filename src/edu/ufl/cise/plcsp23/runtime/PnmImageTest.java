@@ -0,0 +1,97 @@
+package edu.ufl.cise.plcsp23.runtime;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class PnmImageTest {
+
+	@TempDir
+	Path dir;
+
+	/** A file with the given header followed by samples */
+	String file(String name, String header, byte[] samples) throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		bytes.write(header.getBytes(StandardCharsets.US_ASCII));
+		bytes.write(samples);
+		Path file = dir.resolve(name);
+		Files.write(file, bytes.toByteArray());
+		return file.toString();
+	}
+
+	static int luma(int p) {
+		return (77 * (p >> 16 & 0xff) + 150 * (p >> 8 & 0xff) + 29 * (p & 0xff) + 128) >> 8;
+	}
+
+	@Test
+	void writtenImagesReadBack() {
+		Random random = new Random(24);
+		// the widest image has rows longer than the buffer
+		for (int[] size : new int[][] { { 1, 1 }, { 37, 23 }, { 30000, 3 } }) {
+			BufferedImage image = ResizeTest.random(size[0], size[1], BufferedImage.TYPE_INT_ARGB, random);
+			String ppm = dir.resolve("image" + size[0] + ".ppm").toString();
+			FileURLIO.writeImage(image, ppm);
+			assertArrayEquals(RawImageTest.rgb(image), RawImageTest.rgb(FileURLIO.readImage(ppm)), ppm);
+
+			String pgm = dir.resolve("image" + size[0] + ".pgm").toString();
+			FileURLIO.writeImage(image, pgm);
+			int[] expected = ImageOps.getRGBPixels(image);
+			for (int i = 0; i < expected.length; i++) {
+				expected[i] = luma(expected[i]) * 0x010101;
+			}
+			assertArrayEquals(expected, RawImageTest.rgb(FileURLIO.readImage(pgm)), pgm);
+		}
+	}
+
+	@Test
+	void samplesAreScaledTo8Bits() throws Exception {
+		byte[] small = { 0, 7, 15, 1, 2, 3 };
+		String p6 = file("small.ppm", "P6\n2 1\n15\n", small);
+		assertArrayEquals(new int[] { 0x0077ff, 0x112233 }, RawImageTest.rgb(FileURLIO.readImage(p6)));
+
+		byte[] wide = { 0, 0, (byte) 0x01, (byte) 0xf4, (byte) 0x03, (byte) 0xe8 }; // 0, 500, 1000
+		String p5 = file("wide.pgm", "P5 3 1 1000 ", wide);
+		assertArrayEquals(new int[] { 0, 0x808080, 0xffffff }, RawImageTest.rgb(FileURLIO.readImage(p5)));
+	}
+
+	@Test
+	void headerCommentsAreSkipped() throws Exception {
+		byte[] samples = { 1, 2, 3, 4, 5, 6 };
+		String ppm = file("comments.ppm", "P6 # made by hand\n# width and height\n2\t1 #\n255\n", samples);
+		assertArrayEquals(new int[] { 0x010203, 0x040506 }, RawImageTest.rgb(FileURLIO.readImage(ppm)));
+	}
+
+	@Test
+	void imagesAreRecognizedByTheirFirstBytes() throws Exception {
+		String other = file("image.bin", "P5\n2 2\n255\n", new byte[] { 0, 1, 2, 3 });
+		assertArrayEquals(new int[] { 0, 0x010101, 0x020202, 0x030303 },
+				RawImageTest.rgb(FileURLIO.readImage(other)));
+	}
+
+	@Test
+	void invalidImagesThrow() throws Exception {
+		String[][] files = { { "truncated.ppm", "P6\n2 2\n255\n", "Truncated" },
+				{ "magic.ppm", "XY\n2 2\n255\n", "Not a PPM" }, { "ascii.ppm", "P3\n1 1\n255\n1 2 3\n", "Only binary" },
+				{ "zero.ppm", "P6\n0 2\n255\n", "Invalid" }, { "maximum.pgm", "P5\n1 1\n65536\n", "Invalid" },
+				{ "letters.pgm", "P5\nw h\n255\n", "Invalid" }, { "zeros.pgm", "", "Not a PPM" } };
+		for (String[] f : files) {
+			String file = file(f[0], f[1], new byte[5]);
+			PLCRuntimeException e = assertThrows(PLCRuntimeException.class, () -> FileURLIO.readImage(file), f[0]);
+			assertTrue(e.getMessage().startsWith(f[2]), e.getMessage());
+			assertTrue(e.getMessage().endsWith(" " + file), e.getMessage());
+		}
+		assertEquals(1, FileURLIO.readImage(file("exact.pgm", "P5\n1 1\n255\n", new byte[1])).getWidth());
+	}
+
+}
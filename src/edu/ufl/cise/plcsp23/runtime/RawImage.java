@@ -0,0 +1,218 @@
+package edu.ufl.cise.plcsp23.runtime;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import javax.imageio.IIOException;
+
+/**
+ * The raw image format of files with the extension .plcimg, which stores the pixels
+ * the way the runtime holds them, so that images are passed between programs without
+ * encoding and decoding them.
+ *
+ * A file starts with a 16 byte header: the bytes "PLCI", a version byte, 'L' or 'B'
+ * for the byte order of the ints that follow (little or big endian), two zero bytes,
+ * and the width and height as ints. Then come the pixels like those of a
+ * TYPE_INT_RGB image, one packed int per pixel in row-major order without the alpha
+ * value.
+ *
+ * Files are written in the native byte order, in the layout of an OffHeapImage, so
+ * that map can return the mapped file itself as the image. Files in the other byte
+ * order are converted when read.
+ */
+final class RawImage {
+
+	static final String EXTENSION = ".plcimg";
+
+	static final int HEADER_BYTES = 16;
+
+	private static final byte VERSION = 1;
+
+	/** Number of bytes of pixels mapped at a time */
+	private static final int WINDOW = 1 << 24;
+
+	private record Header(int width, int height, ByteOrder order) {
+	}
+
+	private RawImage() {
+	}
+
+	/** True if filename has the extension of raw images */
+	static boolean isRaw(String filename) {
+		return filename.regionMatches(true, filename.length() - EXTENSION.length(), EXTENSION, 0,
+				EXTENSION.length());
+	}
+
+	/**
+	 * Reads the raw image in file. The pixels are copied from the mapped file into the
+	 * image in bulk. Images too large for the heap (see TiledImage.isLarge) are read
+	 * into a TiledImage. A header whose size does not fit the file throws a
+	 * PLCRuntimeException.
+	 */
+	static BufferedImage read(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			Header header = header(channel);
+			int w = header.width;
+			int h = header.height;
+			BufferedImage image = TiledImage.isLarge(w, h) ? new TiledImage(w, h)
+					: new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+			int[] data = ImageKernels.data(image);
+			int[] rows = data == null ? new int[chunkRows(w) * w] : null;
+			forEachWindow(channel, FileChannel.MapMode.READ_ONLY, header, (pixels, y0, y1) -> {
+				if (data != null) {
+					pixels.get(data, y0 * w, (y1 - y0) * w);
+					return;
+				}
+				for (int y = y0; y < y1; y += chunkRows(w)) {
+					int n = Math.min(chunkRows(w), y1 - y);
+					pixels.get(rows, 0, n * w);
+					image.setRGB(0, y, w, n, rows, 0, w);
+				}
+			});
+			return image;
+		}
+	}
+
+	/**
+	 * Maps the raw image in file as an OffHeapImage. Changes to its pixels are written
+	 * to the file. A file in the other byte order is copied into a new image instead.
+	 */
+	static OffHeapImage map(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			Header header = header(channel);
+			int w = header.width;
+			if (header.order == ByteOrder.nativeOrder()) {
+				return OffHeapImage.map(channel, HEADER_BYTES, w, header.height);
+			}
+			OffHeapImage image = OffHeapImage.allocate(w, header.height);
+			int[] rows = new int[chunkRows(w) * w];
+			forEachWindow(channel, FileChannel.MapMode.READ_ONLY, header, (pixels, y0, y1) -> {
+				for (int y = y0; y < y1; y += chunkRows(w)) {
+					int n = Math.min(chunkRows(w), y1 - y) * w;
+					pixels.get(rows, 0, n);
+					image.write(y * w, rows, 0, n);
+				}
+			});
+			return image;
+		}
+	}
+
+	/** Writes image to file in the native byte order, replacing the file if it exists */
+	static void write(BufferedImage image, Path file) throws IOException {
+		int w = image.getWidth();
+		int[] data = ImageKernels.data(image);
+		int[] rows = new int[chunkRows(w) * w];
+		try (FileChannel channel = create(file)) {
+			Header header = new Header(w, image.getHeight(), ByteOrder.nativeOrder());
+			write(channel, header(header));
+			forEachWindow(channel, FileChannel.MapMode.READ_WRITE, header, (pixels, y0, y1) -> {
+				for (int y = y0; y < y1; y += chunkRows(w)) {
+					int n = Math.min(chunkRows(w), y1 - y) * w;
+					if (data != null) {
+						System.arraycopy(data, y * w, rows, 0, n);
+					}
+					else {
+						image.getRGB(0, y, w, n / w, rows, 0, w);
+					}
+					ImageKernels.select(rows, rows, 0, n, ImageKernels.SELECT_RGB);
+					pixels.put(rows, 0, n);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Writes image to file, replacing the file if it exists. The pixels are written
+	 * from the image's buffer in a single transfer.
+	 */
+	static void write(OffHeapImage image, Path file) throws IOException {
+		image.acquire();
+		try (FileChannel channel = create(file)) {
+			write(channel, header(new Header(image.getWidth(), image.getHeight(), ByteOrder.nativeOrder())),
+					image.bytes());
+		}
+		finally {
+			image.release();
+		}
+	}
+
+	private static FileChannel create(Path file) throws IOException {
+		return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+	}
+
+	private static void write(FileChannel channel, ByteBuffer... buffers) throws IOException {
+		while (buffers[buffers.length - 1].hasRemaining()) {
+			channel.write(buffers);
+		}
+	}
+
+	private static ByteBuffer header(Header header) {
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES).order(header.order);
+		buffer.put((byte) 'P').put((byte) 'L').put((byte) 'C').put((byte) 'I').put(VERSION);
+		buffer.put((byte) (header.order == ByteOrder.BIG_ENDIAN ? 'B' : 'L')).put((byte) 0).put((byte) 0);
+		buffer.putInt(header.width).putInt(header.height);
+		return buffer.flip();
+	}
+
+	private static Header header(FileChannel channel) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES);
+		while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) >= 0) {
+		}
+		if (buffer.hasRemaining() || buffer.get(0) != 'P' || buffer.get(1) != 'L' || buffer.get(2) != 'C'
+				|| buffer.get(3) != 'I') {
+			throw new IIOException("Not a raw image!");
+		}
+		if (buffer.get(4) != VERSION) {
+			throw new IIOException("Unsupported raw image version " + buffer.get(4) + "!");
+		}
+		ByteOrder order = switch (buffer.get(5)) {
+		case 'L' -> ByteOrder.LITTLE_ENDIAN;
+		case 'B' -> ByteOrder.BIG_ENDIAN;
+		default -> throw new IIOException("Unknown byte order in raw image!");
+		};
+		buffer.order(order);
+		Header header = new Header(buffer.getInt(8), buffer.getInt(12), order);
+		// divides rather than multiplies, 4L * width * height overflows for the largest sizes
+		if (header.width <= 0 || header.height <= 0
+				|| (channel.size() - HEADER_BYTES) / 4 / header.width < header.height) {
+			throw new PLCRuntimeException("Invalid raw image!");
+		}
+		return header;
+	}
+
+	/** Processes the pixels of rows [y0, y1) of a mapped raw image */
+	private interface WindowKernel {
+		void apply(IntBuffer pixels, int y0, int y1);
+	}
+
+	/** Maps the pixels of the image a window of rows at a time and applies kernel to them */
+	private static void forEachWindow(FileChannel channel, FileChannel.MapMode mode, Header header,
+			WindowKernel kernel) throws IOException {
+		int w = header.width;
+		int windowRows = (int) Math.max(1, WINDOW / (4L * w));
+		for (int y0 = 0; y0 < header.height; y0 += windowRows) {
+			int y1 = Math.min(header.height, y0 + windowRows);
+			MappedByteBuffer window = channel.map(mode, HEADER_BYTES + 4L * y0 * w, 4L * (y1 - y0) * w);
+			try {
+				kernel.apply(window.order(header.order).asIntBuffer(), y0, y1);
+			}
+			finally {
+				OffHeapImage.free(window);
+			}
+		}
+	}
+
+	/** Number of rows copied through the heap at a time */
+	private static int chunkRows(int width) {
+		return Math.max(1, OffHeapImage.CHUNK / width);
+	}
+
+}
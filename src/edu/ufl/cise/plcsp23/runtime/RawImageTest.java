@@ -0,0 +1,114 @@
+package edu.ufl.cise.plcsp23.runtime;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class RawImageTest {
+
+	@TempDir
+	Path dir;
+
+	/** The pixels of image as the runtime stores them, without alpha */
+	static int[] rgb(BufferedImage image) {
+		int[] pixels = ImageOps.getRGBPixels(image);
+		for (int i = 0; i < pixels.length; i++) {
+			pixels[i] &= 0xffffff;
+		}
+		return pixels;
+	}
+
+	/** A raw image file with the given header values and pixels */
+	Path raw(String name, ByteOrder order, int width, int height, int[] pixels) throws Exception {
+		ByteBuffer buffer = ByteBuffer.allocate(RawImage.HEADER_BYTES + 4 * pixels.length).order(order);
+		buffer.put("PLCI".getBytes()).put((byte) 1).put((byte) (order == ByteOrder.BIG_ENDIAN ? 'B' : 'L'));
+		buffer.put((byte) 0).put((byte) 0).putInt(width).putInt(height);
+		buffer.asIntBuffer().put(pixels);
+		Path file = dir.resolve(name + RawImage.EXTENSION);
+		Files.write(file, buffer.array());
+		return file;
+	}
+
+	@Test
+	void writtenImagesReadBack() {
+		Random random = new Random(23);
+		for (int[] size : new int[][] { { 1, 1 }, { 37, 23 }, { 300, 200 } }) {
+			BufferedImage image = ResizeTest.random(size[0], size[1], BufferedImage.TYPE_INT_ARGB, random);
+			String file = dir.resolve("image" + size[0] + RawImage.EXTENSION).toString();
+			FileURLIO.writeImage(image, file);
+			BufferedImage read = FileURLIO.readImage(file);
+			assertEquals(size[0], read.getWidth());
+			assertEquals(size[1], read.getHeight());
+			assertArrayEquals(rgb(image), rgb(read));
+			ResizeTest.assertSameImage(ResizeTest.reference(read, 20, 10), FileURLIO.readImage(file, 20, 10),
+					"resized");
+		}
+	}
+
+	@Test
+	void mappedImagesWriteThrough() {
+		BufferedImage image = ResizeTest.random(40, 30, BufferedImage.TYPE_INT_RGB, new Random(24));
+		String file = dir.resolve("mapped" + RawImage.EXTENSION).toString();
+		FileURLIO.writeImage(image, file);
+		try (OffHeapImage mapped = FileURLIO.mapImage(file)) {
+			assertTrue(mapped.isMapped());
+			assertEquals(image.getRGB(5, 6), mapped.getRGB(5, 6));
+			mapped.setRGB(5, 6, 0x123456);
+		}
+		image.setRGB(5, 6, 0x123456);
+		assertArrayEquals(rgb(image), rgb(FileURLIO.readImage(file)));
+
+		try (OffHeapImage offHeap = OffHeapImage.fromBufferedImage(image)) {
+			String copy = dir.resolve("copy" + RawImage.EXTENSION).toString();
+			FileURLIO.writeImage(offHeap, copy);
+			assertArrayEquals(rgb(image), rgb(FileURLIO.readImage(copy)));
+		}
+	}
+
+	@Test
+	void otherByteOrderIsConverted() throws Exception {
+		ByteOrder other = ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN ? ByteOrder.LITTLE_ENDIAN
+				: ByteOrder.BIG_ENDIAN;
+		int[] pixels = new int[7 * 3];
+		Arrays.setAll(pixels, i -> i * 0x010203);
+		Path file = raw("other", other, 7, 3, pixels);
+		assertArrayEquals(pixels, rgb(FileURLIO.readImage(file.toString())));
+		try (OffHeapImage mapped = FileURLIO.mapImage(file.toString())) {
+			assertFalse(mapped.isMapped());
+			assertEquals(pixels[10], mapped.getRGB(3, 1) & 0xffffff);
+		}
+	}
+
+	@Test
+	void invalidHeadersThrow() throws Exception {
+		ByteOrder order = ByteOrder.nativeOrder();
+		String truncated = raw("truncated", order, 7, 3, new int[20]).toString();
+		String empty = raw("empty", order, 0, 3, new int[0]).toString();
+		String negative = raw("negative", order, -1, -1, new int[0]).toString();
+		// 4L * width * height overflows to a negative size, which a header alone passed
+		String largest = raw("largest", order, Integer.MAX_VALUE, Integer.MAX_VALUE, new int[0]).toString();
+		for (String file : new String[] { truncated, empty, negative, largest }) {
+			PLCRuntimeException e = assertThrows(PLCRuntimeException.class, () -> FileURLIO.readImage(file), file);
+			assertTrue(e.getMessage().startsWith("Invalid raw image"), e.getMessage());
+			assertThrows(PLCRuntimeException.class, () -> FileURLIO.mapImage(file), file);
+		}
+		Path text = dir.resolve("text" + RawImage.EXTENSION);
+		Files.writeString(text, "not a raw image at all");
+		PLCRuntimeException e = assertThrows(PLCRuntimeException.class, () -> FileURLIO.readImage(text.toString()));
+		assertTrue(e.getMessage().startsWith("Not a raw image"), e.getMessage());
+	}
+
+}
@@ -0,0 +1,450 @@
+package edu.ufl.cise.plcsp23.runtime;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.AffineTransformOp;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Scales images for ImageOps.copyInto and copyAndResize.
+ *
+ * In NEAREST mode, the default, each destination pixel is a copy of the source pixel
+ * that AffineTransformOp with TYPE_NEAREST_NEIGHBOR would choose, and pixels it would
+ * not write are left unchanged. The BILINEAR and AREA_AVERAGE modes interpolate
+ * between the four nearest source pixels, or average all the source pixels a
+ * destination pixel covers. They give
+ * smoother results but do not match the language's reference behavior, so they have
+ * to be selected explicitly with setMode or the system property plc.resize.
+ *
+ * The source position of every destination row and column depends only on the
+ * source and destination sizes, so it is computed once per pair of sizes and cached.
+ * Images of the same size are simply copied. Rows are computed in parallel when
+ * both images keep their pixels in an int[].
+ */
+public class Resize {
+
+	public enum Mode {
+		NEAREST, BILINEAR, AREA_AVERAGE
+	}
+
+	private static final int MAX_CACHED_MAPS = 64;
+
+	private static volatile Mode mode = Mode.valueOf(System.getProperty("plc.resize", Mode.NEAREST.name()));
+
+	/**
+	 * Source positions for a pair of sizes. For NEAREST, x0 holds the source column of
+	 * each destination column, or -1 if it is not written. For BILINEAR, x0 and x1 are
+	 * the columns to interpolate between and xf the weight of x1, out of 256. For
+	 * AREA_AVERAGE, the destination column covers the source columns [x0, x1). The y
+	 * arrays are the same for rows.
+	 */
+	private record Maps(int[] x0, int[] x1, int[] xf, int[] y0, int[] y1, int[] yf) {
+	}
+
+	private record Key(Mode mode, int srcWidth, int srcHeight, int dstWidth, int dstHeight) {
+	}
+
+	private static final ConcurrentHashMap<Key, Maps> maps = new ConcurrentHashMap<>();
+
+	public static void setMode(Mode newMode) {
+		mode = newMode;
+	}
+
+	public static Mode getMode() {
+		return mode;
+	}
+
+	/**
+	 * Returns true if src can be scaled into dst in the current mode. Images that
+	 * do not store packed int pixels or planes are left to AffineTransformOp in
+	 * NEAREST mode, since it converts their colors differently than setRGB would.
+	 */
+	static boolean isSupported(BufferedImage src, BufferedImage dst) {
+		return mode != Mode.NEAREST || isPacked(src) && isPacked(dst);
+	}
+
+	private static boolean isPacked(BufferedImage image) {
+		return image instanceof TiledImage || image instanceof PlanarImage || ImageKernels.data(image) != null;
+	}
+
+	/**
+	 * Scales src to the size of dst and stores the result in dst, using the current
+	 * mode. src and dst must not be the same image unless they have the same size.
+	 */
+	static void scale(BufferedImage src, BufferedImage dst) {
+		scale(src, dst, dst.getWidth(), dst.getHeight());
+	}
+
+	/**
+	 * Scales src to maxX by maxY and stores the result in dst, which is maxX by maxY or
+	 * has the size of scaledSize.
+	 */
+	static void scale(BufferedImage src, BufferedImage dst, int maxX, int maxY) {
+		int w = src.getWidth();
+		int h = src.getHeight();
+		int dstWidth = dst.getWidth();
+		int dstHeight = dst.getHeight();
+		int[] srcData = ImageKernels.data(src);
+		int[] dstData = ImageKernels.data(dst);
+		// like AffineTransformOp, pixels are copied as they are, and only get the alpha
+		// value when they go from an image without alpha to one with alpha
+		boolean dstAlpha = dst.getType() == BufferedImage.TYPE_INT_ARGB;
+		int srcFill = dstAlpha ? ImageKernels.alphaFill(src) : 0;
+		int dstMask = dstAlpha ? -1 : ImageKernels.SELECT_RGB;
+		if (w == dstWidth && h == dstHeight && w == maxX && h == maxY && srcData != null && dstData != null) {
+			ImageKernels.run(w, h, (from, to) -> copy(srcData, srcFill, dstData, from, to));
+			return;
+		}
+		Mode m = mode;
+		Maps map = maps(m, w, h, maxX, maxY);
+		if (srcData != null && dstData != null) {
+			ImageKernels.run(dstWidth, dstHeight, (from, to) -> {
+				Rows rows = new Rows(src, srcData, srcFill);
+				for (int y = from / dstWidth; y < to / dstWidth; y++) {
+					row(m, map, rows, y, dstData, y * dstWidth, dstWidth, dstMask);
+				}
+			});
+			return;
+		}
+		Rows rows = new Rows(src, srcData, srcFill);
+		int[] out = new int[dstWidth];
+		boolean gaps = m == Mode.NEAREST && Arrays.stream(map.x0, 0, dstWidth).anyMatch(x -> x < 0);
+		for (int y = 0; y < dstHeight; y++) {
+			if (gaps) {
+				dst.getRGB(0, y, dstWidth, 1, out, 0, dstWidth);
+			}
+			if (row(m, map, rows, y, out, 0, dstWidth, -1)) {
+				dst.setRGB(0, y, dstWidth, 1, out, 0, dstWidth);
+			}
+		}
+	}
+
+	/**
+	 * The size of the image a w by h image is scaled to for maxX by maxY in the
+	 * current mode. In NEAREST mode this is the size of the image AffineTransformOp
+	 * would create, which is sometimes a column or row larger because of rounding,
+	 * as it was in the language's reference implementation. The other modes give
+	 * exactly maxX by maxY.
+	 */
+	static Dimension scaledSize(int w, int h, int maxX, int maxY) {
+		if (mode != Mode.NEAREST) {
+			return new Dimension(maxX, maxY);
+		}
+		Maps map = maps(Mode.NEAREST, w, h, maxX, maxY);
+		return new Dimension(map.x0.length, map.y0.length);
+	}
+
+	/**
+	 * Returns the source columns and rows that scaling a w by h image to maxX by maxY
+	 * reads, as {columns, rows}, or null if the current mode is not NEAREST or some
+	 * pixels of the scaled image would not be written. The arrays have the length of
+	 * the width and height of scaledSize, are shared and must not be changed.
+	 */
+	static int[][] nearestPositions(int w, int h, int maxX, int maxY) {
+		if (mode != Mode.NEAREST) {
+			return null;
+		}
+		Maps map = maps(Mode.NEAREST, w, h, maxX, maxY);
+		if (Arrays.stream(map.x0).anyMatch(x -> x < 0) || Arrays.stream(map.y0).anyMatch(y -> y < 0)) {
+			return null;
+		}
+		return new int[][] { map.x0, map.y0 };
+	}
+
+	/**
+	 * Returns a new TYPE_INT_RGB image whose pixel (x, y) is the pixel (columns[x],
+	 * rows[y]) of src, which must keep its pixels in an int[].
+	 */
+	static BufferedImage pick(BufferedImage src, int[] columns, int[] rows) {
+		int[] srcData = ImageKernels.data(src);
+		int w = src.getWidth();
+		int maxX = columns.length;
+		int maxY = rows.length;
+		BufferedImage dst = ImagePool.acquire(maxX, maxY);
+		int[] dstData = ImageKernels.data(dst);
+		ImageKernels.run(maxX, maxY, (from, to) -> {
+			for (int y = from / maxX; y < to / maxX; y++) {
+				int offset = rows[y] * w;
+				for (int x = 0, i = y * maxX; x < maxX; x++, i++) {
+					dstData[i] = srcData[offset + columns[x]];
+				}
+			}
+		});
+		return dst;
+	}
+
+	/** dst[i] = src[i] | srcFill for i in [from, to) */
+	private static void copy(int[] src, int srcFill, int[] dst, int from, int to) {
+		if (srcFill == 0) {
+			System.arraycopy(src, from, dst, from, to - from);
+			return;
+		}
+		for (int i = from; i < to; i++) {
+			dst[i] = src[i] | srcFill;
+		}
+	}
+
+	/**
+	 * Computes destination row y into dst starting at offset. NEAREST copies the
+	 * source pixels with the fill of rows, the other modes apply mask to the
+	 * pixels they compute. Returns false if the row is left as it is, which only
+	 * happens in NEAREST mode.
+	 */
+	private static boolean row(Mode m, Maps map, Rows rows, int y, int[] dst, int offset, int width, int mask) {
+		switch (m) {
+		case NEAREST -> {
+			if (map.y0[y] < 0) {
+				return false;
+			}
+			int[] x0 = map.x0;
+			int start = rows.row(map.y0[y], 0);
+			int[] src = rows.array[0];
+			int fill = rows.fill;
+			for (int x = 0; x < width; x++) {
+				if (x0[x] >= 0) {
+					dst[offset + x] = src[start + x0[x]] | fill;
+				}
+			}
+		}
+		case BILINEAR -> {
+			int start0 = rows.row(map.y0[y], 0);
+			int start1 = rows.row(map.y1[y], 1);
+			int[] r0 = rows.array[0];
+			int[] r1 = rows.array[1];
+			int fy = map.yf[y];
+			for (int x = 0; x < width; x++) {
+				int a = map.x0[x];
+				int b = map.x1[x];
+				int fx = map.xf[x];
+				dst[offset + x] = (blend(r0[start0 + a], r0[start0 + b], r1[start1 + a], r1[start1 + b], fx, fy)
+						| PixelOps.SELECT_ALPHA) & mask;
+			}
+		}
+		case AREA_AVERAGE -> {
+			long[] sums = rows.sums(width);
+			for (int sy = map.y0[y]; sy < map.y1[y]; sy++) {
+				int start = rows.row(sy, 0);
+				int[] src = rows.array[0];
+				for (int x = 0; x < width; x++) {
+					long red = 0, grn = 0, blu = 0;
+					for (int sx = start + map.x0[x], end = start + map.x1[x]; sx < end; sx++) {
+						int p = src[sx];
+						red += PixelOps.red(p);
+						grn += PixelOps.grn(p);
+						blu += PixelOps.blu(p);
+					}
+					sums[3 * x] += red;
+					sums[3 * x + 1] += grn;
+					sums[3 * x + 2] += blu;
+				}
+			}
+			long rowCount = map.y1[y] - map.y0[y];
+			for (int x = 0; x < width; x++) {
+				long count = rowCount * (map.x1[x] - map.x0[x]);
+				long half = count / 2;
+				dst[offset + x] = PixelOps.pack((int) ((sums[3 * x] + half) / count),
+						(int) ((sums[3 * x + 1] + half) / count), (int) ((sums[3 * x + 2] + half) / count)) & mask;
+			}
+		}
+		}
+		return true;
+	}
+
+	/** Interpolates each color component between four pixels, with weights out of 256 */
+	private static int blend(int p00, int p01, int p10, int p11, int fx, int fy) {
+		int gx = 256 - fx;
+		int gy = 256 - fy;
+		int red = ((PixelOps.red(p00) * gx + PixelOps.red(p01) * fx) * gy
+				+ (PixelOps.red(p10) * gx + PixelOps.red(p11) * fx) * fy + (1 << 15)) >> 16;
+		int grn = ((PixelOps.grn(p00) * gx + PixelOps.grn(p01) * fx) * gy
+				+ (PixelOps.grn(p10) * gx + PixelOps.grn(p11) * fx) * fy + (1 << 15)) >> 16;
+		int blu = ((PixelOps.blu(p00) * gx + PixelOps.blu(p01) * fx) * gy
+				+ (PixelOps.blu(p10) * gx + PixelOps.blu(p11) * fx) * fy + (1 << 15)) >> 16;
+		return (red << PixelOps.SHIFT_RED) | (grn << PixelOps.SHIFT_GRN) | (blu << PixelOps.SHIFT_BLU);
+	}
+
+	/**
+	 * Gives access to rows of the source image. If the image has an int[] the rows
+	 * are read from it directly; otherwise they are copied out with getRGB into one of
+	 * two buffers, so that two rows can be used at the same time. Each parallel strip
+	 * has its own Rows.
+	 */
+	private static final class Rows {
+		final BufferedImage image;
+		final int[] data;
+		final int fill;
+		final int width;
+		final int[][] array = new int[2][];
+		final int[] loaded = { -1, -1 };
+		long[] sums;
+
+		Rows(BufferedImage image, int[] data, int fill) {
+			this.image = image;
+			this.data = data;
+			this.fill = data != null ? fill : 0;
+			this.width = image.getWidth();
+		}
+
+		/**
+		 * Makes array[slot] hold source row y and returns the index of its first
+		 * pixel.
+		 */
+		int row(int y, int slot) {
+			if (data != null) {
+				array[slot] = data;
+				return y * width;
+			}
+			if (loaded[slot] != y) {
+				if (array[slot] == null) {
+					array[slot] = new int[width];
+				}
+				image.getRGB(0, y, width, 1, array[slot], 0, width);
+				loaded[slot] = y;
+			}
+			return 0;
+		}
+
+		/** Returns an array of three sums per destination column, all 0 */
+		long[] sums(int columns) {
+			if (sums == null) {
+				sums = new long[3 * columns];
+			}
+			else {
+				Arrays.fill(sums, 0);
+			}
+			return sums;
+		}
+	}
+
+	private static Maps maps(Mode m, int w, int h, int maxX, int maxY) {
+		Key key = new Key(m, w, h, maxX, maxY);
+		Maps map = maps.get(key);
+		if (map == null) {
+			if (maps.size() >= MAX_CACHED_MAPS) {
+				maps.clear();
+			}
+			map = switch (m) {
+			case NEAREST -> nearest(w, h, maxX, maxY);
+			case BILINEAR -> bilinear(w, h, maxX, maxY);
+			case AREA_AVERAGE -> area(w, h, maxX, maxY);
+			};
+			maps.put(key, map);
+		}
+		return map;
+	}
+
+	/**
+	 * The NEAREST maps are taken from AffineTransformOp itself rather than computed,
+	 * since the positions it chooses depend on rounding and clipping inside its
+	 * native code. Two thin probe images whose pixels hold their own row or column
+	 * number are scaled with the same transform as the full image. The row probe has
+	 * all the rows of the image and is scaled into one column, the column probe has
+	 * all the columns and is scaled into one row; each is only as wide, or as high,
+	 * as the first destination column or row needs, since the source row of a
+	 * destination row does not depend on the column, and the other way around. The
+	 * maps cover the whole image AffineTransformOp would create (see scaledSize). A
+	 * position that AffineTransformOp does not write at all is -1.
+	 */
+	private static Maps nearest(int w, int h, int maxX, int maxY) {
+		AffineTransformOp op = op(w, h, maxX, maxY);
+		Dimension size = bounds(op, w, h);
+		int probeWidth = Math.min(w, (int) (0.5 * w / maxX) + 2);
+		int probeHeight = Math.min(h, (int) (0.5 * h / maxY) + 2);
+		int[] rows = probe(op, probeWidth, h, 1, size.height, false);
+		int[] columns = probe(op, w, probeHeight, size.width, 1, true);
+		return new Maps(columns, null, null, rows, null, null);
+	}
+
+	/**
+	 * Scales a width by height probe with op into a dstWidth by dstHeight image, which
+	 * is one row or one column. Returns the source column or row of each pixel.
+	 */
+	private static int[] probe(AffineTransformOp op, int width, int height, int dstWidth, int dstHeight,
+			boolean columns) {
+		BufferedImage probe = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		int[] pixels = ImageKernels.data(probe);
+		for (int i = 0; i < pixels.length; i++) {
+			pixels[i] = (columns ? i % width : i / width) + 1; // 0 is left for pixels not written
+		}
+		BufferedImage result = new BufferedImage(dstWidth, dstHeight, BufferedImage.TYPE_INT_RGB);
+		op.filter(probe, result);
+		int[] map = ImageKernels.data(result);
+		for (int i = 0; i < map.length; i++) {
+			map[i]--;
+		}
+		return map;
+	}
+
+	/** The transform of the language's resize, from w by h to maxX by maxY */
+	private static AffineTransformOp op(int w, int h, int maxX, int maxY) {
+		AffineTransform at = new AffineTransform();
+		at.scale(((float) maxX) / w, ((float) maxY) / h);
+		return new AffineTransformOp(at, AffineTransformOp.TYPE_NEAREST_NEIGHBOR);
+	}
+
+	/**
+	 * The size of the image op.filter(src, null) creates for a w by h src, computed
+	 * like AffineTransformOp.createCompatibleDestImage does without an image
+	 */
+	private static Dimension bounds(AffineTransformOp op, int w, int h) {
+		float[] corners = { 0, 0, w, 0, w, h, 0, h };
+		op.getTransform().transform(corners, 0, corners, 0, 4);
+		float minX = corners[0], maxX = corners[0], minY = corners[1], maxY = corners[1];
+		for (int i = 2; i < corners.length; i += 2) {
+			minX = Math.min(minX, corners[i]);
+			maxX = Math.max(maxX, corners[i]);
+			minY = Math.min(minY, corners[i + 1]);
+			maxY = Math.max(maxY, corners[i + 1]);
+		}
+		Rectangle r = new Rectangle2D.Float(minX, minY, maxX - minX, maxY - minY).getBounds();
+		return new Dimension(r.x + r.width, r.y + r.height);
+	}
+
+	private static Maps bilinear(int w, int h, int maxX, int maxY) {
+		int[] x0 = new int[maxX];
+		int[] x1 = new int[maxX];
+		int[] xf = new int[maxX];
+		int[] y0 = new int[maxY];
+		int[] y1 = new int[maxY];
+		int[] yf = new int[maxY];
+		bilinearAxis(w, maxX, x0, x1, xf);
+		bilinearAxis(h, maxY, y0, y1, yf);
+		return new Maps(x0, x1, xf, y0, y1, yf);
+	}
+
+	private static void bilinearAxis(int size, int scaled, int[] lower, int[] upper, int[] weight) {
+		double ratio = (double) size / scaled;
+		for (int i = 0; i < scaled; i++) {
+			double s = Math.max(0, (i + 0.5) * ratio - 0.5);
+			int a = Math.min(size - 1, (int) s);
+			lower[i] = a;
+			upper[i] = Math.min(size - 1, a + 1);
+			weight[i] = (int) Math.round((s - a) * 256);
+		}
+	}
+
+	private static Maps area(int w, int h, int maxX, int maxY) {
+		int[] x0 = new int[maxX];
+		int[] x1 = new int[maxX];
+		int[] y0 = new int[maxY];
+		int[] y1 = new int[maxY];
+		areaAxis(w, maxX, x0, x1);
+		areaAxis(h, maxY, y0, y1);
+		return new Maps(x0, x1, null, y0, y1, null);
+	}
+
+	/** Each destination pixel covers the source pixels it overlaps, and at least one */
+	private static void areaAxis(int size, int scaled, int[] start, int[] end) {
+		for (int i = 0; i < scaled; i++) {
+			int a = (int) ((long) i * size / scaled);
+			int b = (int) (((long) (i + 1) * size + scaled - 1) / scaled);
+			start[i] = Math.min(a, size - 1);
+			end[i] = Math.max(start[i] + 1, Math.min(b, size));
+		}
+	}
+
+}
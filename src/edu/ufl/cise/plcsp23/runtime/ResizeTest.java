@@ -0,0 +1,130 @@
+package edu.ufl.cise.plcsp23.runtime;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.awt.geom.AffineTransform;
+import java.awt.image.AffineTransformOp;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class ResizeTest {
+
+	static final int[][] INTEGER_RATIOS = { { 114, 126, 195, 63 }, { 88, 40, 54, 10 }, { 192, 126, 70, 63 },
+			{ 54, 140, 175, 70 }, { 24, 128, 170, 32 }, { 100, 100, 100, 101 }, { 7, 7, 7, 8 },
+			{ 705, 2001, 705, 2002 } };
+
+	@AfterEach
+	void reset() {
+		Resize.setMode(Resize.Mode.NEAREST);
+	}
+
+	static BufferedImage random(int w, int h, int type, Random random) {
+		BufferedImage image = new BufferedImage(w, h, type);
+		for (int y = 0; y < h; y++) {
+			for (int x = 0; x < w; x++) {
+				image.setRGB(x, y, random.nextInt() | 0xff000000);
+			}
+		}
+		return image;
+	}
+
+	/** What the reference implementation did: scale with AffineTransformOp */
+	static BufferedImage reference(BufferedImage image, int maxX, int maxY) {
+		AffineTransform at = new AffineTransform();
+		at.scale(((float) maxX) / image.getWidth(), ((float) maxY) / image.getHeight());
+		return new AffineTransformOp(at, AffineTransformOp.TYPE_NEAREST_NEIGHBOR).filter(image, null);
+	}
+
+	static void assertSameImage(BufferedImage expected, BufferedImage actual, String message) {
+		assertEquals(expected.getWidth(), actual.getWidth(), message);
+		assertEquals(expected.getHeight(), actual.getHeight(), message);
+		assertArrayEquals(ImageOps.getRGBPixels(expected), ImageOps.getRGBPixels(actual), message);
+	}
+
+	void assertResizeMatches(int w, int h, int maxX, int maxY, Random random) {
+		BufferedImage image = random(w, h, BufferedImage.TYPE_INT_RGB, random);
+		assertSameImage(reference(image, maxX, maxY), ImageOps.copyAndResize(image, maxX, maxY),
+				w + "x" + h + " to " + maxX + "x" + maxY);
+	}
+
+	@Test
+	void nearestMatchesAffineTransformOpForIntegerRatios() {
+		Random random = new Random(1);
+		for (int[] sizes : INTEGER_RATIOS) {
+			assertResizeMatches(sizes[0], sizes[1], sizes[2], sizes[3], random);
+		}
+	}
+
+	@Test
+	void nearestMatchesAffineTransformOpForRandomSizes() {
+		Random random = new Random(2);
+		for (int i = 0; i < 300; i++) {
+			int w = 1 + random.nextInt(150);
+			int h = 1 + random.nextInt(150);
+			int maxX = 1 + random.nextInt(200);
+			int maxY = switch (i % 3) { // integer ratios are where rounding differs most
+			case 0 -> Math.max(1, h / (1 + random.nextInt(4)));
+			case 1 -> h * (1 + random.nextInt(3));
+			default -> 1 + random.nextInt(200);
+			};
+			assertResizeMatches(w, h, maxX, maxY, random);
+		}
+	}
+
+	@Test
+	void copyIntoMatchesAffineTransformOp() {
+		Random random = new Random(3);
+		for (int i = 0; i < 100; i++) {
+			BufferedImage image = random(1 + random.nextInt(100), 1 + random.nextInt(100),
+					BufferedImage.TYPE_INT_RGB, random);
+			BufferedImage expected = random(1 + random.nextInt(100), 1 + random.nextInt(100),
+					BufferedImage.TYPE_INT_RGB, random);
+			BufferedImage actual = ImageOps.cloneImage(expected);
+			AffineTransform at = new AffineTransform();
+			at.scale(((float) expected.getWidth()) / image.getWidth(),
+					((float) expected.getHeight()) / image.getHeight());
+			new AffineTransformOp(at, AffineTransformOp.TYPE_NEAREST_NEIGHBOR).filter(image, expected);
+			ImageOps.copyInto(image, actual);
+			assertSameImage(expected, actual, "copy into " + i);
+		}
+	}
+
+	@Test
+	void alphaImagesKeepTheirType() {
+		Random random = new Random(4);
+		BufferedImage image = random(37, 64, BufferedImage.TYPE_INT_ARGB, random);
+		BufferedImage resized = ImageOps.copyAndResize(image, 50, 32);
+		assertEquals(BufferedImage.TYPE_INT_ARGB, resized.getType());
+		assertSameImage(reference(image, 50, 32), resized, "ARGB");
+	}
+
+	@Test
+	void scaledSizeIsExactInTheOtherModes() {
+		Random random = new Random(5);
+		BufferedImage image = random(100, 100, BufferedImage.TYPE_INT_RGB, random);
+		for (Resize.Mode mode : new Resize.Mode[] { Resize.Mode.BILINEAR, Resize.Mode.AREA_AVERAGE }) {
+			Resize.setMode(mode);
+			BufferedImage resized = ImageOps.copyAndResize(image, 7, 8);
+			assertEquals(7, resized.getWidth());
+			assertEquals(8, resized.getHeight());
+		}
+	}
+
+	@Test
+	void nearestPositionsPickTheScaledImage() {
+		Random random = new Random(6);
+		for (int[] sizes : INTEGER_RATIOS) {
+			BufferedImage image = random(sizes[0], sizes[1], BufferedImage.TYPE_INT_RGB, random);
+			int[][] positions = Resize.nearestPositions(sizes[0], sizes[1], sizes[2], sizes[3]);
+			if (positions != null) {
+				assertSameImage(reference(image, sizes[2], sizes[3]), Resize.pick(image, positions[0], positions[1]),
+						sizes[0] + "x" + sizes[1]);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,98 @@
+package edu.ufl.cise.plcsp23.runtime;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.util.Arrays;
+
+/**
+ * Converts images to TYPE_INT_RGB, so that the ImageOps kernels can work on their
+ * pixels directly. Every pixel of the result is the value getRGB returns for the
+ * pixel of the original image, without the alpha value.
+ *
+ * The types ImageIO usually decodes to are converted by reading their raster data
+ * directly: interleaved 8 bit RGB and ABGR bytes, and 8 bit gray or indexed pixels
+ * through a table of the 256 colors they can have. Other images are converted with
+ * bulk getRGB calls. Large images are converted in parallel strips of rows.
+ */
+class RgbConverter {
+
+	/**
+	 * Returns image if it is a TYPE_INT_RGB image, and otherwise a new TYPE_INT_RGB
+	 * image with the same pixels.
+	 */
+	static BufferedImage toIntRgb(BufferedImage image) {
+		if (image.getType() == BufferedImage.TYPE_INT_RGB) {
+			return image;
+		}
+		int width = image.getWidth();
+		int height = image.getHeight();
+		BufferedImage result = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		int[] dst = ImageKernels.data(result);
+		int[] src = ImageKernels.data(image);
+		Raster raster = image.getRaster();
+		byte[] bytes = raster.getDataBuffer() instanceof DataBufferByte buffer && buffer.getNumBanks() == 1
+				&& raster.getParent() == null ? buffer.getData() : null;
+		if (src != null && image.getType() == BufferedImage.TYPE_INT_ARGB) {
+			ImageKernels.run(width, height, (from, to) -> ImageKernels.select(src, dst, from, to, ImageKernels.SELECT_RGB));
+		}
+		else if (bytes != null && isInterleaved(raster, 3, 2, 1, 0)) { // TYPE_3BYTE_BGR
+			ImageKernels.run(width, height, (from, to) -> {
+				for (int i = from, j = 3 * from; i < to; i++, j += 3) {
+					dst[i] = (bytes[j + 2] & 0xff) << 16 | (bytes[j + 1] & 0xff) << 8 | (bytes[j] & 0xff);
+				}
+			});
+		}
+		else if (bytes != null && isInterleaved(raster, 4, 3, 2, 1, 0) && !image.isAlphaPremultiplied()) { // TYPE_4BYTE_ABGR
+			ImageKernels.run(width, height, (from, to) -> {
+				for (int i = from, j = 4 * from; i < to; i++, j += 4) {
+					dst[i] = (bytes[j + 3] & 0xff) << 16 | (bytes[j + 2] & 0xff) << 8 | (bytes[j + 1] & 0xff);
+				}
+			});
+		}
+		else if (bytes != null && isInterleaved(raster, 1, 0) && raster.getSampleModel().getSampleSize(0) == 8) {
+			int[] colors = colors(image.getColorModel());
+			ImageKernels.run(width, height, (from, to) -> {
+				for (int i = from; i < to; i++) {
+					dst[i] = colors[bytes[i] & 0xff];
+				}
+			});
+		}
+		else {
+			ImageKernels.run(width, height, (from, to) -> {
+				int y = from / width;
+				image.getRGB(0, y, width, (to - from) / width, dst, from, width);
+				ImageKernels.select(dst, dst, from, to, ImageKernels.SELECT_RGB);
+			});
+		}
+		return result;
+	}
+
+	/**
+	 * True if the raster stores the given bands of each pixel at the given offsets in
+	 * consecutive groups of pixelStride bytes, starting at the beginning of its data
+	 * buffer and without any padding between rows.
+	 */
+	private static boolean isInterleaved(Raster raster, int pixelStride, int... bandOffsets) {
+		SampleModel model = raster.getSampleModel();
+		return model instanceof ComponentSampleModel c && c.getPixelStride() == pixelStride
+				&& c.getScanlineStride() == pixelStride * raster.getWidth()
+				&& Arrays.equals(c.getBandOffsets(), bandOffsets) && raster.getDataBuffer().getOffset() == 0
+				&& raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0;
+	}
+
+	/** The colors, without alpha, that the pixels 0 to 255 of a one byte pixel image have */
+	private static int[] colors(ColorModel model) {
+		int[] colors = new int[256];
+		byte[] pixel = new byte[1];
+		for (int i = 0; i < 256; i++) {
+			pixel[0] = (byte) i;
+			colors[i] = model.getRGB(pixel) & ImageKernels.SELECT_RGB;
+		}
+		return colors;
+	}
+
+}
@@ -0,0 +1,103 @@
+package edu.ufl.cise.plcsp23.runtime;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class RgbConverterTest {
+
+	/** Types with a fast path in RgbConverter, and some without one */
+	static final int[] TYPES = { BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB,
+			BufferedImage.TYPE_INT_ARGB_PRE, BufferedImage.TYPE_INT_BGR, BufferedImage.TYPE_3BYTE_BGR,
+			BufferedImage.TYPE_4BYTE_ABGR, BufferedImage.TYPE_4BYTE_ABGR_PRE, BufferedImage.TYPE_BYTE_GRAY,
+			BufferedImage.TYPE_USHORT_GRAY, BufferedImage.TYPE_BYTE_INDEXED, BufferedImage.TYPE_BYTE_BINARY,
+			BufferedImage.TYPE_USHORT_565_RGB };
+
+	@TempDir
+	Path dir;
+
+	@AfterEach
+	void reset() {
+		FileURLIO.setNormalized(true);
+		ImageKernels.setParallelThreshold(1 << 18);
+		ImageKernels.setPool(ForkJoinPool.commonPool());
+	}
+
+	static void assertConverted(BufferedImage image, String message) {
+		BufferedImage converted = RgbConverter.toIntRgb(image);
+		assertEquals(BufferedImage.TYPE_INT_RGB, converted.getType(), message);
+		assertArrayEquals(RawImageTest.rgb(image), RawImageTest.rgb(converted), message);
+	}
+
+	@Test
+	void everyTypeConvertsToItsColors() {
+		Random random = new Random(35);
+		for (int type : TYPES) {
+			BufferedImage image = ImageKernelsTest.random(37, 19, type, random);
+			assertConverted(image, "type " + type);
+			assertConverted(image.getSubimage(3, 2, 30, 15), "subimage of type " + type);
+		}
+		BufferedImage image = ImageKernelsTest.random(5, 5, BufferedImage.TYPE_INT_RGB, random);
+		assertSame(image, RgbConverter.toIntRgb(image));
+	}
+
+	@Test
+	void parallelStripsConvertEveryRow() {
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			ImageKernels.setPool(pool);
+			ImageKernels.setParallelThreshold(1);
+			Random random = new Random(36);
+			for (int type : TYPES) {
+				assertConverted(ImageKernelsTest.random(301, 53, type, random), "type " + type);
+			}
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	void decodedImagesAreNormalized() throws Exception {
+		Random random = new Random(37);
+		Object[][] files = { { "rgb.png", BufferedImage.TYPE_INT_RGB }, { "argb.png", BufferedImage.TYPE_INT_ARGB },
+				{ "gray.png", BufferedImage.TYPE_BYTE_GRAY }, { "indexed.png", BufferedImage.TYPE_BYTE_INDEXED },
+				{ "gray16.png", BufferedImage.TYPE_USHORT_GRAY }, { "rgb.jpg", BufferedImage.TYPE_INT_RGB },
+				{ "gray.jpg", BufferedImage.TYPE_BYTE_GRAY }, { "bgr.bmp", BufferedImage.TYPE_3BYTE_BGR },
+				{ "indexed.bmp", BufferedImage.TYPE_BYTE_INDEXED }, { "indexed.gif", BufferedImage.TYPE_BYTE_INDEXED },
+				{ "binary.gif", BufferedImage.TYPE_BYTE_BINARY } };
+		for (Object[] entry : files) {
+			String name = (String) entry[0];
+			BufferedImage image = ImageKernelsTest.random(45, 31, (Integer) entry[1], random);
+			File file = dir.resolve(name).toFile();
+			assertTrue(ImageIO.write(image, name.substring(name.indexOf('.') + 1), file), name);
+			BufferedImage decoded = ImageIO.read(file);
+
+			FileURLIO.resetStatistics();
+			BufferedImage read = FileURLIO.readImage(file.getPath());
+			assertEquals(BufferedImage.TYPE_INT_RGB, read.getType(), name);
+			assertArrayEquals(RawImageTest.rgb(decoded), ImageKernels.data(read), name);
+			assertEquals(1, FileURLIO.directDecodes() + FileURLIO.conversions(), name);
+
+			FileURLIO.setNormalized(false);
+			read = FileURLIO.readImage(file.getPath());
+			assertEquals(decoded.getType(), read.getType(), name);
+			assertArrayEquals(ImageOps.getRGBPixels(decoded), ImageOps.getRGBPixels(read), name);
+			FileURLIO.setNormalized(true);
+		}
+	}
+
+}
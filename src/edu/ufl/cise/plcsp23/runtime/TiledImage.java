@@ -0,0 +1,584 @@
+package edu.ufl.cise.plcsp23.runtime;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.io.IOException;
+import java.lang.ref.Cleaner;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+
+/**
+ * An image that is too large to be kept in the heap as a single BufferedImage. The
+ * pixels are split into square tiles, and only the tiles that have been used
+ * recently are kept in memory. When the tiles of all tiled images together exceed
+ * the cache budget, tiles that have not been used since the last time the cache was
+ * full are written to a memory mapped spill file in the spill directory and read
+ * back when they are needed again. Each tile has its own lock, and tiles are
+ * written and read without holding it, so threads only wait for the tiles they use.
+ *
+ * A TiledImage is a BufferedImage of TYPE_CUSTOM whose raster reads and writes the
+ * tiles, so it can be used wherever an image is expected, including by generated
+ * code. Accessing single pixels goes through the tile cache and is slow. The
+ * operations in ImageOps recognize tiled images and process them a tile at a time,
+ * in parallel, with the same kernels as other images.
+ *
+ * Pixels are stored like those of a TYPE_INT_RGB image, without the alpha value.
+ * The spill file of an image is deleted when dispose is called or, at the latest,
+ * after the image has been garbage collected.
+ */
+public class TiledImage extends BufferedImage {
+
+	public static final int DEFAULT_TILE_SIZE = 256;
+
+	private static final DirectColorModel COLOR_MODEL = new DirectColorModel(24, 0xff0000, 0x00ff00, 0x0000ff);
+
+	private static final Cleaner CLEANER = Cleaner.create();
+
+	/** All tiles held in memory, in the order evict looks at them */
+	private static final Queue<Tile> resident = new ConcurrentLinkedQueue<>();
+	private static final AtomicLong residentBytes = new AtomicLong();
+	private static volatile long maxResidentBytes = Runtime.getRuntime().maxMemory() / 8;
+
+	private static volatile long largeImageBytes = Runtime.getRuntime().maxMemory() / 4;
+	private static volatile Path spillDirectory = Paths.get(System.getProperty("java.io.tmpdir"), "plc-tiles");
+
+	/** A kernel applied to the pixels [from, to) of a tile, see apply */
+	interface TileKernel {
+		void apply(int[] left, int[] right, int[] dst, int from, int to);
+	}
+
+	/** A test of the pixels [from, to) of a tile, see all */
+	interface TileTest {
+		boolean test(int[] left, int[] right, int from, int to);
+	}
+
+	private final Tiles tiles;
+
+	/**
+	 * Creates a black image of the given size with tiles of DEFAULT_TILE_SIZE.
+	 */
+	public TiledImage(int width, int height) {
+		this(width, height, DEFAULT_TILE_SIZE);
+	}
+
+	public TiledImage(int width, int height, int tileSize) {
+		this(new Tiles(width, height, tileSize));
+	}
+
+	private TiledImage(Tiles tiles) {
+		super(COLOR_MODEL,
+				Raster.createWritableRaster(new SinglePixelPackedSampleModel(DataBuffer.TYPE_INT, tiles.width,
+						tiles.height, COLOR_MODEL.getMasks()), tiles, null),
+				false, null);
+		this.tiles = tiles;
+		CLEANER.register(this, tiles::dispose);
+	}
+
+	public int getTileSize() {
+		return tiles.tileSize;
+	}
+
+	/**
+	 * Drops the tiles of this image from the cache and deletes its spill file. The
+	 * image must not be used afterwards.
+	 */
+	public void dispose() {
+		tiles.dispose();
+	}
+
+	/** Sets the number of bytes of tiles of all tiled images kept in memory */
+	public static void setCacheBytes(long bytes) {
+		maxResidentBytes = bytes;
+		evict();
+	}
+
+	/** Number of bytes of tiles currently in memory */
+	public static long cachedBytes() {
+		return residentBytes.get();
+	}
+
+	/** Sets the directory that spill files are created in */
+	public static void setSpillDirectory(Path directory) {
+		spillDirectory = directory;
+	}
+
+	/** Sets the size in bytes above which isLarge returns true */
+	public static void setLargeImageBytes(long bytes) {
+		largeImageBytes = bytes;
+	}
+
+	/**
+	 * Returns true if an image of the given size should be tiled rather than held in
+	 * the heap as a single BufferedImage.
+	 */
+	public static boolean isLarge(int width, int height) {
+		return 4L * width * height > largeImageBytes;
+	}
+
+	/**
+	 * Decodes image 0 of the given reader into a new tiled image, one band of tile
+	 * rows at a time, so that the decoded image never has to fit in the heap.
+	 */
+	static TiledImage read(ImageReader reader) throws IOException {
+		return read(reader, new Rectangle(reader.getWidth(0), reader.getHeight(0)));
+	}
+
+	/**
+	 * Decodes the part of image 0 of the given reader that lies in region, which
+	 * must be inside the image, into a new tiled image the size of region.
+	 */
+	static TiledImage read(ImageReader reader, Rectangle region) throws IOException {
+		int width = region.width;
+		int height = region.height;
+		TiledImage image = new TiledImage(width, height);
+		Tiles tiles = image.tiles;
+		int t = tiles.tileSize;
+		int[] scratch = new int[t * t];
+		ImageReadParam param = reader.getDefaultReadParam();
+		for (int ty = 0; ty < tiles.tilesDown; ty++) {
+			int y = ty * t;
+			int rows = Math.min(t, height - y);
+			param.setSourceRegion(new Rectangle(region.x, region.y + y, width, rows));
+			BufferedImage band = reader.read(0, param);
+			for (int tx = 0; tx < tiles.tilesAcross; tx++) {
+				int x = tx * t;
+				band.getRGB(x, 0, Math.min(t, width - x), rows, scratch, 0, t);
+				int index = ty * tiles.tilesAcross + tx;
+				int[] data = tiles.pin(index);
+				try {
+					ImageKernels.select(scratch, data, 0, rows * t, ImageKernels.SELECT_RGB);
+				}
+				finally {
+					tiles.unpin(index, true);
+				}
+			}
+		}
+		return image;
+	}
+
+	/**
+	 * Returns a new tiled image whose tiles are computed by applying kernel to the
+	 * corresponding tiles of left and right (which may be null). At least one of them
+	 * must be a TiledImage; the result has the same tile size.
+	 */
+	static TiledImage apply(BufferedImage left, BufferedImage right, TileKernel kernel) {
+		int tileSize = left instanceof TiledImage tiled ? tiled.getTileSize() : ((TiledImage) right).getTileSize();
+		TiledImage result = new TiledImage(left.getWidth(), left.getHeight(), tileSize);
+		apply(left, right, result, kernel);
+		return result;
+	}
+
+	/**
+	 * Applies kernel to each tile of result and the pixels in the same region of left
+	 * and right (either of which may be null), in parallel if there are enough tiles.
+	 * The arrays passed to the kernel hold a tile in row-major order with a row
+	 * length of the tile size. The kernel is only applied to the pixels of the tile
+	 * that are inside the image, so it never sees the padding of the tiles at the
+	 * right and bottom edges, which may be zero or left over from another tile.
+	 */
+	static void apply(BufferedImage left, BufferedImage right, TiledImage result, TileKernel kernel) {
+		Tiles dst = result.tiles;
+		int area = dst.tileSize * dst.tileSize;
+		ImageKernels.run(area, dst.tileCount, (from, to) -> {
+			int[] l = new int[area];
+			int[] r = new int[area];
+			for (int index = from / area; index < to / area; index++) {
+				int[] lp = left == null ? null : source(left, dst, index, l);
+				try {
+					int[] rp = right == null ? null : source(right, dst, index, r);
+					try {
+						int[] d = dst.pin(index);
+						try {
+							int t = dst.tileSize;
+							int columns = dst.columns(index);
+							if (columns == t) {
+								kernel.apply(lp, rp, d, 0, dst.rows(index) * t);
+							}
+							else {
+								for (int row = 0, rows = dst.rows(index); row < rows; row++) {
+									kernel.apply(lp, rp, d, row * t, row * t + columns);
+								}
+							}
+						}
+						finally {
+							dst.unpin(index, true);
+						}
+					}
+					finally {
+						release(right, dst, index);
+					}
+				}
+				finally {
+					release(left, dst, index);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Returns true if test holds for every row of every tile of left and right, which
+	 * must have the same size. Tiles that have not been started yet are skipped once
+	 * the test has failed.
+	 */
+	static boolean all(BufferedImage left, BufferedImage right, TileTest test) {
+		Tiles layout = left instanceof TiledImage tiled ? tiled.tiles : ((TiledImage) right).tiles;
+		int t = layout.tileSize;
+		int area = t * t;
+		return ImageKernels.all(area, layout.tileCount, (from, to) -> {
+			int[] l = new int[area];
+			int[] r = new int[area];
+			for (int index = from / area; index < to / area; index++) {
+				int[] lp = source(left, layout, index, l);
+				try {
+					int[] rp = source(right, layout, index, r);
+					try {
+						int columns = layout.columns(index);
+						for (int row = 0, rows = layout.rows(index); row < rows; row++) {
+							if (!test.test(lp, rp, row * t, row * t + columns)) {
+								return false;
+							}
+						}
+					}
+					finally {
+						release(right, layout, index);
+					}
+				}
+				finally {
+					release(left, layout, index);
+				}
+			}
+			return true;
+		});
+	}
+
+	/**
+	 * Returns the pixels of image in tile index of layout, without alpha values. If
+	 * image is tiled the same way, this is its pinned tile, which must be released;
+	 * otherwise the pixels are copied into scratch.
+	 */
+	private static int[] source(BufferedImage image, Tiles layout, int index, int[] scratch) {
+		if (sameLayout(image, layout)) {
+			return ((TiledImage) image).tiles.pin(index);
+		}
+		int t = layout.tileSize;
+		int rows = layout.rows(index);
+		image.getRGB((index % layout.tilesAcross) * t, (index / layout.tilesAcross) * t, layout.columns(index), rows,
+				scratch, 0, t);
+		ImageKernels.select(scratch, scratch, 0, rows * t, ImageKernels.SELECT_RGB);
+		return scratch;
+	}
+
+	private static void release(BufferedImage image, Tiles layout, int index) {
+		if (image != null && sameLayout(image, layout)) {
+			((TiledImage) image).tiles.unpin(index, false);
+		}
+	}
+
+	private static boolean sameLayout(BufferedImage image, Tiles layout) {
+		return image instanceof TiledImage tiled && tiled.tiles.tileSize == layout.tileSize
+				&& tiled.tiles.width == layout.width && tiled.tiles.height == layout.height;
+	}
+
+	/**
+	 * Drops tiles that are not pinned until the cache fits its budget. Tiles are looked
+	 * at in turn; one that has been used since it was last looked at gets another turn
+	 * instead (the clock approximation of least recently used). Changed tiles are
+	 * written to the spill file without holding any lock.
+	 */
+	private static void evict() {
+		for (int turns = 2 * resident.size(); turns > 0 && residentBytes.get() > maxResidentBytes; turns--) {
+			Tile tile = resident.poll();
+			if (tile == null) {
+				return;
+			}
+			int[] data;
+			synchronized (tile) {
+				if (tile.data == null) { // dropped by dispose
+					continue;
+				}
+				if (tile.pins > 0 || tile.used) {
+					tile.used = false;
+					resident.add(tile);
+					continue;
+				}
+				if (!tile.dirty) {
+					tile.data = null;
+					residentBytes.addAndGet(-tile.owner.tileBytes);
+					continue;
+				}
+				tile.busy = true;
+				data = tile.data;
+			}
+			try {
+				tile.owner.spill(tile.index, data);
+			}
+			catch (IOException e) {
+				synchronized (tile) {
+					tile.busy = false;
+					tile.notifyAll();
+				}
+				resident.add(tile);
+				throw new PLCRuntimeException("Cannot spill image tile", e);
+			}
+			synchronized (tile) {
+				tile.data = null;
+				tile.dirty = false;
+				tile.onDisk = true;
+				tile.busy = false;
+				tile.notifyAll();
+			}
+			residentBytes.addAndGet(-tile.owner.tileBytes);
+		}
+	}
+
+	/** The state of one tile, guarded by the tile's lock */
+	private static final class Tile {
+		final Tiles owner;
+		final int index;
+		int[] data;
+		boolean dirty;
+		boolean onDisk;
+		int pins;
+		/** True while the tile is being read from or written to the spill file */
+		boolean busy;
+		/** True if the tile has been used since evict last looked at it */
+		boolean used;
+
+		Tile(Tiles owner, int index) {
+			this.owner = owner;
+			this.index = index;
+		}
+
+		/** Waits until the tile is not busy. Must be called holding the tile's lock. */
+		void awaitIdle() {
+			boolean interrupted = false;
+			while (busy) {
+				try {
+					wait();
+				}
+				catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * The tiles of one image, exposed to the raster as a DataBuffer whose element i is
+	 * the pixel with index i in row-major order.
+	 */
+	private static final class Tiles extends DataBuffer {
+		final int width;
+		final int height;
+		final int tileSize;
+		final int tilesAcross;
+		final int tilesDown;
+		final int tileCount;
+		final long tileBytes;
+		final Tile[] tiles;
+		/** Guarded by the lock on this */
+		FileChannel spill;
+		volatile boolean disposed;
+
+		Tiles(int width, int height, int tileSize) {
+			super(DataBuffer.TYPE_INT, checkedSize(width, height, tileSize));
+			this.width = width;
+			this.height = height;
+			this.tileSize = tileSize;
+			this.tilesAcross = (width + tileSize - 1) / tileSize;
+			this.tilesDown = (height + tileSize - 1) / tileSize;
+			this.tileCount = tilesAcross * tilesDown;
+			this.tileBytes = 4L * tileSize * tileSize;
+			this.tiles = new Tile[tileCount];
+			for (int i = 0; i < tileCount; i++) {
+				tiles[i] = new Tile(this, i);
+			}
+		}
+
+		private static int checkedSize(int width, int height, int tileSize) {
+			if (width <= 0 || height <= 0 || tileSize <= 0 || (long) width * height > Integer.MAX_VALUE) {
+				throw new PLCRuntimeException("Unsupported tiled image size " + width + "x" + height);
+			}
+			return width * height;
+		}
+
+		int rows(int index) {
+			return Math.min(tileSize, height - (index / tilesAcross) * tileSize);
+		}
+
+		int columns(int index) {
+			return Math.min(tileSize, width - (index % tilesAcross) * tileSize);
+		}
+
+		/**
+		 * Returns the pixels of the tile, loading them if necessary. The tile stays in
+		 * memory until it is unpinned.
+		 */
+		int[] pin(int index) {
+			Tile tile = tiles[index];
+			boolean onDisk;
+			synchronized (tile) {
+				tile.awaitIdle();
+				if (disposed) {
+					throw new PLCRuntimeException("Tiled image has been disposed");
+				}
+				tile.pins++;
+				tile.used = true;
+				if (tile.data != null) {
+					return tile.data;
+				}
+				tile.busy = true;
+				onDisk = tile.onDisk;
+			}
+			int[] data = new int[tileSize * tileSize];
+			try {
+				if (onDisk) {
+					read(index, data);
+				}
+			}
+			catch (IOException e) {
+				synchronized (tile) {
+					tile.pins--;
+					tile.busy = false;
+					tile.notifyAll();
+				}
+				throw new PLCRuntimeException("Cannot read image tile", e);
+			}
+			synchronized (tile) {
+				tile.data = data;
+				tile.busy = false;
+				tile.notifyAll();
+				residentBytes.addAndGet(tileBytes);
+				resident.add(tile);
+			}
+			evict();
+			return data;
+		}
+
+		void unpin(int index, boolean written) {
+			Tile tile = tiles[index];
+			synchronized (tile) {
+				tile.pins--;
+				tile.dirty |= written;
+			}
+			if (residentBytes.get() > maxResidentBytes) { // tiles may have been pinned when the last one was loaded
+				evict();
+			}
+		}
+
+		/** Reads a tile from the spill file */
+		private void read(int index, int[] data) throws IOException {
+			MappedByteBuffer mapped = channel().map(FileChannel.MapMode.READ_ONLY, index * tileBytes, tileBytes);
+			mapped.order(ByteOrder.nativeOrder()).asIntBuffer().get(data);
+			OffHeapImage.free(mapped);
+		}
+
+		/** Writes a tile to the spill file, which is created the first time */
+		void spill(int index, int[] data) throws IOException {
+			MappedByteBuffer mapped = channel().map(FileChannel.MapMode.READ_WRITE, index * tileBytes, tileBytes);
+			mapped.order(ByteOrder.nativeOrder()).asIntBuffer().put(data);
+			OffHeapImage.free(mapped);
+		}
+
+		private synchronized FileChannel channel() throws IOException {
+			if (spill == null) {
+				Files.createDirectories(spillDirectory);
+				Path file = Files.createTempFile(spillDirectory, "tiles", ".bin");
+				spill = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+						StandardOpenOption.SPARSE, StandardOpenOption.DELETE_ON_CLOSE);
+			}
+			return spill;
+		}
+
+		void dispose() {
+			if (disposed) {
+				return;
+			}
+			disposed = true;
+			for (Tile tile : tiles) {
+				synchronized (tile) {
+					tile.awaitIdle(); // lets a read or write of the spill file finish
+					if (tile.data != null) {
+						residentBytes.addAndGet(-tileBytes);
+						tile.data = null;
+					}
+				}
+			}
+			resident.removeIf(tile -> tile.owner == this);
+			synchronized (this) {
+				if (spill != null) {
+					try {
+						spill.close();
+					}
+					catch (IOException e) {
+						// the file is left behind in the spill directory
+					}
+					spill = null;
+				}
+			}
+		}
+
+		@Override
+		public int getElem(int bank, int i) {
+			int index = (i / width / tileSize) * tilesAcross + (i % width) / tileSize;
+			Tile tile = tiles[index];
+			synchronized (tile) {
+				if (tile.data != null && !tile.busy && !disposed) {
+					tile.used = true;
+					return tile.data[offsetInTile(i)];
+				}
+			}
+			int[] data = pin(index);
+			try {
+				return data[offsetInTile(i)];
+			}
+			finally {
+				unpin(index, false);
+			}
+		}
+
+		@Override
+		public void setElem(int bank, int i, int val) {
+			int index = (i / width / tileSize) * tilesAcross + (i % width) / tileSize;
+			Tile tile = tiles[index];
+			synchronized (tile) {
+				if (tile.data != null && !tile.busy && !disposed) {
+					tile.used = true;
+					tile.dirty = true;
+					tile.data[offsetInTile(i)] = val & ImageKernels.SELECT_RGB;
+					return;
+				}
+			}
+			int[] data = pin(index);
+			try {
+				data[offsetInTile(i)] = val & ImageKernels.SELECT_RGB;
+			}
+			finally {
+				unpin(index, true);
+			}
+		}
+
+		private int offsetInTile(int i) {
+			return ((i / width) % tileSize) * tileSize + (i % width) % tileSize;
+		}
+	}
+
+}
@@ -0,0 +1,190 @@
+package edu.ufl.cise.plcsp23.runtime;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import edu.ufl.cise.plcsp23.runtime.ImageOps.OP;
+
+class TiledImageTest {
+
+	@TempDir
+	Path dir;
+
+	@AfterEach
+	void reset() {
+		TiledImage.setCacheBytes(Runtime.getRuntime().maxMemory() / 8);
+		TiledImage.setLargeImageBytes(Runtime.getRuntime().maxMemory() / 4);
+		TiledImage.setSpillDirectory(Paths.get(System.getProperty("java.io.tmpdir"), "plc-tiles"));
+		ImageKernels.setParallelThreshold(1 << 18);
+		ImageKernels.setPool(ForkJoinPool.commonPool());
+	}
+
+	/** A tiled copy of image */
+	static TiledImage tiled(BufferedImage image, int tileSize) {
+		int w = image.getWidth();
+		int h = image.getHeight();
+		TiledImage tiled = new TiledImage(w, h, tileSize);
+		tiled.setRGB(0, 0, w, h, ImageOps.getRGBPixels(image), 0, w);
+		return tiled;
+	}
+
+	static void assertSameImage(BufferedImage expected, BufferedImage actual, String message) {
+		assertTrue(actual instanceof TiledImage, message);
+		assertEquals(expected.getWidth(), actual.getWidth(), message);
+		assertEquals(expected.getHeight(), actual.getHeight(), message);
+		assertArrayEquals(RawImageTest.rgb(expected), RawImageTest.rgb(actual), message);
+	}
+
+	@Test
+	void operationsMatchTheHeapImages() {
+		Random random = new Random(12);
+		// tiles that do not divide the image, and operands tiled differently or not at all
+		BufferedImage left = ImageKernelsTest.random(70, 45, BufferedImage.TYPE_INT_RGB, random);
+		BufferedImage right = ImageKernelsTest.random(70, 45, BufferedImage.TYPE_3BYTE_BGR, random);
+		for (int y = 0; y < 45; y++) {
+			for (int x = 0; x < 70; x++) {
+				right.setRGB(x, y, right.getRGB(x, y) | 0x010101);
+			}
+		}
+		int pixel = random.nextInt() | 0x010101;
+		TiledImage l = tiled(left, 16);
+		BufferedImage[] rights = { tiled(right, 16), tiled(right, 32), right };
+		for (OP op : OP.values()) {
+			for (BufferedImage r : rights) {
+				assertSameImage(ImageOps.binaryImageImageOp(op, left, right), ImageOps.binaryImageImageOp(op, l, r),
+						op + " " + r.getClass().getSimpleName());
+			}
+			assertSameImage(ImageOps.binaryImageImageOp(op, left, right),
+					ImageOps.binaryImageImageOp(op, left, rights[0]), op + " heap left");
+			assertSameImage(ImageOps.binaryImagePixelOp(op, left, pixel), ImageOps.binaryImagePixelOp(op, l, pixel),
+					op + " pixel");
+			for (int scalar : ChannelTablesTest.SCALARS) {
+				assertSameImage(ImageOps.binaryImageScalarOp(op, left, scalar),
+						ImageOps.binaryImageScalarOp(op, l, scalar), op + " " + scalar);
+			}
+		}
+		assertSameImage(ImageOps.extractRed(left), ImageOps.extractRed(l), "red");
+		assertSameImage(ImageOps.extractGrn(left), ImageOps.extractGrn(l), "grn");
+		assertSameImage(ImageOps.extractBlu(left), ImageOps.extractBlu(l), "blu");
+		assertSameImage(left, ImageOps.cloneImage(l), "clone");
+		assertSameImage(ImageOps.setAllPixels(ImageOps.cloneImage(left), 0x123456),
+				ImageOps.setAllPixels(ImageOps.cloneImage(l), 0x123456), "set");
+	}
+
+	@Test
+	void equalsComparesEveryTile() {
+		BufferedImage image = ImageKernelsTest.random(70, 45, BufferedImage.TYPE_INT_RGB, new Random(13));
+		TiledImage tiled = tiled(image, 16);
+		assertTrue(ImageOps.equals(tiled, image));
+		assertTrue(ImageOps.equals(image, tiled(image, 32)));
+		assertTrue(ImageOps.equals(tiled, tiled(image, 16)));
+		for (int[] xy : new int[][] { { 0, 0 }, { 69, 0 }, { 35, 44 }, { 69, 44 } }) {
+			TiledImage changed = tiled(image, 16);
+			changed.setRGB(xy[0], xy[1], ~changed.getRGB(xy[0], xy[1]));
+			assertFalse(ImageOps.equals(tiled, changed), xy[0] + "," + xy[1]);
+			assertFalse(ImageOps.equals(image, changed), xy[0] + "," + xy[1]);
+		}
+	}
+
+	@Test
+	void spilledTilesReadBack() throws Exception {
+		TiledImage.setSpillDirectory(dir);
+		TiledImage.setCacheBytes(3 * 4 * 16 * 16);
+		BufferedImage image = ImageKernelsTest.random(100, 90, BufferedImage.TYPE_INT_RGB, new Random(14));
+		TiledImage tiled = tiled(image, 16);
+		assertTrue(TiledImage.cachedBytes() <= 3 * 4 * 16 * 16);
+		assertArrayEquals(RawImageTest.rgb(image), RawImageTest.rgb(tiled));
+		assertSameImage(ImageOps.binaryImageScalarOp(OP.TIMES, image, 3),
+				ImageOps.binaryImageScalarOp(OP.TIMES, tiled, 3), "spilled");
+		assertTrue(TiledImage.cachedBytes() <= 3 * 4 * 16 * 16);
+
+		tiled.dispose();
+		assertThrows(PLCRuntimeException.class, () -> tiled.getRGB(0, 0));
+	}
+
+	@Test
+	void imagesSpillWhileOthersAreUsed() throws Exception {
+		TiledImage.setSpillDirectory(dir);
+		TiledImage.setCacheBytes(4 * 4 * 16 * 16);
+		ForkJoinPool pool = new ForkJoinPool(4);
+		ExecutorService threads = Executors.newFixedThreadPool(4);
+		try {
+			ImageKernels.setPool(pool);
+			ImageKernels.setParallelThreshold(1);
+			List<Future<?>> results = new ArrayList<>();
+			for (int i = 0; i < 8; i++) {
+				Random random = new Random(50 + i);
+				boolean pixels = i % 2 == 0;
+				results.add(threads.submit(() -> {
+					BufferedImage left = ImageKernelsTest.random(100, 90, BufferedImage.TYPE_INT_RGB, random);
+					BufferedImage right = ImageKernelsTest.random(100, 90, BufferedImage.TYPE_INT_RGB, random);
+					TiledImage l = tiled(left, 16);
+					TiledImage r = tiled(right, 16);
+					BufferedImage sum = ImageOps.binaryImageImageOp(OP.PLUS, l, r);
+					// reading single pixels while the other threads spill and load tiles
+					assertArrayEquals(RawImageTest.rgb(pixels ? left : right), RawImageTest.rgb(pixels ? l : r));
+					assertSameImage(ImageOps.binaryImageImageOp(OP.PLUS, left, right), sum, "sum");
+					l.dispose();
+					r.dispose();
+					((TiledImage) sum).dispose();
+					return null;
+				}));
+			}
+			for (Future<?> result : results) {
+				result.get();
+			}
+			assertTrue(TiledImage.cachedBytes() <= 4 * 4 * 16 * 16);
+		}
+		finally {
+			threads.shutdown();
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	void largeFilesAreReadIntoTiles() throws Exception {
+		BufferedImage image = FileURLIOTest.pattern(300, 200, new Random(15));
+		File file = dir.resolve("large.png").toFile();
+		ImageIO.write(image, "png", file);
+		TiledImage.setLargeImageBytes(4 * 100 * 100);
+		BufferedImage read = FileURLIO.readImage(file.getPath());
+		assertSameImage(ImageIO.read(file), read, "read");
+		assertSameImage(ImageIO.read(file).getSubimage(20, 10, 260, 150),
+				FileURLIO.readImageRegion(file.getPath(), 20, 10, 260, 150), "region");
+
+		BufferedImage resized = ImageOps.copyAndResize(read, 250, 180);
+		assertSameImage(ResizeTest.reference(ImageIO.read(file), 250, 180), resized, "resized");
+		BufferedImage small = ImageOps.copyAndResize(read, 60, 40);
+		assertFalse(small instanceof TiledImage);
+		ResizeTest.assertSameImage(ResizeTest.reference(ImageIO.read(file), 60, 40), small, "small");
+	}
+
+	@Test
+	void unsupportedSizesThrow() {
+		assertThrows(PLCRuntimeException.class, () -> new TiledImage(0, 5));
+		assertThrows(PLCRuntimeException.class, () -> new TiledImage(5, 5, 0));
+		assertThrows(PLCRuntimeException.class, () -> new TiledImage(1 << 16, 1 << 16));
+	}
+
+}
@@ -0,0 +1,142 @@
+package edu.ufl.cise.plcsp23.runtime;
+
+import edu.ufl.cise.plcsp23.runtime.ImageOps.OP;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Arithmetic kernels implemented with the jdk.incubator.vector API. Each iteration
+ * processes a whole vector of packed pixels: the color components are unpacked into
+ * lanes, combined, clamped to [0,255] and packed again, which gives the same
+ * results as ImageOps.binaryPackedPixelPixelOp and binaryPackedPixelScalarOp.
+ *
+ * Every op has its own small loop method calling add, sub or mul directly. The JIT
+ * only turns vector operations into SIMD instructions when they are fully inlined,
+ * which does not happen if the operator is passed in as a parameter or the loops
+ * for all ops are in one large method. DIV and MOD use the scalar loops, since x86
+ * has no SIMD integer division and the vector API would emulate it lane by lane.
+ *
+ * This class must only be loaded if the jdk.incubator.vector module is present, see
+ * ImageKernels.setVectorized.
+ */
+class VectorKernels implements ImageKernels.Arithmetic {
+
+	private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+	private static final int LENGTH = SPECIES.length();
+
+	@Override
+	public void imageImage(OP op, int[] left, int[] right, int[] dst, int from, int to) {
+		int bound = from + SPECIES.loopBound(to - from);
+		switch (op) {
+		case PLUS -> plus(left, right, dst, from, bound);
+		case MINUS -> minus(left, right, dst, from, bound);
+		case TIMES -> times(left, right, dst, from, bound);
+		default -> bound = from;
+		}
+		ImageKernels.imageImageLoop(op, left, right, dst, bound, to);
+	}
+
+	@Override
+	public void imagePixel(OP op, int[] left, int right, int[] dst, int from, int to) {
+		int bound = imageBroadcast(op, left, PixelOps.red(right), PixelOps.grn(right), PixelOps.blu(right), dst, from,
+				to);
+		ImageKernels.imagePixelLoop(op, left, right, dst, bound, to);
+	}
+
+	@Override
+	public void imageScalar(OP op, int[] left, int right, int[] table, int[] dst, int from, int to) {
+		int bound = imageBroadcast(op, left, right, right, right, dst, from, to);
+		ImageKernels.imageScalarLoop(op, left, right, table, dst, bound, to);
+	}
+
+	/**
+	 * Combines the components of the pixels in left with red, grn and blu. Returns
+	 * the index of the first pixel that has not been processed.
+	 */
+	private static int imageBroadcast(OP op, int[] left, int red, int grn, int blu, int[] dst, int from, int to) {
+		int bound = from + SPECIES.loopBound(to - from);
+		IntVector rred = IntVector.broadcast(SPECIES, red);
+		IntVector rgrn = IntVector.broadcast(SPECIES, grn);
+		IntVector rblu = IntVector.broadcast(SPECIES, blu);
+		switch (op) {
+		case PLUS -> plus(left, rred, rgrn, rblu, dst, from, bound);
+		case MINUS -> minus(left, rred, rgrn, rblu, dst, from, bound);
+		case TIMES -> times(left, rred, rgrn, rblu, dst, from, bound);
+		default -> bound = from;
+		}
+		return bound;
+	}
+
+	private static void plus(int[] left, int[] right, int[] dst, int from, int bound) {
+		for (int i = from; i < bound; i += LENGTH) {
+			IntVector l = IntVector.fromArray(SPECIES, left, i);
+			IntVector r = IntVector.fromArray(SPECIES, right, i);
+			pack(red(l).add(red(r)), grn(l).add(grn(r)), blu(l).add(blu(r))).intoArray(dst, i);
+		}
+	}
+
+	private static void minus(int[] left, int[] right, int[] dst, int from, int bound) {
+		for (int i = from; i < bound; i += LENGTH) {
+			IntVector l = IntVector.fromArray(SPECIES, left, i);
+			IntVector r = IntVector.fromArray(SPECIES, right, i);
+			pack(red(l).sub(red(r)), grn(l).sub(grn(r)), blu(l).sub(blu(r))).intoArray(dst, i);
+		}
+	}
+
+	private static void times(int[] left, int[] right, int[] dst, int from, int bound) {
+		for (int i = from; i < bound; i += LENGTH) {
+			IntVector l = IntVector.fromArray(SPECIES, left, i);
+			IntVector r = IntVector.fromArray(SPECIES, right, i);
+			pack(red(l).mul(red(r)), grn(l).mul(grn(r)), blu(l).mul(blu(r))).intoArray(dst, i);
+		}
+	}
+
+	private static void plus(int[] left, IntVector rred, IntVector rgrn, IntVector rblu, int[] dst, int from,
+			int bound) {
+		for (int i = from; i < bound; i += LENGTH) {
+			IntVector l = IntVector.fromArray(SPECIES, left, i);
+			pack(red(l).add(rred), grn(l).add(rgrn), blu(l).add(rblu)).intoArray(dst, i);
+		}
+	}
+
+	private static void minus(int[] left, IntVector rred, IntVector rgrn, IntVector rblu, int[] dst, int from,
+			int bound) {
+		for (int i = from; i < bound; i += LENGTH) {
+			IntVector l = IntVector.fromArray(SPECIES, left, i);
+			pack(red(l).sub(rred), grn(l).sub(rgrn), blu(l).sub(rblu)).intoArray(dst, i);
+		}
+	}
+
+	private static void times(int[] left, IntVector rred, IntVector rgrn, IntVector rblu, int[] dst, int from,
+			int bound) {
+		for (int i = from; i < bound; i += LENGTH) {
+			IntVector l = IntVector.fromArray(SPECIES, left, i);
+			pack(red(l).mul(rred), grn(l).mul(rgrn), blu(l).mul(rblu)).intoArray(dst, i);
+		}
+	}
+
+	private static IntVector red(IntVector pixels) {
+		return pixels.lanewise(VectorOperators.LSHR, PixelOps.SHIFT_RED).lanewise(VectorOperators.AND, 0xff);
+	}
+
+	private static IntVector grn(IntVector pixels) {
+		return pixels.lanewise(VectorOperators.LSHR, PixelOps.SHIFT_GRN).lanewise(VectorOperators.AND, 0xff);
+	}
+
+	private static IntVector blu(IntVector pixels) {
+		return pixels.lanewise(VectorOperators.AND, 0xff);
+	}
+
+	/** Clamps each component to [0,255] and packs them without the alpha value */
+	private static IntVector pack(IntVector red, IntVector grn, IntVector blu) {
+		return clamp(red).lanewise(VectorOperators.LSHL, PixelOps.SHIFT_RED)
+				.or(clamp(grn).lanewise(VectorOperators.LSHL, PixelOps.SHIFT_GRN))
+				.or(clamp(blu));
+	}
+
+	private static IntVector clamp(IntVector v) {
+		return v.max(0).min(255);
+	}
+
+}
@@ -0,0 +1,78 @@
+package edu.ufl.cise.plcsp23.runtime;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import edu.ufl.cise.plcsp23.runtime.ImageOps.OP;
+
+/**
+ * The vectorized kernels are only loaded when the JVM runs with --add-modules
+ * jdk.incubator.vector; without it the tests of them are skipped.
+ */
+class VectorKernelsTest {
+
+	static final int[] SCALARS = { Integer.MIN_VALUE, -70000, -256, -255, -1, 0, 1, 2, 255, 256, 8421504, 70000,
+			Integer.MAX_VALUE };
+
+	@AfterEach
+	void reset() {
+		ImageKernels.setVectorized(true);
+	}
+
+	/** Runs the kernels on ranges that start and end anywhere in a vector */
+	void assertKernelsMatchTheReference(Random random) {
+		int[] left = new int[301];
+		int[] right = new int[301];
+		for (int i = 0; i < left.length; i++) {
+			left[i] = random.nextInt();
+			right[i] = random.nextInt() | 0x010101;
+		}
+		int[][] ranges = { { 0, 301 }, { 3, 300 }, { 17, 18 }, { 5, 5 }, { 0, 64 } };
+		for (OP op : OP.values()) {
+			for (int[] range : ranges) {
+				int[] dst = new int[left.length];
+				ImageKernels.imageImage(op, left, right, dst, range[0], range[1]);
+				for (int i = range[0]; i < range[1]; i++) {
+					assertEquals(ImageKernelsTest.expected(op, left[i], right[i]) & ImageKernels.SELECT_RGB, dst[i],
+							op + " image " + i);
+				}
+				int pixel = right[range[0]];
+				ImageKernels.imagePixel(op, left, pixel, dst, range[0], range[1]);
+				for (int i = range[0]; i < range[1]; i++) {
+					assertEquals(ImageKernelsTest.expected(op, left[i], pixel) & ImageKernels.SELECT_RGB, dst[i],
+							op + " pixel " + i);
+				}
+				for (int scalar : SCALARS) {
+					if (scalar == 0 && (op == OP.DIV || op == OP.MOD)) {
+						continue;
+					}
+					ImageKernels.imageScalar(op, left, scalar, dst, range[0], range[1]);
+					for (int i = range[0]; i < range[1]; i++) {
+						assertEquals(ChannelTablesTest.expected(op, left[i], scalar) & ImageKernels.SELECT_RGB, dst[i],
+								op + " scalar " + scalar + " " + i);
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	void vectorKernelsMatchTheReference() {
+		assumeTrue(ImageKernels.setVectorized(true), "jdk.incubator.vector is not present");
+		assertKernelsMatchTheReference(new Random(3));
+	}
+
+	@Test
+	void scalarKernelsMatchTheReference() {
+		assertFalse(ImageKernels.setVectorized(false));
+		assertFalse(ImageKernels.isVectorized());
+		assertKernelsMatchTheReference(new Random(4));
+	}
+
+}